@@ -3,20 +3,36 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.HashSet;
 
+// Devices are tracked over a connection to ADB server(ADBHostClient), which
+// pushes every change at once. If the server cannot be reached, 'adb
+// devices' is run instead, which also starts the server, and tracking is
+// tried again a second later.
 public class ADBConnector {
 	private Worker mWorker;
 
 	private int mTargetPort;
+	private ADBHostClient mHostClient;
 	private ArrayList<ADBConnectionListener> mListeners;
+	private ArrayList<ADBDeviceListener> mDeviceListeners;
 
-	private ADBConnector(int targetPort) {
+	private ADBConnector(int targetPort, String adbHost, int adbPort) {
 		this.mTargetPort = targetPort;
+		this.mHostClient = new ADBHostClient(adbHost, adbPort);
 		this.mListeners = new ArrayList<ADBConnectionListener>();
+		this.mDeviceListeners = new ArrayList<ADBDeviceListener>();
 	}
 
 	public static ADBConnector get(int targetPort) {
-		return new ADBConnector(targetPort);
+		return new ADBConnector(targetPort, ADBHostClient.DEFAULT_HOST,
+				ADBHostClient.DEFAULT_PORT);
+	}
+
+	// ADB server at given address, e.g. a fake server in tests
+	public static ADBConnector get(int targetPort, String adbHost,
+			int adbPort) {
+		return new ADBConnector(targetPort, adbHost, adbPort);
 	}
 
 	public void start() {
@@ -41,16 +57,61 @@ public class ADBConnector {
 		this.mListeners.remove(listener);
 	}
 
+	// Device listeners are told about each device by its serial.
+	public void addDeviceListener(ADBDeviceListener listener) {
+		this.mDeviceListeners.add(listener);
+	}
+
+	public void removeDeviceListener(ADBDeviceListener listener) {
+		this.mDeviceListeners.remove(listener);
+	}
+
 	private void openPort(int portNum) throws IOException {
-		new ProcessBuilder("adb", "forward", ("tcp:" + portNum),
-				("tcp:" + portNum)).start();
+		try {
+			this.mHostClient.forward(null, portNum, portNum);
+		} catch (IOException e) {
+			new ProcessBuilder("adb", "forward", ("tcp:" + portNum),
+					("tcp:" + portNum)).start();
+		}
 	}
 
-	private boolean isUSBConnected() {
-		return (getNumUSBConnected() > 0);
+	// Forward {localPort} of host to {targetPort} of the device with given
+	// serial. Each device of a fleet gets its own local port.
+	public void forwardPort(String serial, int localPort, int targetPort)
+			throws IOException {
+		try {
+			this.mHostClient.forward(serial, localPort, targetPort);
+		} catch (IOException e) {
+			runADB("-s", serial, "forward", ("tcp:" + localPort),
+					("tcp:" + targetPort));
+		}
+	}
+
+	public void removeForward(String serial, int localPort)
+			throws IOException {
+		try {
+			this.mHostClient.removeForward(serial, localPort);
+		} catch (IOException e) {
+			runADB("-s", serial, "forward", "--remove", ("tcp:" + localPort));
+		}
+	}
+
+	private static void runADB(String... args) throws IOException {
+		String[] command = new String[args.length + 1];
+		command[0] = "adb";
+		System.arraycopy(args, 0, command, 1, args.length);
+		Process process = new ProcessBuilder(command).start();
+		try {
+			process.waitFor();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
 	}
 
-	private int getNumUSBConnected() {
+	// Serials of devices which are ready for adb, parsed from the output of
+	// 'adb devices'. Empty if adb cannot be run.
+	public static ArrayList<String> getDeviceSerials() {
+		StringBuilder deviceList = new StringBuilder();
 		try {
 			// Check if target devices is connected to host
 			Process devicesProcess;
@@ -60,22 +121,13 @@ public class ADBConnector {
 			BufferedReader stdOut = new BufferedReader(new InputStreamReader(
 					devicesProcess.getInputStream()));
 			String outString;
-			int connectedDevices = -1;
 			while ((outString = stdOut.readLine()) != null) {
-				// System.out.println(outString);
-				if (outString.contains("device") == true) {
-					connectedDevices++;
-				}
-			}
-			if (outString != null || connectedDevices <= 0) {
-				// System.err.println("Device is not connected!");
-				return -1;
+				deviceList.append(outString).append('\n');
 			}
-			return connectedDevices;
 		} catch (IOException e) {
 			// System.err.println("I/O exception!");
-			return -1;
 		}
+		return ADBHostClient.parseDevices(deviceList.toString());
 	}
 
 	class Worker extends Thread {
@@ -83,8 +135,10 @@ public class ADBConnector {
 		private static final int SLEEP_MILLISECONDS = 1000;
 		private int mTargetPort;
 
-		private boolean mIsRunning;
+		private volatile boolean mIsRunning;
 		private boolean mLastConnected;
+		private HashSet<String> mLastSerials = new HashSet<String>();
+		private volatile ADBHostClient.Tracker mTracker = null;
 
 		public Worker(int targetPort) {
 			super(THREAD_NAME);
@@ -97,26 +151,26 @@ public class ADBConnector {
 			this.mIsRunning = true;
 			this.mLastConnected = false;
 			while (this.mIsRunning) {
+				// Track devices until the server goes away
 				try {
-					if (isUSBConnected() == true
-							&& this.mLastConnected == false) {
-						// Connected
-						openPort(this.mTargetPort);
-						this.mLastConnected = true;
-						for (ADBConnectionListener listener : mListeners) {
-							listener.onADBConnect();
-						}
-					} else if (isUSBConnected() == false
-							&& this.mLastConnected == true) {
-						// Disconnected
-						this.mLastConnected = false;
-						for (ADBConnectionListener listener : mListeners) {
-							listener.onADBDisconnect();
-						}
+					this.mTracker = mHostClient.trackDevices();
+					while (this.mIsRunning) {
+						this.onDevices(new HashSet<String>(this.mTracker
+								.next()));
 					}
 				} catch (IOException e) {
-					e.printStackTrace();
+					// No server to track
+				} finally {
+					if (this.mTracker != null) {
+						this.mTracker.close();
+						this.mTracker = null;
+					}
 				}
+				if (this.mIsRunning == false)
+					break;
+
+				// adb is run once per iteration
+				this.onDevices(new HashSet<String>(getDeviceSerials()));
 				try {
 					Thread.sleep(SLEEP_MILLISECONDS);
 				} catch (InterruptedException e) {
@@ -125,8 +179,56 @@ public class ADBConnector {
 			}
 		}
 
+		private void onDevices(HashSet<String> serials) {
+			this.notifyDevices(serials);
+			try {
+				boolean isUSBConnected = (serials.isEmpty() == false);
+				if (isUSBConnected == true && this.mLastConnected == false) {
+					// Connected
+					openPort(this.mTargetPort);
+					this.mLastConnected = true;
+					for (ADBConnectionListener listener : mListeners) {
+						listener.onADBConnect();
+					}
+				} else if (isUSBConnected == false
+						&& this.mLastConnected == true) {
+					// Disconnected
+					this.mLastConnected = false;
+					for (ADBConnectionListener listener : mListeners) {
+						listener.onADBDisconnect();
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		// Tell device listeners which serials are attached or detached
+		// since the last iteration.
+		private void notifyDevices(HashSet<String> serials) {
+			for (String serial : serials) {
+				if (this.mLastSerials.contains(serial) == false) {
+					for (ADBDeviceListener listener : mDeviceListeners) {
+						listener.onADBDeviceAttached(serial);
+					}
+				}
+			}
+			for (String serial : this.mLastSerials) {
+				if (serials.contains(serial) == false) {
+					for (ADBDeviceListener listener : mDeviceListeners) {
+						listener.onADBDeviceDetached(serial);
+					}
+				}
+			}
+			this.mLastSerials = serials;
+		}
+
 		public void kill() {
 			this.mIsRunning = false;
+			// Wake up the tracker blocked on reading
+			ADBHostClient.Tracker tracker = this.mTracker;
+			if (tracker != null)
+				tracker.close();
 		}
 	}
 }
@@ -136,3 +238,9 @@ interface ADBConnectionListener {
 
 	public void onADBDisconnect();
 }
+
+interface ADBDeviceListener {
+	public void onADBDeviceAttached(String serial);
+
+	public void onADBDeviceDetached(String serial);
+}
@@ -0,0 +1,155 @@
+package com.android.server.recordroid;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+
+// Client of the host protocol of ADB server, which 'adb' itself speaks to
+// the server(localhost:5037 by default).
+// - request: length of service in 4 hex digits + service
+// e.g. "0012host:track-devices"
+// - status: "OKAY", or "FAIL" + length in 4 hex digits + message
+// Requests are served without forking 'adb'. Any server speaking the
+// protocol can stand in for ADB, so host and port are configurable.
+class ADBHostClient {
+	public static final String DEFAULT_HOST = "127.0.0.1";
+	public static final int DEFAULT_PORT = 5037;
+	private static final int CONNECT_TIMEOUT_MS = 1000;
+	private static final int REQUEST_TIMEOUT_MS = 5000;
+
+	private String mHost;
+	private int mPort;
+
+	public ADBHostClient(String host, int port) {
+		this.mHost = host;
+		this.mPort = port;
+	}
+
+	// Forward {localPort} of host to {targetPort} of a device.
+	// Any single device is chosen if {serial} is null.
+	public void forward(String serial, int localPort, int targetPort)
+			throws IOException {
+		this.request(getTransportPrefix(serial) + "forward:tcp:" + localPort
+				+ ";tcp:" + targetPort);
+	}
+
+	public void removeForward(String serial, int localPort)
+			throws IOException {
+		this.request(getTransportPrefix(serial) + "killforward:tcp:"
+				+ localPort);
+	}
+
+	// Connection which receives device lists whenever they change.
+	// The first list is sent at once.
+	public Tracker trackDevices() throws IOException {
+		Socket socket = this.open("host:track-devices");
+		return new Tracker(socket);
+	}
+
+	private static String getTransportPrefix(String serial) {
+		return (serial == null) ? "host:" : "host-serial:" + serial + ":";
+	}
+
+	// One-shot request. Forwarding services reply one more status when the
+	// forward is done, and old servers may close without it.
+	private void request(String service) throws IOException {
+		Socket socket = this.open(service);
+		try {
+			socket.setSoTimeout(REQUEST_TIMEOUT_MS);
+			try {
+				readStatus(new DataInputStream(socket.getInputStream()));
+			} catch (EOFException e) {
+				// Done without the second status
+			}
+		} finally {
+			socket.close();
+		}
+	}
+
+	// Connect, send a request and check its status
+	private Socket open(String service) throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(this.mHost, this.mPort),
+					CONNECT_TIMEOUT_MS);
+			socket.setTcpNoDelay(true);
+			OutputStream outStream = socket.getOutputStream();
+			outStream.write(String.format("%04x%s", service.length(),
+					service).getBytes("US-ASCII"));
+			outStream.flush();
+			readStatus(new DataInputStream(socket.getInputStream()));
+			return socket;
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	private static void readStatus(DataInputStream inStream)
+			throws IOException {
+		byte[] status = new byte[4];
+		inStream.readFully(status);
+		String statusString = new String(status, "US-ASCII");
+		if (statusString.equals("OKAY"))
+			return;
+		if (statusString.equals("FAIL"))
+			throw new IOException("ADB server: " + readMessage(inStream));
+		throw new IOException("ADB server: unknown status " + statusString);
+	}
+
+	// Length in 4 hex digits + message
+	private static String readMessage(DataInputStream inStream)
+			throws IOException {
+		byte[] length = new byte[4];
+		inStream.readFully(length);
+		int numBytes;
+		try {
+			numBytes = Integer.parseInt(new String(length, "US-ASCII"), 16);
+		} catch (NumberFormatException e) {
+			throw new IOException("ADB server: invalid length");
+		}
+		byte[] message = new byte[numBytes];
+		inStream.readFully(message);
+		return new String(message, "UTF-8");
+	}
+
+	// Serials of devices which are ready for adb, from lines of device list
+	// as "<serial>\t<state>". Offline and unauthorized devices are left out.
+	public static ArrayList<String> parseDevices(String deviceList) {
+		ArrayList<String> serials = new ArrayList<String>();
+		for (String line : deviceList.split("\n")) {
+			String[] columns = line.trim().split("\\s+");
+			if (columns.length == 2 && columns[1].equals("device"))
+				serials.add(columns[0]);
+		}
+		return serials;
+	}
+
+	class Tracker {
+		private Socket mSocket;
+		private DataInputStream mInStream;
+
+		public Tracker(Socket socket) throws IOException {
+			this.mSocket = socket;
+			this.mInStream = new DataInputStream(socket.getInputStream());
+		}
+
+		// Block until the next device list
+		public ArrayList<String> next() throws IOException {
+			return parseDevices(readMessage(this.mInStream));
+		}
+
+		// Called from any thread: next() fails at once.
+		public void close() {
+			try {
+				this.mSocket.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package com.android.server.recordroid;
+
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.prefs.Preferences;
+
+// Group-commit writer of recorded events.
+// Producers (USB connector thread) only enqueue events into a lock-free
+// queue. A flusher thread hands them to the handler in batches, flushes the
+// output every {flushIntervalMS} and fsyncs it every {syncIntervalMS} or
+// {syncBytes}, so that disk latency never stalls the producer.
+class AsyncEventWriter {
+	// Flusher is woken before the interval if this many events are pending.
+	private static final int WAKE_UP_PENDING_EVENTS = 4096;
+
+	interface EventHandler {
+		// Called on the flusher thread only
+		public void handleEvent(RecordroidEvent event) throws IOException;
+	}
+
+	private EventHandler mHandler;
+	private Flushable mOutput;
+	private FileOutputStream mFileStream;
+	private long mFlushIntervalMS;
+	private long mSyncIntervalMS;
+	private long mSyncBytes;
+
+	private ConcurrentLinkedQueue<RecordroidEvent> mQueue = new ConcurrentLinkedQueue<RecordroidEvent>();
+	private AtomicInteger mNumPendingEvents = new AtomicInteger(0);
+	private Flusher mFlusher;
+	private volatile boolean mIsClosing = false;
+	private volatile IOException mError = null;
+
+	private AsyncEventWriter(EventHandler handler, Flushable output,
+			FileOutputStream fileStream, long flushIntervalMS,
+			long syncIntervalMS, long syncBytes) {
+		this.mHandler = handler;
+		this.mOutput = output;
+		this.mFileStream = fileStream;
+		this.mFlushIntervalMS = Math.max(flushIntervalMS, 1);
+		this.mSyncIntervalMS = syncIntervalMS;
+		this.mSyncBytes = syncBytes;
+		this.mFlusher = new Flusher();
+		this.mFlusher.start();
+	}
+
+	// {output} is buffered on top of {fileStream}.
+	public static AsyncEventWriter start(EventHandler handler,
+			Flushable output, FileOutputStream fileStream, Preferences prefs) {
+		long flushIntervalMS = prefs.getLong(
+				PreferenceConstants.KEY_WRITER_FLUSH_INTERVAL_MS,
+				PreferenceConstants.INIT_WRITER_FLUSH_INTERVAL_MS);
+		long syncIntervalMS = prefs.getLong(
+				PreferenceConstants.KEY_WRITER_SYNC_INTERVAL_MS,
+				PreferenceConstants.INIT_WRITER_SYNC_INTERVAL_MS);
+		long syncBytes = prefs.getLong(
+				PreferenceConstants.KEY_WRITER_SYNC_BYTES,
+				PreferenceConstants.INIT_WRITER_SYNC_BYTES);
+		return new AsyncEventWriter(handler, output, fileStream,
+				flushIntervalMS, syncIntervalMS, syncBytes);
+	}
+
+	// Never blocks. An error of the flusher is reported to the next caller.
+	public void enqueue(RecordroidEvent event) throws IOException {
+		if (this.mError != null)
+			throw this.mError;
+		this.mQueue.offer(event);
+		if (this.mNumPendingEvents.incrementAndGet() == WAKE_UP_PENDING_EVENTS)
+			LockSupport.unpark(this.mFlusher);
+	}
+
+	// Write all pending events and stop the flusher.
+	// The output itself is closed by its owner.
+	public void close() throws IOException {
+		this.mIsClosing = true;
+		LockSupport.unpark(this.mFlusher);
+		while (true) {
+			try {
+				this.mFlusher.join();
+				break;
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		if (this.mError != null)
+			throw this.mError;
+	}
+
+	class Flusher extends Thread {
+		private long mLastFlushMS;
+		private long mLastSyncMS;
+		private long mLastSyncPosition;
+
+		public Flusher() {
+			super("AsyncEventWriter");
+		}
+
+		@Override
+		public void run() {
+			this.mLastFlushMS = System.currentTimeMillis();
+			this.mLastSyncMS = this.mLastFlushMS;
+			this.mLastSyncPosition = 0;
+			try {
+				while (true) {
+					boolean isClosing = mIsClosing;
+					this.drain();
+
+					long nowMS = System.currentTimeMillis();
+					if (isClosing || nowMS - this.mLastFlushMS >= mFlushIntervalMS) {
+						mOutput.flush();
+						this.mLastFlushMS = nowMS;
+						this.syncIfNeeded(nowMS, isClosing);
+					}
+					if (isClosing)
+						break;
+
+					// Sleep until next flush, or until many events are pending
+					if (mNumPendingEvents.get() < WAKE_UP_PENDING_EVENTS)
+						LockSupport.parkNanos(TimeUnit.MILLISECONDS
+								.toNanos(mFlushIntervalMS));
+				}
+			} catch (IOException e) {
+				mError = e;
+				e.printStackTrace();
+			}
+		}
+
+		private void drain() throws IOException {
+			RecordroidEvent event;
+			while ((event = mQueue.poll()) != null) {
+				mNumPendingEvents.decrementAndGet();
+				mHandler.handleEvent(event);
+			}
+		}
+
+		private void syncIfNeeded(long nowMS, boolean isClosing)
+				throws IOException {
+			if (mSyncIntervalMS <= 0 && mSyncBytes <= 0)
+				return;
+			long position = mFileStream.getChannel().position();
+			boolean isTimeOver = (mSyncIntervalMS > 0 && nowMS
+					- this.mLastSyncMS >= mSyncIntervalMS);
+			boolean isSizeOver = (mSyncBytes > 0 && position
+					- this.mLastSyncPosition >= mSyncBytes);
+			if (isClosing || isTimeOver || isSizeOver) {
+				mFileStream.getFD().sync();
+				this.mLastSyncMS = nowMS;
+				this.mLastSyncPosition = position;
+			}
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package com.android.server.recordroid;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.prefs.Preferences;
+
+// Replay chunks of a trace file shared by many replay sessions.
+// Unlike TraceFile.Reader, it has no 'last sent SN': any chunk is served by
+// SN through the chunk index, and each device keeps its own progress in a
+// source made by makeSource().
+// Decoded chunks are kept in an LRU map, so a fleet replaying in step reads
+// and packs each chunk once. Chunks of a plain binary trace are file
+// regions, and nothing is decoded at all.
+class ChunkCache {
+	private File mFile;
+	private TraceIndex mIndex;
+	private TraceCursor mCursor; // null in zero-copy mode
+	private SharedFileChannel mChannel; // only in zero-copy mode
+	private LinkedHashMap<Long, byte[]> mRecords;
+
+	private ChunkCache(File file, TraceIndex index, final int capacity) {
+		this.mFile = file;
+		this.mIndex = index;
+		this.mRecords = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+				return (this.size() > capacity);
+			}
+		};
+	}
+
+	public static ChunkCache open(File file, Preferences prefs)
+			throws FileNotFoundException, IOException {
+		if (file == null)
+			throw new FileNotFoundException();
+		int readMode = prefs.getInt(PreferenceConstants.KEY_TRACE_READ_MODE,
+				PreferenceConstants.INIT_TRACE_READ_MODE);
+		int minimumPreloadSize = prefs.getInt(
+				PreferenceConstants.KEY_MINIMUM_PRELOAD_SIZE,
+				PreferenceConstants.INIT_MINIMUM_PRELOAD_SIZE);
+		long minimumPreloadIntervalUS = prefs.getLong(
+				PreferenceConstants.KEY_MINIMUM_PRELOAD_INTERVAL_US,
+				PreferenceConstants.INIT_MINIMUM_PRELOAD_INTERVAL_US);
+		int capacity = prefs.getInt(
+				PreferenceConstants.KEY_FLEET_CHUNK_CACHE_SIZE,
+				PreferenceConstants.INIT_FLEET_CHUNK_CACHE_SIZE);
+
+		// Same chunks as TraceFile.openReading() makes
+		TraceIndex index = TraceIndex.open(file, readMode,
+				minimumPreloadSize, minimumPreloadIntervalUS);
+		ChunkCache cache = new ChunkCache(file, index, Math.max(capacity, 1));
+		if (TraceFormat.detect(file) == TraceFormat.FORMAT_BINARY
+				&& index.isPacked()) {
+			cache.mChannel = new SharedFileChannel(new RandomAccessFile(
+					file, "r").getChannel());
+		} else {
+			cache.mCursor = TraceCursor.open(file, readMode);
+		}
+		return cache;
+	}
+
+	public File getFile() {
+		return this.mFile;
+	}
+
+	public int getNumChunks() {
+		return this.mIndex.getNumChunks();
+	}
+
+	public boolean hasChunk(long sn) {
+		return this.mIndex.hasChunk(sn);
+	}
+
+	public boolean isLastChunk(long sn) {
+		return (sn == this.mIndex.getNumChunks());
+	}
+
+	// A new message of the chunk, or null if there is no such chunk.
+	// Messages are not shared between sessions, but their records are.
+	public synchronized RecordroidReplayChunk makeChunk(long sn)
+			throws IOException {
+		if (this.mIndex.hasChunk(sn) == false)
+			return null;
+		int numEvents = this.mIndex.getNumEvents(sn);
+		boolean isNextExists = (this.isLastChunk(sn) == false);
+		if (this.mChannel != null) {
+			long position = this.mIndex.getPosition(sn);
+			int length = (int) (this.mIndex.getEndPosition(sn) - position);
+			return FileReplayChunk.make(sn, numEvents, isNextExists,
+					this.mChannel, position, length);
+		}
+
+		byte[] records = this.mRecords.get(sn);
+		if (records == null) {
+			records = this.readRecords(sn, numEvents);
+			this.mRecords.put(sn, records);
+		}
+		return RecordroidReplayChunk.make(sn, numEvents, isNextExists,
+				records);
+	}
+
+	// Chunk source of one device
+	public ServiceStateMirror.ChunkSource makeSource() {
+		return new Source();
+	}
+
+	// Read event records of a chunk from its indexed position
+	private byte[] readRecords(long sn, int numEvents) throws IOException {
+		EventBatch batch = new EventBatch(numEvents);
+		this.mCursor.seek(this.mIndex.getPosition(sn));
+		while (batch.size() < numEvents && this.mCursor.next()) {
+			// Handle only event records
+			if (this.mCursor.kind == TraceFormat.KIND_KERNEL_INPUT
+					|| this.mCursor.kind == TraceFormat.KIND_PLATFORM) {
+				batch.add(this.mCursor);
+			}
+		}
+		return batch.toRecords();
+	}
+
+	// In zero-copy mode, the file stays open until the chunks made from it
+	// are sent.
+	public synchronized void close() throws IOException {
+		this.mRecords.clear();
+		if (this.mChannel != null)
+			this.mChannel.release();
+		if (this.mCursor != null)
+			this.mCursor.close();
+	}
+
+	class Source implements ServiceStateMirror.ChunkSource {
+		private long mLastSentSN = 0;
+
+		@Override
+		public long getLastSentSN() {
+			return this.mLastSentSN;
+		}
+
+		// Chunks are served by SN, so they are never waited for
+		@Override
+		public RecordroidReplayChunk takeReplayChunk(long sn, boolean mayWait)
+				throws IOException {
+			RecordroidReplayChunk chunk = makeChunk(sn);
+			if (chunk != null)
+				this.mLastSentSN = sn;
+			return chunk;
+		}
+
+		@Override
+		public void rewindReplayBuffer(long sn) {
+			if (sn <= this.mLastSentSN)
+				this.mLastSentSN = sn - 1;
+		}
+	}
+}
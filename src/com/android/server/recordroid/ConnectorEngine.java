@@ -0,0 +1,316 @@
+package com.android.server.recordroid;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+// Selector-based engine that drives any number of connections from one
+// thread. Each connection is a Handler: it is ticked when it is woken up or
+// when its deadline comes, and it is notified of readiness of its channels.
+// Handlers are called on the engine thread only, so they must never block:
+// work which may wait, e.g. listener callbacks, is handed to the callback
+// threads of the engine. They are a few threads shared by all handlers, so
+// the number of threads does not grow with connections.
+// A handler which throws is closed alone, and the others keep running.
+class ConnectorEngine {
+	private static final String THREAD_NAME = "ConnectorEngineThread";
+	private static final String CALLBACK_THREAD_NAME = "ConnectorCallbackThread";
+	private static final int NUM_CALLBACK_THREADS = 4;
+	private static ConnectorEngine sDefaultEngine = null;
+
+	interface Handler {
+		// Returns next deadline in ms(System.currentTimeMillis()) to be
+		// ticked, or Long.MAX_VALUE if none.
+		public long onTick(long nowMS);
+
+		// Channel registered by this handler is ready.
+		public void onReady(SelectionKey key);
+
+		// Unregistered or engine is stopped.
+		public void onClose();
+	}
+
+	private Selector mSelector;
+	private Worker mWorker;
+	private ExecutorService mCallbackExecutor;
+	private ArrayList<HandlerEntry> mEntries = new ArrayList<HandlerEntry>();
+	private ConcurrentLinkedQueue<Handler> mRegistered = new ConcurrentLinkedQueue<Handler>();
+	private ConcurrentLinkedQueue<Handler> mUnregistered = new ConcurrentLinkedQueue<Handler>();
+	private ConcurrentLinkedQueue<Handler> mWoken = new ConcurrentLinkedQueue<Handler>();
+	private volatile boolean mIsRunning;
+
+	private ConnectorEngine() throws IOException {
+		this.mSelector = Selector.open();
+		this.mIsRunning = true;
+		this.mCallbackExecutor = Executors.newFixedThreadPool(
+				NUM_CALLBACK_THREADS, new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable,
+								CALLBACK_THREAD_NAME);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.mWorker = new Worker();
+		this.mWorker.setDaemon(true);
+		this.mWorker.start();
+	}
+
+	public static ConnectorEngine start() throws IOException {
+		return new ConnectorEngine();
+	}
+
+	// Engine shared in this process
+	public static synchronized ConnectorEngine getDefault() throws IOException {
+		if (sDefaultEngine == null)
+			sDefaultEngine = start();
+		return sDefaultEngine;
+	}
+
+	public void stop() {
+		this.mIsRunning = false;
+		this.mSelector.wakeup();
+		try {
+			this.mWorker.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		this.mCallbackExecutor.shutdown();
+	}
+
+	public void register(Handler handler) {
+		this.mRegistered.add(handler);
+		this.mSelector.wakeup();
+	}
+
+	public void unregister(Handler handler) {
+		this.mUnregistered.add(handler);
+		this.mSelector.wakeup();
+	}
+
+	// Tick the handler as soon as possible. It can be called on any thread.
+	public void wakeup(Handler handler) {
+		this.mWoken.add(handler);
+		this.mSelector.wakeup();
+	}
+
+	// Run {callback} on a callback thread. It can be called on any thread.
+	// Callbacks run in no particular order, so a handler which needs them
+	// in order queues them itself (see USBConnector.ListenerQueue).
+	// Throws RejectedExecutionException if the engine is stopped.
+	public void execute(Runnable callback) {
+		this.mCallbackExecutor.execute(callback);
+	}
+
+	// Engine thread only
+	public SelectionKey registerChannel(SelectableChannel channel, int ops,
+			Handler handler) throws ClosedChannelException {
+		return channel.register(this.mSelector, ops, handler);
+	}
+
+	private HandlerEntry findEntry(Handler handler) {
+		for (HandlerEntry entry : this.mEntries) {
+			if (entry.handler == handler)
+				return entry;
+		}
+		return null;
+	}
+
+	class HandlerEntry {
+		public Handler handler;
+		public long deadlineMS;
+
+		public HandlerEntry(Handler handler) {
+			this.handler = handler;
+			this.deadlineMS = 0;
+		}
+	}
+
+	class Worker extends Thread {
+		public Worker() {
+			super(THREAD_NAME);
+		}
+
+		@Override
+		public void run() {
+			while (mIsRunning) {
+				this.updateHandlers();
+
+				// Wait for readiness until the nearest deadline
+				long nowMS = System.currentTimeMillis();
+				long nearestMS = Long.MAX_VALUE;
+				for (HandlerEntry entry : mEntries)
+					nearestMS = Math.min(nearestMS, entry.deadlineMS);
+				try {
+					if (nearestMS <= nowMS)
+						mSelector.selectNow();
+					else if (nearestMS == Long.MAX_VALUE)
+						mSelector.select();
+					else
+						mSelector.select(nearestMS - nowMS);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+
+				// Readiness
+				Iterator<SelectionKey> keys = mSelector.selectedKeys()
+						.iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isValid() == false)
+						continue;
+					Handler handler = (Handler) key.attachment();
+					try {
+						handler.onReady(key);
+					} catch (RuntimeException e) {
+						key.cancel();
+						this.failHandler(handler, e);
+					}
+				}
+
+				// Woken up or due handlers
+				Handler woken;
+				while ((woken = mWoken.poll()) != null) {
+					HandlerEntry entry = findEntry(woken);
+					if (entry != null)
+						entry.deadlineMS = 0;
+				}
+				nowMS = System.currentTimeMillis();
+				for (HandlerEntry entry : mEntries) {
+					if (entry.deadlineMS > nowMS)
+						continue;
+					try {
+						entry.deadlineMS = entry.handler.onTick(nowMS);
+					} catch (RuntimeException e) {
+						this.failHandler(entry.handler, e);
+					}
+				}
+			}
+
+			// Close all
+			for (HandlerEntry entry : mEntries)
+				this.closeHandler(entry.handler);
+			mEntries.clear();
+			try {
+				mSelector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		private void updateHandlers() {
+			Handler handler;
+			while ((handler = mRegistered.poll()) != null) {
+				if (findEntry(handler) == null)
+					mEntries.add(new HandlerEntry(handler));
+			}
+			while ((handler = mUnregistered.poll()) != null) {
+				HandlerEntry entry = findEntry(handler);
+				if (entry != null) {
+					mEntries.remove(entry);
+					this.closeHandler(handler);
+				}
+			}
+		}
+
+		// Broken handler is not ticked any more, and closed on next loop
+		private void failHandler(Handler handler, RuntimeException e) {
+			e.printStackTrace();
+			HandlerEntry entry = findEntry(handler);
+			if (entry != null)
+				entry.deadlineMS = Long.MAX_VALUE;
+			unregister(handler);
+		}
+
+		private void closeHandler(Handler handler) {
+			try {
+				handler.onClose();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
+
+// Growable direct buffer as an output stream, for encoding into channels.
+class ByteBufferOutputStream extends OutputStream {
+	private ByteBuffer mBuffer;
+
+	public ByteBufferOutputStream(int capacity) {
+		this.mBuffer = ByteBuffer.allocateDirect(capacity);
+	}
+
+	// Buffer in write mode; flip it to drain
+	public ByteBuffer getBuffer() {
+		return this.mBuffer;
+	}
+
+	public void reset() {
+		this.mBuffer.clear();
+	}
+
+	private void ensureRemaining(int length) {
+		if (this.mBuffer.remaining() >= length)
+			return;
+		int newCapacity = Math.max(this.mBuffer.capacity() * 2,
+				this.mBuffer.position() + length);
+		ByteBuffer newBuffer = ByteBuffer.allocateDirect(newCapacity);
+		this.mBuffer.flip();
+		newBuffer.put(this.mBuffer);
+		this.mBuffer = newBuffer;
+	}
+
+	@Override
+	public void write(int b) {
+		this.ensureRemaining(1);
+		this.mBuffer.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		this.ensureRemaining(len);
+		this.mBuffer.put(b, off, len);
+	}
+}
+
+// Reads remaining bytes of a buffer as an input stream, for decoding.
+class ByteBufferInputStream extends InputStream {
+	private ByteBuffer mBuffer;
+
+	public ByteBufferInputStream(ByteBuffer buffer) {
+		this.mBuffer = buffer;
+	}
+
+	@Override
+	public int read() {
+		if (this.mBuffer.hasRemaining() == false)
+			return -1;
+		return this.mBuffer.get() & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (this.mBuffer.hasRemaining() == false)
+			return -1;
+		len = Math.min(len, this.mBuffer.remaining());
+		this.mBuffer.get(b, off, len);
+		return len;
+	}
+
+	@Override
+	public int available() {
+		return this.mBuffer.remaining();
+	}
+}
@@ -0,0 +1,347 @@
+package com.android.server.recordroid;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Traffic counters and histograms of a USB connector.
+// They are updated by connector threads without locks (except the short
+// ring of recent round trips), and read at any time by getters or by the
+// periodic dump.
+// - sent/received: messages and bytes on the wire, per direction
+// - cycle: a polling cycle of client, or a frame served by server
+// - frame: an exchange of request and response
+// - connect: from connect() to the end of handshake
+// - encode/decode: (de)serialization of a frame
+// - rtt: from writing a request to decoding its response
+// - queue: send buffer length at the start of a cycle
+public class ConnectorMetrics {
+	private final AtomicLong mMessagesSent = new AtomicLong();
+	private final AtomicLong mMessagesReceived = new AtomicLong();
+	private final AtomicLong mBytesSent = new AtomicLong();
+	private final AtomicLong mBytesReceived = new AtomicLong();
+	private final AtomicLong mCycles = new AtomicLong();
+	private final AtomicLong mFrames = new AtomicLong();
+	private final AtomicLong mFailures = new AtomicLong();
+
+	// Round trip times of the last frames, as a ring
+	private static final int NUM_RECENT_ROUND_TRIPS = 16;
+	private final long[] mRecentRoundTripsUS = new long[NUM_RECENT_ROUND_TRIPS];
+	private long mNumRoundTrips = 0;
+
+	private final Histogram mConnectUS = new Histogram();
+	private final Histogram mEncodeUS = new Histogram();
+	private final Histogram mDecodeUS = new Histogram();
+	private final Histogram mRoundTripUS = new Histogram();
+	private final Histogram mQueueDepth = new Histogram();
+	private final Histogram mMessagesPerFrame = new Histogram();
+
+	private Dumper mDumper = null;
+
+	// Recorders
+	public void onCycle(int queueDepth) {
+		this.mCycles.incrementAndGet();
+		this.mQueueDepth.record(queueDepth);
+	}
+
+	public void onConnect(long connectUS) {
+		this.mConnectUS.record(connectUS);
+	}
+
+	public void onSent(int numMessages, long numBytes, long encodeUS) {
+		this.mMessagesSent.addAndGet(numMessages);
+		this.mBytesSent.addAndGet(numBytes);
+		this.mMessagesPerFrame.record(numMessages);
+		this.mEncodeUS.record(encodeUS);
+	}
+
+	public void onReceived(int numMessages, long numBytes, long decodeUS) {
+		this.mMessagesReceived.addAndGet(numMessages);
+		this.mBytesReceived.addAndGet(numBytes);
+		this.mDecodeUS.record(decodeUS);
+	}
+
+	// A request has been answered
+	public void onFrame(long roundTripUS) {
+		this.mFrames.incrementAndGet();
+		this.mRoundTripUS.record(roundTripUS);
+		synchronized (this.mRecentRoundTripsUS) {
+			int i = (int) (this.mNumRoundTrips++ % NUM_RECENT_ROUND_TRIPS);
+			this.mRecentRoundTripsUS[i] = roundTripUS;
+		}
+	}
+
+	public void onFailure() {
+		this.mFailures.incrementAndGet();
+	}
+
+	// Getters
+	public long getMessagesSent() {
+		return this.mMessagesSent.get();
+	}
+
+	public long getMessagesReceived() {
+		return this.mMessagesReceived.get();
+	}
+
+	public long getBytesSent() {
+		return this.mBytesSent.get();
+	}
+
+	public long getBytesReceived() {
+		return this.mBytesReceived.get();
+	}
+
+	public long getCycles() {
+		return this.mCycles.get();
+	}
+
+	public long getFrames() {
+		return this.mFrames.get();
+	}
+
+	public long getFailures() {
+		return this.mFailures.get();
+	}
+
+	// Minimum round trip time of the last frames, or 0 if nothing is
+	// answered yet. Transfer time of large frames is left out of it, so it
+	// stands for latency of the link itself.
+	public long getRecentMinRoundTripUS() {
+		synchronized (this.mRecentRoundTripsUS) {
+			int numRecent = (int) Math.min(this.mNumRoundTrips,
+					NUM_RECENT_ROUND_TRIPS);
+			if (numRecent == 0)
+				return 0;
+			long minUS = Long.MAX_VALUE;
+			for (int i = 0; i < numRecent; i++)
+				minUS = Math.min(minUS, this.mRecentRoundTripsUS[i]);
+			return minUS;
+		}
+	}
+
+	public Histogram getConnectUS() {
+		return this.mConnectUS;
+	}
+
+	public Histogram getEncodeUS() {
+		return this.mEncodeUS;
+	}
+
+	public Histogram getDecodeUS() {
+		return this.mDecodeUS;
+	}
+
+	public Histogram getRoundTripUS() {
+		return this.mRoundTripUS;
+	}
+
+	public Histogram getQueueDepth() {
+		return this.mQueueDepth;
+	}
+
+	public Histogram getMessagesPerFrame() {
+		return this.mMessagesPerFrame;
+	}
+
+	@Override
+	public String toString() {
+		long cycles = Math.max(this.getCycles(), 1);
+		return "sent " + this.getMessagesSent() + " msgs/"
+				+ this.getBytesSent() + " bytes, received "
+				+ this.getMessagesReceived() + " msgs/"
+				+ this.getBytesReceived() + " bytes, cycles "
+				+ this.getCycles() + ", frames " + this.getFrames() + " ("
+				+ String.format("%.2f", (double) this.getFrames() / cycles)
+				+ "/cycle), failures " + this.getFailures()
+				+ "\n  connect(us) " + this.mConnectUS + "\n  encode(us) "
+				+ this.mEncodeUS + "\n  decode(us) " + this.mDecodeUS
+				+ "\n  rtt(us) " + this.mRoundTripUS + " recent min="
+				+ this.getRecentMinRoundTripUS() + "\n  queue "
+				+ this.mQueueDepth + "\n  msgs/frame "
+				+ this.mMessagesPerFrame;
+	}
+
+	// Print metrics every {intervalMS} until stopDump() is called.
+	public synchronized void startDump(String label, long intervalMS,
+			PrintStream out) {
+		this.stopDump();
+		if (intervalMS <= 0)
+			return;
+		this.mDumper = new Dumper(label, intervalMS, out);
+		this.mDumper.start();
+	}
+
+	public synchronized void stopDump() {
+		if (this.mDumper != null) {
+			this.mDumper.kill();
+			this.mDumper = null;
+		}
+	}
+
+	class Dumper extends Thread {
+		private static final String THREAD_NAME = "ConnectorMetricsDumper";
+		private String mLabel;
+		private long mIntervalMS;
+		private PrintStream mOut;
+		private volatile boolean mIsRunning = true;
+
+		public Dumper(String label, long intervalMS, PrintStream out) {
+			super(THREAD_NAME);
+			this.setDaemon(true);
+			this.mLabel = label;
+			this.mIntervalMS = intervalMS;
+			this.mOut = out;
+		}
+
+		public void kill() {
+			this.mIsRunning = false;
+			this.interrupt();
+		}
+
+		@Override
+		public void run() {
+			while (this.mIsRunning) {
+				try {
+					Thread.sleep(this.mIntervalMS);
+				} catch (InterruptedException e) {
+					// Killed
+				}
+				if (this.mIsRunning)
+					this.mOut.println("[" + this.mLabel + "] "
+							+ ConnectorMetrics.this);
+			}
+		}
+	}
+}
+
+// Log2-bucketed histogram of non-negative values.
+// Bucket i holds values in [2^(i-1), 2^i), and bucket 0 holds 0.
+// Percentiles are reported as the upper bound of their bucket.
+class Histogram {
+	private static final int NUM_BUCKETS = 64;
+
+	private final AtomicLongArray mBuckets = new AtomicLongArray(NUM_BUCKETS);
+	private final AtomicLong mCount = new AtomicLong();
+	private final AtomicLong mSum = new AtomicLong();
+	private final AtomicLong mMax = new AtomicLong();
+
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		this.mBuckets.incrementAndGet(NUM_BUCKETS
+				- Long.numberOfLeadingZeros(value));
+		this.mCount.incrementAndGet();
+		this.mSum.addAndGet(value);
+		long max;
+		while ((max = this.mMax.get()) < value
+				&& this.mMax.compareAndSet(max, value) == false)
+			;
+	}
+
+	public long getCount() {
+		return this.mCount.get();
+	}
+
+	public long getMax() {
+		return this.mMax.get();
+	}
+
+	public double getMean() {
+		long count = this.getCount();
+		return (count == 0) ? 0 : (double) this.mSum.get() / count;
+	}
+
+	// Upper bound of the bucket that holds {percent}% of values
+	public long getPercentile(double percent) {
+		long count = this.getCount();
+		if (count == 0)
+			return 0;
+		long rank = (long) Math.ceil(count * percent / 100);
+		long accumulated = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			accumulated += this.mBuckets.get(i);
+			if (accumulated >= rank)
+				return Math.min((i == 0) ? 0 : (1L << i) - 1, this.getMax());
+		}
+		return this.getMax();
+	}
+
+	@Override
+	public String toString() {
+		return "n=" + this.getCount() + " mean="
+				+ String.format("%.1f", this.getMean()) + " p50<="
+				+ this.getPercentile(50) + " p90<=" + this.getPercentile(90)
+				+ " p99<=" + this.getPercentile(99) + " max=" + this.getMax();
+	}
+}
+
+// Streams counting bytes that pass through them
+class CountingInputStream extends FilterInputStream {
+	private long mCount = 0;
+
+	public CountingInputStream(InputStream in) {
+		super(in);
+	}
+
+	public long getCount() {
+		return this.mCount;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b >= 0)
+			this.mCount++;
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int numRead = super.read(b, off, len);
+		if (numRead > 0)
+			this.mCount += numRead;
+		return numRead;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long numSkipped = super.skip(n);
+		this.mCount += numSkipped;
+		return numSkipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+}
+
+class CountingOutputStream extends FilterOutputStream {
+	private long mCount = 0;
+
+	public CountingOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	public long getCount() {
+		return this.mCount;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		this.out.write(b);
+		this.mCount++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		this.out.write(b, off, len);
+		this.mCount += len;
+	}
+}
@@ -0,0 +1,374 @@
+package com.android.server.recordroid;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.Semaphore;
+
+// Local control endpoint, so that scripts and schedulers can drive a
+// controller as its buttons do.
+// Line protocol on a loopback port:
+// - request: command + optional argument, e.g. "replay-on /tmp/trace.rdz"
+// - response: "OK" + key=value pairs, or "ERROR " + reason
+// Loopback is open to every local user, so the first request must be
+// "auth <token>" with the token in the token file. The file is made with
+// a random token, readable by its owner only, if it does not exist.
+// A connection is closed if it is idle for IDLE_TIMEOUT_MS, or if a line
+// is longer than MAX_LINE_LENGTH.
+// Commands:
+// - state: controller state, service state, record and response file
+// - metrics: traffic of the USB connector
+// - record-on [<trace>], record-off
+// - replay-on [<trace>], replay-off, skip-waiting
+// - response <file>|none: response file of the next replay
+// - quit
+// Like a click, a command only requests a change. Its progress is seen by
+// polling 'state'.
+class ControlServer {
+	private static final String THREAD_NAME = "ControlServerThread";
+	private static final int BACKLOG = 8;
+	// Clients beyond it wait in the backlog until a connection ends
+	private static final int MAX_CONNECTIONS = 8;
+	// Pause after a failed accept, e.g. out of file descriptors
+	private static final long ACCEPT_RETRY_MS = 500;
+	private static final int IDLE_TIMEOUT_MS = 30000;
+	private static final int MAX_LINE_LENGTH = 4096;
+	private static final int TOKEN_SIZE = 16;
+
+	private ServerSocket mServerSocket;
+	private ControlHandler mHandler;
+	private Semaphore mConnectionSlots;
+	private byte[] mToken;
+
+	private ControlServer(ServerSocket serverSocket, String token,
+			ControlHandler handler) throws IOException {
+		this.mServerSocket = serverSocket;
+		this.mToken = token.getBytes("UTF-8");
+		this.mHandler = handler;
+		this.mConnectionSlots = new Semaphore(MAX_CONNECTIONS);
+	}
+
+	// Throws IOException if the token file cannot be read or made
+	public static ControlServer start(int port, File tokenFile,
+			ControlHandler handler) throws IOException {
+		String token = loadToken(tokenFile);
+		ServerSocket serverSocket = new ServerSocket(port, BACKLOG,
+				InetAddress.getLoopbackAddress());
+		final ControlServer server = new ControlServer(serverSocket, token,
+				handler);
+		Thread acceptor = new Thread(THREAD_NAME) {
+			public void run() {
+				server.accept();
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return server;
+	}
+
+	public int getPort() {
+		return this.mServerSocket.getLocalPort();
+	}
+
+	public void stop() {
+		try {
+			this.mServerSocket.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+	}
+
+	private void accept() {
+		while (this.mServerSocket.isClosed() == false) {
+			this.mConnectionSlots.acquireUninterruptibly();
+			try {
+				final Socket socket = this.mServerSocket.accept();
+				Thread connection = new Thread(THREAD_NAME) {
+					public void run() {
+						try {
+							serve(socket);
+						} finally {
+							mConnectionSlots.release();
+						}
+					}
+				};
+				connection.setDaemon(true);
+				connection.start();
+			} catch (IOException e) {
+				this.mConnectionSlots.release();
+				if (this.mServerSocket.isClosed())
+					return; // Stopped
+				System.err.println("Control accept failed" + e);
+				try {
+					Thread.sleep(ACCEPT_RETRY_MS);
+				} catch (InterruptedException ie) {
+					return;
+				}
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		try {
+			socket.setSoTimeout(IDLE_TIMEOUT_MS);
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					socket.getInputStream(), "UTF-8"));
+			Writer out = new OutputStreamWriter(socket.getOutputStream(),
+					"UTF-8");
+			boolean isAuthorized = false;
+			String line;
+			while ((line = readLine(in)) != null) {
+				line = line.trim();
+				if (line.equals("quit"))
+					break;
+				if (line.isEmpty())
+					continue;
+				if (isAuthorized == false) {
+					isAuthorized = this.isValidAuth(line);
+					out.write(isAuthorized ? "OK\n" : "ERROR not authorized\n");
+					out.flush();
+					if (isAuthorized == false)
+						break;
+					continue;
+				}
+				out.write(this.handle(line) + "\n");
+				out.flush();
+			}
+		} catch (SocketTimeoutException e) {
+			// Idle client
+		} catch (IOException e) {
+			// Client is gone, or line is too long
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+
+	// Line without its terminator, or null at end of stream.
+	// Throws IOException if it is longer than MAX_LINE_LENGTH.
+	private static String readLine(Reader in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c < 0)
+				return (line.length() > 0) ? line.toString() : null;
+			if (line.length() >= MAX_LINE_LENGTH)
+				throw new IOException("Line is too long");
+			line.append((char) c);
+		}
+		return line.toString();
+	}
+
+	private boolean isValidAuth(String line) throws IOException {
+		if (line.startsWith("auth ") == false)
+			return false;
+		byte[] token = line.substring(5).trim().getBytes("UTF-8");
+		return MessageDigest.isEqual(token, this.mToken);
+	}
+
+	// Token in the first line of {tokenFile}. A new file is made with a
+	// random token, readable and writable by its owner only.
+	private static String loadToken(File tokenFile) throws IOException {
+		if (tokenFile.createNewFile()) {
+			tokenFile.setReadable(false, false);
+			tokenFile.setWritable(false, false);
+			if (tokenFile.setReadable(true, true) == false
+					|| tokenFile.setWritable(true, true) == false) {
+				tokenFile.delete();
+				throw new IOException("Cannot restrict "
+						+ tokenFile.getAbsolutePath());
+			}
+			byte[] random = new byte[TOKEN_SIZE];
+			new SecureRandom().nextBytes(random);
+			StringBuilder token = new StringBuilder();
+			for (byte b : random)
+				token.append(String.format("%02x", b & 0xff));
+			OutputStream out = new FileOutputStream(tokenFile);
+			try {
+				out.write((token + "\n").getBytes("UTF-8"));
+			} finally {
+				out.close();
+			}
+		}
+
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(tokenFile), "UTF-8"));
+		try {
+			String token = in.readLine();
+			if (token == null || token.trim().isEmpty())
+				throw new IOException("No token in "
+						+ tokenFile.getAbsolutePath());
+			return token.trim();
+		} finally {
+			in.close();
+		}
+	}
+
+	// Response line to a request line
+	String handle(String line) {
+		String command = line;
+		String argument = null;
+		int space = line.indexOf(' ');
+		if (space > 0) {
+			command = line.substring(0, space);
+			argument = line.substring(space + 1).trim();
+		}
+
+		try {
+			if (command.equals("state")) {
+				return "OK controller="
+						+ getControllerStateName(this.mHandler
+								.getControllerStateType()) + " service="
+						+ getServiceStateName(this.mHandler
+								.getServiceStateType()) + " record="
+						+ getPath(this.mHandler.getRecordFile())
+						+ " response="
+						+ getPath(this.mHandler.getResponseFile());
+			} else if (command.equals("metrics")) {
+				return "OK " + makeMetrics(this.mHandler.getMetrics());
+			} else if (command.equals("record-on")) {
+				this.mHandler.onControlRecordOn(getFile(argument));
+			} else if (command.equals("record-off")) {
+				this.mHandler.onControlRecordOff();
+			} else if (command.equals("replay-on")) {
+				this.mHandler.onControlReplayOn(getFile(argument));
+			} else if (command.equals("replay-off")) {
+				this.mHandler.onControlReplayOff();
+			} else if (command.equals("skip-waiting")) {
+				this.mHandler.onControlSkipWaiting();
+			} else if (command.equals("response")) {
+				if (argument == null)
+					return "ERROR no response file";
+				this.mHandler.onControlResponseFile(argument.equals("none")
+						? null : new File(argument));
+			} else {
+				return "ERROR unknown command: " + command;
+			}
+		} catch (IllegalStateException e) {
+			return "ERROR " + e.getMessage();
+		}
+		return "OK";
+	}
+
+	private static File getFile(String path) {
+		return (path == null || path.isEmpty()) ? null : new File(path);
+	}
+
+	private static String getPath(File file) {
+		return (file == null) ? "none" : file.getAbsolutePath();
+	}
+
+	private static String makeMetrics(ConnectorMetrics metrics) {
+		if (metrics == null)
+			return "";
+		Histogram roundTripUS = metrics.getRoundTripUS();
+		return "sent_msgs=" + metrics.getMessagesSent() + " sent_bytes="
+				+ metrics.getBytesSent() + " received_msgs="
+				+ metrics.getMessagesReceived() + " received_bytes="
+				+ metrics.getBytesReceived() + " frames="
+				+ metrics.getFrames() + " failures=" + metrics.getFailures()
+				+ " rtt_us_p50=" + roundTripUS.getPercentile(50)
+				+ " rtt_us_p99=" + roundTripUS.getPercentile(99)
+				+ " rtt_us_recent_min=" + metrics.getRecentMinRoundTripUS()
+				+ " queue_p99=" + metrics.getQueueDepth().getPercentile(99);
+	}
+
+	static String getControllerStateName(int controllerStateType) {
+		switch (controllerStateType) {
+		case ControllerState.Type.INITIAL:
+			return "INITIAL";
+		case ControllerState.Type.CONNECTED:
+			return "CONNECTED";
+		case ControllerState.Type.DISCONNECTED:
+			return "DISCONNECTED";
+		case ControllerState.Type.WAITING_FOR_STATE_CHANGE:
+			return "WAITING_FOR_STATE_CHANGE";
+		}
+		return "UNKNOWN";
+	}
+
+	// -1 stands for no state received yet
+	static String getServiceStateName(int serviceStateType) {
+		switch (serviceStateType) {
+		case -1:
+			return "NONE";
+		case RecordroidServiceState.ServiceStateType.RECORDING:
+			return "RECORDING";
+		case RecordroidServiceState.ServiceStateType.PREPARING_TO_REPLAY:
+			return "PREPARING_TO_REPLAY";
+		case RecordroidServiceState.ServiceStateType.REPLAYING:
+			return "REPLAYING";
+		case RecordroidServiceState.ServiceStateType.IDLE:
+			return "IDLE";
+		}
+		return "UNKNOWN";
+	}
+
+	// Throws IllegalStateException unless target is connected and in one of
+	// given service states, as buttons are enabled.
+	static void requireServiceState(ControlHandler handler,
+			int... serviceStateTypes) {
+		int controllerStateType = handler.getControllerStateType();
+		if (controllerStateType == ControllerState.Type.INITIAL
+				|| controllerStateType == ControllerState.Type.DISCONNECTED)
+			throw new IllegalStateException("target is not connected");
+		int serviceStateType = handler.getServiceStateType();
+		for (int allowedStateType : serviceStateTypes) {
+			if (allowedStateType != serviceStateType)
+				continue;
+			// Idle target may be about to change by the last command
+			if (serviceStateType == RecordroidServiceState.ServiceStateType.IDLE
+					&& controllerStateType == ControllerState.Type.WAITING_FOR_STATE_CHANGE)
+				throw new IllegalStateException("waiting for state change");
+			return;
+		}
+		throw new IllegalStateException("target is "
+				+ getServiceStateName(serviceStateType));
+	}
+}
+
+// Controller driven by ControlServer. Getters are called from connection
+// threads at any time. Commands throw IllegalStateException with the
+// reason if they cannot be done now.
+interface ControlHandler {
+	public int getControllerStateType();
+
+	// Type of the last received service state, or -1
+	public int getServiceStateType();
+
+	public File getRecordFile();
+
+	public File getResponseFile();
+
+	public ConnectorMetrics getMetrics();
+
+	// {traceFile} may be null to use the present record file
+	public void onControlRecordOn(File traceFile);
+
+	public void onControlRecordOff();
+
+	public void onControlReplayOn(File traceFile);
+
+	public void onControlReplayOff();
+
+	public void onControlSkipWaiting();
+
+	// null disables response file
+	public void onControlResponseFile(File responseFile);
+}
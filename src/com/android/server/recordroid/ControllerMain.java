@@ -13,6 +13,12 @@ public class ControllerMain {
 	private static final String LOCK_FILE_NAME = ".lock";
 
 	public static void main(String[] args) {
+		// Any argument selects headless mode, which never touches AWT
+		if (args.length > 0) {
+			System.exit(runHeadless(args));
+			return;
+		}
+
 		boolean success = lockInstance(LOCK_FILE_NAME);
 		if (success) {
 			openMainFrame();
@@ -23,6 +29,19 @@ public class ControllerMain {
 		}
 	}
 
+	private static int runHeadless(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		HeadlessController controller = HeadlessController.make(args,
+				DEFAULT_TARGET_PORT);
+		if (controller == null)
+			return HeadlessController.EXIT_USAGE;
+		if (lockInstance(LOCK_FILE_NAME) == false) {
+			System.err.println("Recordroid Controller is already running!");
+			return HeadlessController.EXIT_ALREADY_RUNNING;
+		}
+		return controller.run();
+	}
+
 	private static void openMainFrame() {
 		try {
 			UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
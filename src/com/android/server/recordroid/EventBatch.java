@@ -0,0 +1,97 @@
+package com.android.server.recordroid;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Batch of trace events stored column by column.
+// A chunk of events is kept in a few primitive arrays instead of one object
+// per event. Platform events keep (type, responseTime, priv, secondPriv) in
+// (deviceNum, typeVal, codeVal, value) as in trace records.
+class EventBatch {
+	public byte[] kinds;
+	public long[] timestampsUS;
+	public int[] deviceNums;
+	public int[] typeVals;
+	public int[] codeVals;
+	public int[] values;
+	private int mSize;
+
+	public EventBatch(int capacity) {
+		capacity = Math.max(capacity, 16);
+		this.kinds = new byte[capacity];
+		this.timestampsUS = new long[capacity];
+		this.deviceNums = new int[capacity];
+		this.typeVals = new int[capacity];
+		this.codeVals = new int[capacity];
+		this.values = new int[capacity];
+		this.mSize = 0;
+	}
+
+	public int size() {
+		return this.mSize;
+	}
+
+	public void clear() {
+		this.mSize = 0;
+	}
+
+	public void add(byte kind, long timestampUS, int deviceNum, int typeVal,
+			int codeVal, int value) {
+		if (this.mSize == this.kinds.length)
+			this.grow();
+		int i = this.mSize++;
+		this.kinds[i] = kind;
+		this.timestampsUS[i] = timestampUS;
+		this.deviceNums[i] = deviceNum;
+		this.typeVals[i] = typeVal;
+		this.codeVals[i] = codeVal;
+		this.values[i] = value;
+	}
+
+	// Add the present record of given cursor
+	public void add(TraceCursor cursor) {
+		this.add(cursor.kind, cursor.timestampUS, cursor.deviceNum,
+				cursor.typeVal, cursor.codeVal, cursor.value);
+	}
+
+	private void grow() {
+		int newLength = this.kinds.length * 2;
+		this.kinds = Arrays.copyOf(this.kinds, newLength);
+		this.timestampsUS = Arrays.copyOf(this.timestampsUS, newLength);
+		this.deviceNums = Arrays.copyOf(this.deviceNums, newLength);
+		this.typeVals = Arrays.copyOf(this.typeVals, newLength);
+		this.codeVals = Arrays.copyOf(this.codeVals, newLength);
+		this.values = Arrays.copyOf(this.values, newLength);
+	}
+
+	// Pack all events in binary trace record layout
+	public byte[] toRecords() {
+		ByteBuffer records = ByteBuffer.allocate(this.mSize
+				* TraceFormat.BINARY_RECORD_SIZE);
+		for (int i = 0; i < this.mSize; i++) {
+			records.put(this.kinds[i]);
+			records.putLong(this.timestampsUS[i]);
+			records.putInt(this.deviceNums[i]);
+			records.putInt(this.typeVals[i]);
+			records.putInt(this.codeVals[i]);
+			records.putInt(this.values[i]);
+		}
+		return records.array();
+	}
+
+	// Make a message object of i-th event, only when it should be sent as an
+	// object.
+	public RecordroidEvent toEvent(int i) {
+		switch (this.kinds[i]) {
+		case TraceFormat.KIND_KERNEL_INPUT:
+			return RecordroidKernelInputEvent.make(this.timestampsUS[i],
+					this.deviceNums[i], this.typeVals[i], this.codeVals[i],
+					this.values[i]);
+		case TraceFormat.KIND_PLATFORM:
+			return RecordroidPlatformEvent.make(this.timestampsUS[i],
+					this.deviceNums[i], this.typeVals[i], this.codeVals[i],
+					this.values[i]);
+		}
+		return null;
+	}
+}
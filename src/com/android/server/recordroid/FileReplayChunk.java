@@ -0,0 +1,122 @@
+package com.android.server.recordroid;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+
+// Host only: replay chunk whose records are a region of a binary trace file.
+// Session writer of connector engine sends the region straight from the
+// file to the socket. Other writers load the records first.
+// The chunk holds a reference to the file until USBConnector releases it:
+// when it is sent, refused or dropped.
+class FileReplayChunk extends RecordroidReplayChunk {
+	private SharedFileChannel mChannel;
+	private long mPosition;
+	private int mLength;
+	private boolean mIsReleased;
+
+	private FileReplayChunk() {
+	}
+
+	// Static constructors
+	public static FileReplayChunk make(long sn, int numEvents,
+			boolean isNextExists, SharedFileChannel channel, long position,
+			int length) {
+		FileReplayChunk newChunk = new FileReplayChunk();
+		newChunk.sn = sn;
+		newChunk.numEvents = numEvents;
+		newChunk.isNextExists = isNextExists;
+		newChunk.records = null;
+		channel.retain();
+		newChunk.mChannel = channel;
+		newChunk.mPosition = position;
+		newChunk.mLength = length;
+		newChunk.mIsReleased = false;
+		return newChunk;
+	}
+
+	// Release file chunks of {messages}
+	public static void release(ArrayList<RecordroidMessage> messages) {
+		if (messages == null)
+			return;
+		for (RecordroidMessage message : messages)
+			release(message);
+	}
+
+	public static void release(RecordroidMessage message) {
+		if (message instanceof FileReplayChunk == false)
+			return;
+		FileReplayChunk chunk = (FileReplayChunk) message;
+		synchronized (chunk) {
+			if (chunk.mIsReleased)
+				return;
+			chunk.mIsReleased = true;
+		}
+		try {
+			chunk.mChannel.release();
+		} catch (IOException e) {
+			System.err.println("File close failed" + e);
+		}
+	}
+
+	public int getLength() {
+		return this.mLength;
+	}
+
+	public void loadRecords() throws IOException {
+		if (this.records != null)
+			return;
+		ByteBuffer buffer = ByteBuffer.allocate(this.mLength);
+		while (buffer.hasRemaining()) {
+			if (this.mChannel.getChannel().read(buffer,
+					this.mPosition + buffer.position()) < 0)
+				throw new EOFException("Trace file is cut");
+		}
+		this.records = buffer.array();
+	}
+
+	// Send records from {offset} of the region, as many as {target} takes
+	// now. Returns the number of sent bytes.
+	public long transferTo(long offset, WritableByteChannel target)
+			throws IOException {
+		FileChannel channel = this.mChannel.getChannel();
+		long numSent = channel.transferTo(this.mPosition + offset,
+				this.mLength - offset, target);
+		if (numSent == 0 && this.mPosition + offset >= channel.size())
+			throw new EOFException("Trace file is cut");
+		return numSent;
+	}
+
+	// Implements Serializable
+	private static final long serialVersionUID = 2791564086134522709L;
+}
+
+// File channel shared by its opener and the chunks made from it. Each of
+// them holds a reference, and the channel is closed with the last one, so
+// that closing a trace does not cut chunks still queued for sending.
+class SharedFileChannel {
+	private FileChannel mChannel;
+	private int mNumRefs;
+
+	public SharedFileChannel(FileChannel channel) {
+		this.mChannel = channel;
+		this.mNumRefs = 1;
+	}
+
+	public FileChannel getChannel() {
+		return this.mChannel;
+	}
+
+	public synchronized void retain() {
+		this.mNumRefs++;
+	}
+
+	public synchronized void release() throws IOException {
+		this.mNumRefs--;
+		if (this.mNumRefs == 0)
+			this.mChannel.close();
+	}
+}
@@ -0,0 +1,677 @@
+package com.android.server.recordroid;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.TreeSet;
+import java.util.prefs.Preferences;
+
+// Fleet mode: record and replay on every device attached to this host.
+// Devices are told apart by serial. Each of them gets its own local port
+// (forwarded with 'adb -s <serial> forward'), connector and session, and
+// all connectors are driven by the shared connector engine.
+// Replay chunks come from one ChunkCache shared by all sessions, so a trace
+// is read and packed once however many devices replay it.
+public class FleetController implements ADBDeviceListener {
+	private Preferences mPrefs;
+	private int mTargetPort;
+	private ADBConnector mADBConnector;
+
+	// Guarded by this
+	private LinkedHashMap<String, DeviceSession> mSessions = new LinkedHashMap<String, DeviceSession>();
+	private TreeSet<Integer> mUsedPorts = new TreeSet<Integer>();
+	private ChunkCache mChunkCache = null;
+	private ReplayBarrier mReplayBarrier = null;
+
+	public FleetController(Preferences prefs, int targetPort) {
+		this.mPrefs = prefs;
+		this.mTargetPort = targetPort;
+	}
+
+	public void start() {
+		this.mADBConnector = ADBConnector.get(this.mTargetPort, this.mPrefs
+				.get(PreferenceConstants.KEY_ADB_SERVER_HOST,
+						PreferenceConstants.INIT_ADB_SERVER_HOST), this.mPrefs
+				.getInt(PreferenceConstants.KEY_ADB_SERVER_PORT,
+						PreferenceConstants.INIT_ADB_SERVER_PORT));
+		this.mADBConnector.addDeviceListener(this);
+		this.mADBConnector.start();
+	}
+
+	public void stop() {
+		if (this.mADBConnector != null) {
+			this.mADBConnector.kill();
+			this.mADBConnector = null;
+		}
+		synchronized (this) {
+			for (DeviceSession session : this.mSessions.values())
+				session.stop();
+			this.mSessions.clear();
+			this.mUsedPorts.clear();
+			this.cancelReplayBarrier();
+			this.closeChunkCache();
+		}
+	}
+
+	public synchronized ArrayList<DeviceSession> getSessions() {
+		return new ArrayList<DeviceSession>(this.mSessions.values());
+	}
+
+	// Each device records to its own file: serial is inserted into the name
+	public synchronized void startRecording(File recordFile) {
+		for (DeviceSession session : this.mSessions.values())
+			session.startRecording(getDeviceFile(recordFile,
+					session.getSerial()));
+	}
+
+	public synchronized void stopRecording() {
+		for (DeviceSession session : this.mSessions.values())
+			session.stopRecording();
+	}
+
+	// All devices replay the same trace. {responseFile} may be null.
+	// Each device starts as soon as its first chunk is preloaded.
+	public synchronized void startReplaying(File traceFile, File responseFile)
+			throws FileNotFoundException, IOException {
+		this.startReplaying(traceFile, responseFile, false);
+	}
+
+	// Same as startReplaying(), but all devices start at the same moment
+	// after all of them are preloaded.
+	public synchronized void startSynchronizedReplaying(File traceFile,
+			File responseFile) throws FileNotFoundException, IOException {
+		this.startReplaying(traceFile, responseFile, true);
+	}
+
+	private void startReplaying(File traceFile, File responseFile,
+			boolean isSynchronized) throws FileNotFoundException, IOException {
+		this.cancelReplayBarrier();
+		this.closeChunkCache();
+		this.mChunkCache = ChunkCache.open(traceFile, this.mPrefs);
+		ArrayList<DeviceSession> sessions = this.getSessions();
+		if (isSynchronized) {
+			int preloadChunks = Math.min(this.mPrefs.getInt(
+					PreferenceConstants.KEY_BARRIER_PRELOAD_CHUNKS,
+					PreferenceConstants.INIT_BARRIER_PRELOAD_CHUNKS),
+					this.mChunkCache.getNumChunks());
+			this.mReplayBarrier = new ReplayBarrier(sessions,
+					Math.max(preloadChunks, 1), this.mPrefs.getInt(
+							PreferenceConstants.KEY_BARRIER_TIMEOUT_MS,
+							PreferenceConstants.INIT_BARRIER_TIMEOUT_MS),
+					this.mPrefs.getInt(
+							PreferenceConstants.KEY_BARRIER_START_MARGIN_MS,
+							PreferenceConstants.INIT_BARRIER_START_MARGIN_MS));
+		}
+		for (DeviceSession session : sessions) {
+			File deviceResponseFile = (responseFile == null) ? null
+					: getDeviceFile(responseFile, session.getSerial());
+			session.startReplaying(this.mChunkCache, deviceResponseFile,
+					this.mReplayBarrier);
+		}
+		if (this.mReplayBarrier != null)
+			this.mReplayBarrier.start();
+	}
+
+	public synchronized void stopReplaying() {
+		this.cancelReplayBarrier();
+		for (DeviceSession session : this.mSessions.values())
+			session.stopReplaying();
+		this.closeChunkCache();
+	}
+
+	public synchronized void skipWaitingInReplay() {
+		for (DeviceSession session : this.mSessions.values())
+			session.skipWaitingInReplay();
+	}
+
+	private void cancelReplayBarrier() {
+		if (this.mReplayBarrier == null)
+			return;
+		this.mReplayBarrier.cancel();
+		this.mReplayBarrier = null;
+	}
+
+	private void closeChunkCache() {
+		if (this.mChunkCache == null)
+			return;
+		try {
+			this.mChunkCache.close();
+		} catch (IOException e) {
+			System.err.println("Chunk cache close failed" + e);
+		}
+		this.mChunkCache = null;
+	}
+
+	// Lowest local port from base port that is not forwarded yet
+	private int allocatePort() {
+		int port = this.mPrefs.getInt(PreferenceConstants.KEY_FLEET_BASE_PORT,
+				PreferenceConstants.INIT_FLEET_BASE_PORT);
+		while (this.mUsedPorts.contains(port))
+			port++;
+		this.mUsedPorts.add(port);
+		return port;
+	}
+
+	// <name>-<serial>.<extension>
+	static File getDeviceFile(File file, String serial) {
+		String name = file.getName();
+		String tag = serial.replaceAll("[^A-Za-z0-9._-]", "_");
+		int dot = name.lastIndexOf('.');
+		String deviceName = (dot > 0) ? name.substring(0, dot) + "-" + tag
+				+ name.substring(dot) : name + "-" + tag;
+		return new File(file.getParentFile(), deviceName);
+	}
+
+	// Implements ADBDeviceListener
+	@Override
+	public synchronized void onADBDeviceAttached(String serial) {
+		ADBConnector adbConnector = this.mADBConnector;
+		if (adbConnector == null || this.mSessions.containsKey(serial))
+			return;
+		DeviceSession session = new DeviceSession(serial,
+				this.allocatePort(), this.mPrefs);
+		try {
+			session.start(adbConnector, this.mTargetPort);
+		} catch (IOException e) {
+			System.err.println("Cannot forward port to " + serial + ": " + e);
+			this.mUsedPorts.remove(session.getLocalPort());
+			return;
+		}
+		this.mSessions.put(serial, session);
+	}
+
+	@Override
+	public synchronized void onADBDeviceDetached(String serial) {
+		DeviceSession session = this.mSessions.remove(serial);
+		if (session == null)
+			return;
+		session.stop();
+		this.mUsedPorts.remove(session.getLocalPort());
+	}
+}
+
+// Connector and record/replay state of a device in fleet.
+// It follows the target service state as MainFrameController does, but
+// keeps its own replay progress over a shared chunk cache.
+class DeviceSession implements USBMessageListener,
+		ServiceStateMirror.Owner {
+	private static final int USB_CONNECTOR_SLEEP_MS = 500;
+
+	private String mSerial;
+	private int mLocalPort;
+	private Preferences mPrefs;
+	private ADBConnector mADBConnector = null;
+	private USBConnector mUSBConnector;
+
+	private ControllerState mControllerState = new ControllerState(
+			ControllerState.Type.INITIAL);
+	private ServiceStateMirror mServiceStateMirror;
+
+	// Recording
+	private TraceFile mRecordFile = null;
+	private boolean mShouldCloseRecordFile = false;
+
+	// Replaying
+	private ServiceStateMirror.ChunkSource mChunkSource = null;
+	private ReplayBarrier mReplayBarrier = null; // until released
+	private ResponseFile mResponseFile = null;
+	private boolean mShouldCloseResponseFile = false;
+	private int mNumReplaysDone = 0;
+	private boolean mIsReadFailed = false; // of the last replay
+
+	public DeviceSession(String serial, int localPort, Preferences prefs) {
+		this.mSerial = serial;
+		this.mLocalPort = localPort;
+		this.mPrefs = prefs;
+
+		// Connector is driven by the shared connector engine if possible
+		try {
+			this.mUSBConnector = USBConnector.client(
+					ConnectorEngine.getDefault(), localPort,
+					USB_CONNECTOR_SLEEP_MS);
+		} catch (IOException e) {
+			e.printStackTrace();
+			this.mUSBConnector = USBConnector.client(localPort,
+					USB_CONNECTOR_SLEEP_MS);
+		}
+		this.mUSBConnector.addListener(this);
+		this.mServiceStateMirror = new ServiceStateMirror(this,
+				this.mUSBConnector);
+	}
+
+	public String getSerial() {
+		return this.mSerial;
+	}
+
+	public int getLocalPort() {
+		return this.mLocalPort;
+	}
+
+	public ConnectorMetrics getMetrics() {
+		return this.mUSBConnector.getMetrics();
+	}
+
+	public synchronized int getControllerStateType() {
+		return this.mControllerState.getType();
+	}
+
+	// Type of the last received service state, or -1
+	public synchronized int getServiceStateType() {
+		return this.mServiceStateMirror.getServiceStateType();
+	}
+
+	public synchronized boolean isRecording() {
+		return (this.mRecordFile != null);
+	}
+
+	// From startReplaying() until target is idle again or replay is stopped
+	public synchronized boolean isReplaying() {
+		return (this.mChunkSource != null);
+	}
+
+	// Replays which target played to the end
+	public synchronized int getNumReplaysDone() {
+		return this.mNumReplaysDone;
+	}
+
+	// Whether the last replay was stopped as the trace could not be read
+	public synchronized boolean isReadFailed() {
+		return this.mIsReadFailed;
+	}
+
+	public void start(ADBConnector adbConnector, int targetPort)
+			throws IOException {
+		adbConnector.forwardPort(this.mSerial, this.mLocalPort, targetPort);
+		this.mADBConnector = adbConnector;
+		this.mUSBConnector.setCompressionThreshold(this.mPrefs.getInt(
+				PreferenceConstants.KEY_WIRE_COMPRESSION_THRESHOLD,
+				PreferenceConstants.INIT_WIRE_COMPRESSION_THRESHOLD));
+		this.mUSBConnector.start();
+		this.log("Target found. Waiting for Recordroid Service...");
+	}
+
+	public void stop() {
+		this.mUSBConnector.stop();
+		try {
+			if (this.mADBConnector != null)
+				this.mADBConnector.removeForward(this.mSerial, this.mLocalPort);
+		} catch (IOException e) {
+			// Device is gone with its forwarding
+		}
+		synchronized (this) {
+			this.mControllerState.setType(ControllerState.Type.DISCONNECTED);
+			this.closeRecordFile();
+			this.closeResponseFile();
+			this.mChunkSource = null;
+		}
+		this.log("Target not found!");
+	}
+
+	public synchronized void startRecording(File file) {
+		this.mRecordFile = new TraceFile(this.mPrefs);
+		this.mRecordFile.setFile(file);
+		try {
+			this.mRecordFile.openWriting();
+		} catch (IOException e) {
+			this.log("Cannot open " + file.getAbsolutePath() + ": " + e);
+			this.mRecordFile = null;
+			return;
+		}
+		this.mControllerState
+				.setType(ControllerState.Type.WAITING_FOR_STATE_CHANGE);
+		this.mUSBConnector.sendMessage(RecordroidCommand.makeRecordingOn());
+		this.log("Record ON -> " + file.getName());
+	}
+
+	public synchronized void stopRecording() {
+		this.mControllerState
+				.setType(ControllerState.Type.WAITING_FOR_STATE_CHANGE);
+		this.mUSBConnector.sendMessage(RecordroidCommand.makeRecordingOff());
+		this.log("Record OFF");
+	}
+
+	// With {replayBarrier}, target holds after preloading until the barrier
+	// releases it. Otherwise, it may be null.
+	public synchronized void startReplaying(ChunkCache chunkCache,
+			File responseFile, ReplayBarrier replayBarrier) {
+		this.mChunkSource = chunkCache.makeSource();
+		this.mReplayBarrier = replayBarrier;
+		this.mIsReadFailed = false;
+		if (responseFile != null) {
+			this.mResponseFile = new ResponseFile();
+			this.mResponseFile.setFile(responseFile);
+			try {
+				this.mResponseFile.openWriting();
+			} catch (IOException e) {
+				this.log("Cannot open " + responseFile.getAbsolutePath()
+						+ ": " + e);
+				this.mResponseFile = null;
+			}
+		}
+		this.mControllerState
+				.setType(ControllerState.Type.WAITING_FOR_STATE_CHANGE);
+
+		if (replayBarrier != null) {
+			this.mUSBConnector.sendMessage(this
+					.makeReplayingOn(RecordroidCommand.START_DEFERRED));
+			this.log("Replay ON (waiting for fleet)");
+		} else {
+			this.mUSBConnector.sendMessage(this.makeReplayingOn(0));
+			this.log("Replay ON");
+		}
+	}
+
+	// Start replay held by {replayBarrier} at {startNS} of host, as target
+	// sees it over a link of {linkLatencyUS}.
+	// It is ignored if the replay has been stopped or restarted since the
+	// barrier was passed.
+	public synchronized void releaseReplay(ReplayBarrier replayBarrier,
+			long startNS, long linkLatencyUS) {
+		if (this.mReplayBarrier != replayBarrier)
+			return;
+		this.mReplayBarrier = null;
+		RecordroidCommand command = this.makeReplayingOn(0);
+		command.replayingOnFields.setStartNS(startNS, linkLatencyUS);
+		this.mUSBConnector.sendMessage(command);
+		this.log("Replay released (link latency: " + linkLatencyUS + "us)");
+	}
+
+	private RecordroidCommand makeReplayingOn(long startDelayUS) {
+		int minimumPreloadSize = this.mPrefs.getInt(
+				PreferenceConstants.KEY_MINIMUM_PRELOAD_SIZE,
+				PreferenceConstants.INIT_MINIMUM_PRELOAD_SIZE);
+		int maximumSleepUS = this.mPrefs.getInt(
+				PreferenceConstants.KEY_MAXIMUM_SLEEP_MS,
+				PreferenceConstants.INIT_MAXIMUM_SLEEP_MS);
+		return RecordroidCommand.makeReplayingOn(minimumPreloadSize,
+				maximumSleepUS, startDelayUS);
+	}
+
+	// Estimated time for a command to reach target: half of the recent
+	// minimum round trip.
+	public long getLinkLatencyUS() {
+		return this.mUSBConnector.getMetrics().getRecentMinRoundTripUS() / 2;
+	}
+
+	public synchronized void stopReplaying() {
+		this.mControllerState
+				.setType(ControllerState.Type.WAITING_FOR_STATE_CHANGE);
+		this.mChunkSource = null;
+		this.mReplayBarrier = null;
+		this.mUSBConnector.sendMessage(RecordroidCommand.makeReplayingOff());
+		this.log("Replay OFF");
+	}
+
+	public synchronized void skipWaitingInReplay() {
+		if (this.getServiceStateType() == RecordroidServiceState.ServiceStateType.REPLAYING) {
+			this.mUSBConnector.sendMessage(RecordroidCommand
+					.makeSkipWaitingInReplay());
+			this.log("Skip waiting");
+		}
+	}
+
+	// Implements ServiceStateMirror.Owner
+	@Override
+	public void onDirtyLaunch(RecordroidServiceState initialState) {
+		// Shutdown running behavior that is started before this session
+		switch (initialState.serviceStateType) {
+		case RecordroidServiceState.ServiceStateType.RECORDING:
+			this.stopRecording();
+			this.log("Target already recording... It turns OFF by force.");
+			break;
+		case RecordroidServiceState.ServiceStateType.PREPARING_TO_REPLAY:
+		case RecordroidServiceState.ServiceStateType.REPLAYING:
+			this.stopReplaying();
+			this.log("Target already replaying... It turns OFF by force.");
+			break;
+		}
+	}
+
+	private void onReceiveServiceState(RecordroidServiceState newState) {
+		this.mServiceStateMirror.onReceiveServiceState(newState);
+
+		if (newState.serviceStateType == RecordroidServiceState.ServiceStateType.PREPARING_TO_REPLAY) {
+			this.mControllerState
+					.setType(ControllerState.Type.WAITING_FOR_STATE_CHANGE);
+		} else {
+			this.mControllerState.setType(ControllerState.Type.CONNECTED);
+		}
+
+		if (newState.serviceStateType == RecordroidServiceState.ServiceStateType.REPLAYING
+				&& newState.replayingFields != null)
+			this.onServiceStateReplaying(newState.replayingFields);
+
+		// Held target preloads as if it were replaying. Once the first
+		// chunks are in and no chunk is in flight, it arrives at the barrier
+		// and takes no more chunks, so that the link is quiet at release.
+		if (newState.serviceStateType == RecordroidServiceState.ServiceStateType.PREPARING_TO_REPLAY
+				&& newState.replayingFields != null
+				&& this.mReplayBarrier != null && this.mChunkSource != null) {
+			long requiredSN = newState.replayingFields.requiredSN;
+			if (requiredSN > this.mReplayBarrier.getPreloadChunks()
+					&& requiredSN > this.mChunkSource.getLastSentSN())
+				this.mReplayBarrier.arrive(this);
+			else
+				this.onServiceStateReplaying(newState.replayingFields);
+		}
+	}
+
+	@Override
+	public void onChangedServiceStateType(int oldStateType, int newStateType) {
+		if (oldStateType == RecordroidServiceState.ServiceStateType.RECORDING
+				&& newStateType == RecordroidServiceState.ServiceStateType.IDLE) {
+			this.mShouldCloseRecordFile = true;
+		} else if (oldStateType == RecordroidServiceState.ServiceStateType.REPLAYING
+				&& newStateType == RecordroidServiceState.ServiceStateType.IDLE) {
+			this.mShouldCloseResponseFile = true;
+			this.mChunkSource = null;
+			this.mNumReplaysDone++;
+		} else if (oldStateType == RecordroidServiceState.ServiceStateType.PREPARING_TO_REPLAY
+				&& newStateType == RecordroidServiceState.ServiceStateType.IDLE) {
+			// Stopped before replaying
+			this.mShouldCloseResponseFile = true;
+			this.mChunkSource = null;
+		}
+		this.log("Service state: " + newStateType);
+	}
+
+	@Override
+	public void onSendReplayChunk(RecordroidReplayChunk chunk) {
+		// Ignore
+	}
+
+	@Override
+	public void onSendBufferFull(long sn) {
+		// Ignore
+	}
+
+	private void onServiceStateReplaying(
+			RecordroidServiceState.ReplayingFields fields) {
+		if (this.mChunkSource == null)
+			return;
+		try {
+			this.mServiceStateMirror.streamReplayChunks(this.mChunkSource,
+					fields);
+		} catch (IOException e) {
+			// Rest of the trace is lost: stop rather than end replay early
+			this.log("Cannot read chunk: " + e);
+			this.mIsReadFailed = true;
+			this.stopReplaying();
+		}
+	}
+
+	private void closeRecordFile() {
+		if (this.mRecordFile == null)
+			return;
+		try {
+			this.mRecordFile.close();
+		} catch (IOException e) {
+			System.err.println("File close failed" + e);
+		}
+		this.mRecordFile = null;
+	}
+
+	private void closeResponseFile() {
+		if (this.mResponseFile == null)
+			return;
+		try {
+			this.mResponseFile.close();
+		} catch (IOException e) {
+			System.err.println("File close failed" + e);
+		}
+		this.mResponseFile = null;
+	}
+
+	private void log(String line) {
+		System.out.println("[" + this.mSerial + "] " + line);
+	}
+
+	// Implements USBMessageListener
+	@Override
+	public synchronized void onUSBMessage(ArrayList<RecordroidMessage> messages) {
+		if (messages == null)
+			return;
+		for (RecordroidMessage msg : messages) {
+			try {
+				if (msg instanceof RecordroidKernelInputEvent) {
+					if (this.mRecordFile != null)
+						this.mRecordFile.writeEvent((RecordroidEvent) msg);
+				} else if (msg instanceof RecordroidPlatformEvent) {
+					if (this.mRecordFile != null)
+						this.mRecordFile.writeEvent((RecordroidEvent) msg);
+					if (this.mResponseFile != null)
+						this.mResponseFile.writeEvent((RecordroidEvent) msg);
+				} else if (msg instanceof RecordroidServiceState) {
+					this.onReceiveServiceState((RecordroidServiceState) msg);
+				}
+			} catch (IOException e) {
+				this.log("I/O Exception during writing record file: " + e);
+			}
+		}
+
+		// Files are closed after the target's recording or replaying is done
+		if (this.mShouldCloseRecordFile) {
+			this.closeRecordFile();
+			this.mShouldCloseRecordFile = false;
+		}
+		if (this.mShouldCloseResponseFile) {
+			this.closeResponseFile();
+			this.mShouldCloseResponseFile = false;
+		}
+	}
+
+	@Override
+	public void willDoUSBConnectorRoutine() {
+		if (this.mUSBConnector.getSendBufferLength() == 0)
+			this.mUSBConnector.sendMessage(RecordroidCommand
+					.makeRequestState());
+	}
+
+	@Override
+	public void didUSBConnectorRoutine() {
+		// Ignore
+	}
+
+	@Override
+	public void onUSBMessagesLost() {
+		// A lost chunk is required again, but it counts as sent.
+		this.mServiceStateMirror.resync();
+	}
+}
+
+// Coordinated start of fleet replay.
+// Each target is told to hold in PREPARING_TO_REPLAY, and its session
+// arrives at the barrier once {preloadChunks} chunks are preloaded. When all
+// sessions have arrived, every target is released by a timed REPLAYING_ON:
+// its start delay is fixed when the command is written and shortened by the
+// latency of its own link, so that all targets start at the same moment.
+// Targets which are not preloaded in time do not replay at all, because
+// they would break the simultaneous start.
+class ReplayBarrier extends Thread {
+	private static final String THREAD_NAME = "ReplayBarrierThread";
+
+	private ArrayList<DeviceSession> mSessions;
+	private int mPreloadChunks;
+	private long mTimeoutMS;
+	private long mStartMarginMS;
+
+	// Guarded by this
+	private HashSet<DeviceSession> mArrivedSessions = new HashSet<DeviceSession>();
+	private boolean mIsCancelled = false;
+
+	public ReplayBarrier(ArrayList<DeviceSession> sessions, int preloadChunks,
+			long timeoutMS, long startMarginMS) {
+		super(THREAD_NAME);
+		this.setDaemon(true);
+		this.mSessions = sessions;
+		this.mPreloadChunks = preloadChunks;
+		this.mTimeoutMS = timeoutMS;
+		this.mStartMarginMS = startMarginMS;
+	}
+
+	public int getPreloadChunks() {
+		return this.mPreloadChunks;
+	}
+
+	public synchronized void arrive(DeviceSession session) {
+		if (this.mArrivedSessions.add(session))
+			this.notifyAll();
+	}
+
+	public synchronized void cancel() {
+		this.mIsCancelled = true;
+		this.notifyAll();
+	}
+
+	@Override
+	public void run() {
+		// Wait for all sessions without holding their locks
+		ArrayList<DeviceSession> arrivedSessions = new ArrayList<DeviceSession>();
+		synchronized (this) {
+			long deadlineMS = System.currentTimeMillis() + this.mTimeoutMS;
+			long remainingMS;
+			while (this.mIsCancelled == false
+					&& this.mArrivedSessions.size() < this.mSessions.size()
+					&& (remainingMS = deadlineMS - System.currentTimeMillis()) > 0) {
+				try {
+					this.wait(remainingMS);
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
+			if (this.mIsCancelled)
+				return;
+			for (DeviceSession session : this.mSessions) {
+				if (this.mArrivedSessions.contains(session))
+					arrivedSessions.add(session);
+			}
+		}
+		for (DeviceSession session : this.mSessions) {
+			if (arrivedSessions.contains(session) == false) {
+				System.out.println("[" + session.getSerial()
+						+ "] Not preloaded in time. Replay is cancelled.");
+				session.stopReplaying();
+			}
+		}
+		if (arrivedSessions.isEmpty())
+			return;
+
+		// A link may be waiting for the response of a frame before it
+		// writes the command, so every target starts {startMarginMS} after
+		// the slowest link could deliver it: a round trip and a latency.
+		long[] latenciesUS = new long[arrivedSessions.size()];
+		long maxLatencyUS = 0;
+		for (int i = 0; i < latenciesUS.length; i++) {
+			latenciesUS[i] = arrivedSessions.get(i).getLinkLatencyUS();
+			maxLatencyUS = Math.max(maxLatencyUS, latenciesUS[i]);
+		}
+		long startNS = System.nanoTime()
+				+ (3 * maxLatencyUS + this.mStartMarginMS * 1000) * 1000;
+		for (int i = 0; i < latenciesUS.length; i++)
+			arrivedSessions.get(i).releaseReplay(this, startNS,
+					latenciesUS[i]);
+	}
+}
@@ -0,0 +1,994 @@
+package com.android.server.recordroid;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.prefs.AbstractPreferences;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+// Headless mode: record or replay from the command line and exit with a
+// status code, e.g. for unattended batch replays on a host with no display.
+// It follows the target service state as MainFrameController does, but
+// never touches AWT, and logs to standard output instead of history.
+// Replay parameters given as arguments override the saved preferences for
+// this run only (OverlayPreferences).
+// Without a trace, it runs as a daemon: tasks come from its control port
+// (ControlServer) until it is interrupted.
+public class HeadlessController implements USBMessageListener,
+		ADBConnectionListener, ControlHandler, ServiceStateMirror.Owner {
+	// Exit status
+	public static final int EXIT_OK = 0;
+	public static final int EXIT_USAGE = 1;
+	public static final int EXIT_FILE_ERROR = 2;
+	public static final int EXIT_TARGET_ERROR = 3;
+	public static final int EXIT_TIMEOUT = 4;
+	public static final int EXIT_ALREADY_RUNNING = 5;
+	public static final int EXIT_INTERRUPTED = 6;
+
+	private static final String USAGE = "usage: ControllerMain (-replay <trace> | -record <trace> | -control <port>) [options]\n"
+			+ "  -response <file>     write platform events during replay to file\n"
+			+ "  -iterations <n>      replay n times (default: 1)\n"
+			+ "  -preload <events>    minimum preload size of a replay chunk\n"
+			+ "  -max-sleep <ms>      maximum sleep of target in replay\n"
+			+ "  -duration <s>        stop recording after s seconds (default: on exit)\n"
+			+ "  -timeout <s>         give up after s seconds (default: never)\n"
+			+ "  -port <port>         target port\n"
+			+ "  -control <port>      serve control commands on loopback port;\n"
+			+ "                       clients send 'auth <token>' first, with the\n"
+			+ "                       token in ~/.recordroid_control_token\n"
+			+ "  -fleet               record or replay on every attached device\n"
+			+ "  -devices <n>         fleet: wait for n devices (default: 1)\n"
+			+ "  -sync                fleet: start replay at the same moment\n"
+			+ "  -pref <key>=<value>  override a preference for this run only";
+
+	private static final int USB_CONNECTOR_SLEEP_MS = 500;
+	private static final int POLL_INTERVAL_MS = 100;
+	private static final int STOP_TIMEOUT_MS = 3000;
+
+	// Arguments
+	private Preferences mPrefs;
+	private int mTargetPort;
+	private File mTraceFile = null;
+	private File mResponsePath = null;
+	private boolean mIsRecordMode = false;
+	private int mIterations = 1;
+	private long mDurationMS = 0;
+	private long mTimeoutMS = 0;
+	private boolean mIsFleetMode = false;
+	private int mNumDevices = 1;
+	private boolean mIsSynchronized = false;
+	private int mControlPort = 0;
+	private boolean mIsDaemon = false; // tasks come from control port
+
+	// Guarded by this
+	private int mStatus = -1; // exit status once the run is over
+	private boolean mIsShutDown = false;
+	private long mDeadlineMS = Long.MAX_VALUE;
+
+	// Single target
+	private ADBConnector mADBConnector;
+	private USBConnector mUSBConnector;
+	private TraceFile mRecordFile;
+	private ResponseFile mResponseFile;
+	private boolean mShouldCloseRecordFile = false;
+	private boolean mShouldCloseResponseFile = false;
+	private ControllerState mControllerState = new ControllerState(
+			ControllerState.Type.INITIAL);
+	private ServiceStateMirror mServiceStateMirror = null;
+	private boolean mIsTaskRunning = false; // from ON command to idle
+	private int mNumTasksDone = 0;
+	private long mTaskStartMS = 0;
+	private boolean mIsStopping = false; // OFF command of the task is sent
+	private ControlServer mControlServer = null;
+
+	private HeadlessController(Preferences prefs, int targetPort) {
+		this.mPrefs = prefs;
+		this.mTargetPort = targetPort;
+	}
+
+	// Controller for given arguments, or null after printing usage
+	public static HeadlessController make(String[] args, int targetPort) {
+		Preferences prefs = new OverlayPreferences(
+				Preferences.userNodeForPackage(HeadlessController.class));
+		HeadlessController controller = new HeadlessController(prefs,
+				targetPort);
+		try {
+			controller.parseArguments(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			return null;
+		}
+		return controller;
+	}
+
+	private void parseArguments(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String option = args[i];
+			if (option.compareTo("-fleet") == 0) {
+				this.mIsFleetMode = true;
+				continue;
+			} else if (option.compareTo("-sync") == 0) {
+				this.mIsSynchronized = true;
+				continue;
+			} else if (option.compareTo("-help") == 0) {
+				throw new IllegalArgumentException("Recordroid Controller");
+			}
+
+			if (i + 1 >= args.length)
+				throw new IllegalArgumentException("Missing value of "
+						+ option);
+			String value = args[++i];
+			if (option.compareTo("-replay") == 0) {
+				this.mTraceFile = new File(value);
+				this.mIsRecordMode = false;
+			} else if (option.compareTo("-record") == 0) {
+				this.mTraceFile = new File(value);
+				this.mIsRecordMode = true;
+			} else if (option.compareTo("-response") == 0) {
+				this.mResponsePath = new File(value);
+			} else if (option.compareTo("-iterations") == 0) {
+				this.mIterations = parseNumber(option, value, 1);
+			} else if (option.compareTo("-preload") == 0) {
+				this.mPrefs.putInt(PreferenceConstants.KEY_MINIMUM_PRELOAD_SIZE,
+						parseNumber(option, value, 1));
+			} else if (option.compareTo("-max-sleep") == 0) {
+				this.mPrefs.putInt(PreferenceConstants.KEY_MAXIMUM_SLEEP_MS,
+						parseNumber(option, value, 0));
+			} else if (option.compareTo("-duration") == 0) {
+				this.mDurationMS = parseNumber(option, value, 0) * 1000L;
+			} else if (option.compareTo("-timeout") == 0) {
+				this.mTimeoutMS = parseNumber(option, value, 0) * 1000L;
+			} else if (option.compareTo("-port") == 0) {
+				this.mTargetPort = parseNumber(option, value, 1);
+			} else if (option.compareTo("-control") == 0) {
+				this.mControlPort = parseNumber(option, value, 1);
+			} else if (option.compareTo("-devices") == 0) {
+				this.mNumDevices = parseNumber(option, value, 1);
+			} else if (option.compareTo("-pref") == 0) {
+				int equal = value.indexOf('=');
+				if (equal <= 0)
+					throw new IllegalArgumentException("Invalid preference: "
+							+ value);
+				this.mPrefs.put(value.substring(0, equal),
+						value.substring(equal + 1));
+			} else {
+				throw new IllegalArgumentException("Unknown option: " + option);
+			}
+		}
+		if (this.mIsFleetMode && this.mControlPort > 0)
+			throw new IllegalArgumentException(
+					"Control port is not supported in fleet mode");
+		if (this.mTraceFile == null) {
+			if (this.mControlPort == 0)
+				throw new IllegalArgumentException("No trace is given");
+			this.mIsDaemon = true;
+		}
+	}
+
+	private static int parseNumber(String option, String value, int minimum) {
+		try {
+			int number = Integer.parseInt(value);
+			if (number >= minimum)
+				return number;
+		} catch (NumberFormatException e) {
+		}
+		throw new IllegalArgumentException("Invalid value of " + option + ": "
+				+ value);
+	}
+
+	// Blocks until the run is over, and returns its exit status
+	public int run() {
+		if (this.mIsDaemon == false && this.mIsRecordMode == false
+				&& this.mTraceFile.canRead() == false) {
+			System.err.println("Cannot read trace: "
+					+ this.mTraceFile.getAbsolutePath());
+			return EXIT_FILE_ERROR;
+		}
+		if (this.mTimeoutMS > 0)
+			this.mDeadlineMS = System.currentTimeMillis() + this.mTimeoutMS;
+
+		// Interrupted run stops target and closes files before exit
+		Thread shutdownHook = new Thread() {
+			public void run() {
+				onInterrupted();
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+		int status = this.mIsFleetMode ? this.runFleet() : this.runSingle();
+		synchronized (this) {
+			this.mIsShutDown = true;
+			this.notifyAll();
+		}
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		} catch (IllegalStateException e) {
+			// Already exiting
+		}
+		return status;
+	}
+
+	private void onInterrupted() {
+		synchronized (this) {
+			// Recording until exit is done by an interruption. Any other run
+			// is cut short.
+			if (this.mIsRecordMode && this.mIsDaemon == false
+					&& this.mDurationMS <= 0)
+				this.finish(EXIT_OK, "Interrupted, recording stopped");
+			else
+				this.finish(EXIT_INTERRUPTED, "Interrupted");
+			long deadlineMS = System.currentTimeMillis() + 2 * STOP_TIMEOUT_MS;
+			long remainingMS;
+			while (this.mIsShutDown == false
+					&& (remainingMS = deadlineMS - System.currentTimeMillis()) > 0) {
+				try {
+					this.wait(remainingMS);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	// End of the run. The first status wins.
+	private synchronized void finish(int status, String message) {
+		if (this.mStatus >= 0)
+			return;
+		this.mStatus = status;
+		this.log(message);
+		this.notifyAll();
+	}
+
+	private synchronized int getStatus() {
+		return this.mStatus;
+	}
+
+	// Wait a poll interval, or less if the run is over.
+	// Returns false once the run is over.
+	private synchronized boolean poll() {
+		if (this.mStatus < 0 && System.currentTimeMillis() >= this.mDeadlineMS)
+			this.finish(EXIT_TIMEOUT, "Timed out");
+		if (this.mStatus < 0) {
+			try {
+				this.wait(POLL_INTERVAL_MS);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		return (this.mStatus < 0);
+	}
+
+	private void log(String line) {
+		System.out.println(line);
+	}
+
+	// Single target: the one device which 'adb forward' picks
+	private int runSingle() {
+		this.mRecordFile = new TraceFile(this.mPrefs);
+		this.mResponseFile = new ResponseFile();
+
+		this.mADBConnector = ADBConnector.get(this.mTargetPort, this.mPrefs
+				.get(PreferenceConstants.KEY_ADB_SERVER_HOST,
+						PreferenceConstants.INIT_ADB_SERVER_HOST), this.mPrefs
+				.getInt(PreferenceConstants.KEY_ADB_SERVER_PORT,
+						PreferenceConstants.INIT_ADB_SERVER_PORT));
+		this.mADBConnector.addListener(this);
+		try {
+			this.mUSBConnector = USBConnector.client(
+					ConnectorEngine.getDefault(), this.mTargetPort,
+					USB_CONNECTOR_SLEEP_MS);
+		} catch (IOException e) {
+			e.printStackTrace();
+			this.mUSBConnector = USBConnector.client(this.mTargetPort,
+					USB_CONNECTOR_SLEEP_MS);
+		}
+		this.mUSBConnector.addListener(this);
+		this.mServiceStateMirror = new ServiceStateMirror(this,
+				this.mUSBConnector);
+		if (this.mControlPort > 0) {
+			try {
+				File tokenFile = new File(this.mPrefs.get(
+						PreferenceConstants.KEY_CONTROL_TOKEN_FILE,
+						PreferenceConstants.INIT_CONTROL_TOKEN_FILE));
+				this.mControlServer = ControlServer.start(this.mControlPort,
+						tokenFile, this);
+				this.log("Control port: " + this.mControlPort + " (token: "
+						+ tokenFile.getAbsolutePath() + ")");
+			} catch (IOException e) {
+				this.finish(EXIT_USAGE, "Cannot open control port "
+						+ this.mControlPort + ": " + e);
+			}
+		}
+		this.log("Waiting for target...");
+		this.mADBConnector.start();
+
+		boolean isRecordStopped = false;
+		while (this.poll()) {
+			synchronized (this) {
+				// Recording for the given duration
+				if (this.mIsRecordMode && this.mIsTaskRunning
+						&& this.mDurationMS > 0 && isRecordStopped == false
+						&& System.currentTimeMillis() >= this.mTaskStartMS
+								+ this.mDurationMS) {
+					this.turnOffRecord();
+					isRecordStopped = true;
+				}
+			}
+		}
+
+		// Leave target idle
+		synchronized (this) {
+			if (this.mIsTaskRunning) {
+				if (this.mIsRecordMode)
+					this.turnOffRecord();
+				else
+					this.turnOffReplay();
+				long deadlineMS = System.currentTimeMillis() + STOP_TIMEOUT_MS;
+				long remainingMS;
+				while (this.mIsTaskRunning
+						&& (remainingMS = deadlineMS
+								- System.currentTimeMillis()) > 0) {
+					try {
+						this.wait(remainingMS);
+					} catch (InterruptedException e) {
+						break;
+					}
+				}
+			}
+		}
+		if (this.mControlServer != null)
+			this.mControlServer.stop();
+		this.mADBConnector.kill();
+		this.mUSBConnector.stop();
+		this.mUSBConnector.getMetrics().stopDump();
+		synchronized (this) {
+			this.closeFiles();
+			return this.mStatus;
+		}
+	}
+
+	// Start recording or the next replay iteration once target is idle
+	private void startNextTask() {
+		if (this.mIsDaemon || this.mStatus >= 0 || this.mIsTaskRunning
+				|| this.mControllerState.getType() != ControllerState.Type.CONNECTED
+				|| this.mServiceStateMirror.getServiceStateType() != RecordroidServiceState.ServiceStateType.IDLE)
+			return;
+		try {
+			if (this.mIsRecordMode)
+				this.turnOnRecord();
+			else
+				this.turnOnReplay();
+		} catch (IOException e) {
+			this.finish(EXIT_FILE_ERROR, e.getMessage());
+		}
+	}
+
+	private void turnOnRecord() throws IOException {
+		this.mRecordFile.setFile(this.mTraceFile);
+		try {
+			this.mRecordFile.openWriting();
+		} catch (IOException e) {
+			throw new IOException("Cannot open "
+					+ this.mTraceFile.getAbsolutePath() + ": " + e);
+		}
+		this.mControllerState
+				.setType(ControllerState.Type.WAITING_FOR_STATE_CHANGE);
+		this.mIsTaskRunning = true;
+		this.mIsStopping = false;
+		this.mTaskStartMS = System.currentTimeMillis();
+		this.mUSBConnector.sendMessage(RecordroidCommand.makeRecordingOn());
+		this.log("Record ON -> " + this.mTraceFile.getName());
+	}
+
+	private void turnOffRecord() {
+		this.mIsStopping = true;
+		this.mControllerState
+				.setType(ControllerState.Type.WAITING_FOR_STATE_CHANGE);
+		this.mUSBConnector.sendMessage(RecordroidCommand.makeRecordingOff());
+		this.log("Record OFF");
+	}
+
+	private void turnOnReplay() throws IOException {
+		this.mRecordFile.setFile(this.mTraceFile);
+		try {
+			this.mRecordFile.openReading();
+		} catch (IOException e) {
+			throw new IOException("Cannot open "
+					+ this.mTraceFile.getAbsolutePath() + ": " + e);
+		}
+		File responseFile = (this.mResponsePath == null) ? null : this
+				.getResponseFile(this.mNumTasksDone);
+		this.mResponseFile.setFile(responseFile);
+		if (responseFile != null) {
+			try {
+				this.mResponseFile.openWriting();
+			} catch (IOException e) {
+				this.closeFiles();
+				throw new IOException("Cannot open "
+						+ responseFile.getAbsolutePath() + ": " + e);
+			}
+		}
+		this.mControllerState
+				.setType(ControllerState.Type.WAITING_FOR_STATE_CHANGE);
+		this.mIsTaskRunning = true;
+		this.mIsStopping = false;
+		this.mTaskStartMS = System.currentTimeMillis();
+
+		int minimumPreloadSize = this.mPrefs.getInt(
+				PreferenceConstants.KEY_MINIMUM_PRELOAD_SIZE,
+				PreferenceConstants.INIT_MINIMUM_PRELOAD_SIZE);
+		int maximumSleepUS = this.mPrefs.getInt(
+				PreferenceConstants.KEY_MAXIMUM_SLEEP_MS,
+				PreferenceConstants.INIT_MAXIMUM_SLEEP_MS);
+		this.mUSBConnector.sendMessage(RecordroidCommand.makeReplayingOn(
+				minimumPreloadSize, maximumSleepUS));
+		if (this.mIterations > 1)
+			this.log("Replay ON (" + (this.mNumTasksDone + 1) + "/"
+					+ this.mIterations + ")");
+		else
+			this.log("Replay ON -> " + this.mTraceFile.getName());
+	}
+
+	private void turnOffReplay() {
+		this.mIsStopping = true;
+		this.mControllerState
+				.setType(ControllerState.Type.WAITING_FOR_STATE_CHANGE);
+		try {
+			this.mRecordFile.close();
+		} catch (IOException e) {
+			System.err.println("File close failed" + e);
+		}
+		this.mUSBConnector.sendMessage(RecordroidCommand.makeReplayingOff());
+		this.log("Replay OFF");
+	}
+
+	// Each iteration writes its own response file: <name>-<iteration>.<ext>
+	private File getResponseFile(int iteration) {
+		if (this.mIterations == 1)
+			return this.mResponsePath;
+		return FleetController.getDeviceFile(this.mResponsePath,
+				String.valueOf(iteration + 1));
+	}
+
+	private void closeFiles() {
+		try {
+			this.mRecordFile.close();
+		} catch (IOException e) {
+			System.err.println("File close failed" + e);
+		}
+		try {
+			this.mResponseFile.close();
+		} catch (IOException e) {
+			System.err.println("File close failed" + e);
+		}
+	}
+
+	// Implements ServiceStateMirror.Owner
+	@Override
+	public void onDirtyLaunch(RecordroidServiceState initialState) {
+		// Shutdown running behavior that is started before this controller
+		switch (initialState.serviceStateType) {
+		case RecordroidServiceState.ServiceStateType.RECORDING:
+			this.turnOffRecord();
+			this.log("Target already recording... It turns OFF by force.");
+			break;
+		case RecordroidServiceState.ServiceStateType.PREPARING_TO_REPLAY:
+		case RecordroidServiceState.ServiceStateType.REPLAYING:
+			this.turnOffReplay();
+			this.log("Target already replaying... It turns OFF by force.");
+			break;
+		}
+	}
+
+	private void onReceiveServiceState(RecordroidServiceState newState) {
+		this.mServiceStateMirror.onReceiveServiceState(newState);
+
+		if (newState.serviceStateType == RecordroidServiceState.ServiceStateType.PREPARING_TO_REPLAY) {
+			this.mControllerState
+					.setType(ControllerState.Type.WAITING_FOR_STATE_CHANGE);
+		} else {
+			this.mControllerState.setType(ControllerState.Type.CONNECTED);
+		}
+
+		if (newState.serviceStateType == RecordroidServiceState.ServiceStateType.REPLAYING
+				&& newState.replayingFields != null)
+			this.onServiceStateReplaying(newState.replayingFields);
+	}
+
+	@Override
+	public void onChangedServiceStateType(int oldStateType, int newStateType) {
+		if (newStateType != RecordroidServiceState.ServiceStateType.IDLE
+				|| this.mIsTaskRunning == false)
+			return;
+
+		long elapsedMS = System.currentTimeMillis() - this.mTaskStartMS;
+		if (oldStateType == RecordroidServiceState.ServiceStateType.RECORDING) {
+			// Record file is closed after this USB message handler
+			this.mShouldCloseRecordFile = true;
+			this.mIsTaskRunning = false;
+			this.mNumTasksDone++;
+			this.log("Recording done in " + elapsedMS + "ms");
+		} else if (oldStateType == RecordroidServiceState.ServiceStateType.REPLAYING) {
+			this.mShouldCloseResponseFile = true;
+			try {
+				this.mRecordFile.close();
+			} catch (IOException e) {
+				System.err.println("File close failed" + e);
+			}
+			this.mIsTaskRunning = false;
+			this.mNumTasksDone++;
+			String progress = (this.mIterations > 1) ? " ("
+					+ this.mNumTasksDone + "/" + this.mIterations + ")" : "";
+			this.log((this.mIsStopping ? "Replay stopped" : "Replay done")
+					+ progress + " in " + elapsedMS + "ms");
+		} else if (oldStateType == RecordroidServiceState.ServiceStateType.PREPARING_TO_REPLAY) {
+			this.mShouldCloseResponseFile = true;
+			try {
+				this.mRecordFile.close();
+			} catch (IOException e) {
+				System.err.println("File close failed" + e);
+			}
+			this.mIsTaskRunning = false;
+			if (this.mIsDaemon)
+				this.log("Target stopped before replaying");
+			else
+				this.finish(EXIT_TARGET_ERROR,
+						"Target stopped before replaying");
+		}
+		this.notifyAll();
+	}
+
+	private void onServiceStateReplaying(
+			RecordroidServiceState.ReplayingFields fields) {
+		if (this.mIsTaskRunning == false)
+			return;
+
+		try {
+			this.mServiceStateMirror.streamReplayChunks(this.mRecordFile,
+					fields);
+		} catch (IOException e) {
+			// Rest of the trace is lost: the replay must not pass as done
+			if (this.mIsDaemon) {
+				this.log("Cannot read trace: " + e.getMessage());
+				this.turnOffReplay();
+			} else {
+				this.finish(EXIT_FILE_ERROR,
+						"Cannot read trace: " + e.getMessage());
+			}
+		}
+	}
+
+	@Override
+	public void onSendReplayChunk(RecordroidReplayChunk chunk) {
+		// Ignore
+	}
+
+	@Override
+	public void onSendBufferFull(long sn) {
+		// Ignore
+	}
+
+	// Implements USBMessageListener
+	@Override
+	public synchronized void onUSBMessage(ArrayList<RecordroidMessage> messages) {
+		if (messages == null)
+			return;
+		for (RecordroidMessage msg : messages) {
+			try {
+				if (msg instanceof RecordroidKernelInputEvent) {
+					this.mRecordFile.writeEvent((RecordroidEvent) msg);
+				} else if (msg instanceof RecordroidPlatformEvent) {
+					this.mRecordFile.writeEvent((RecordroidEvent) msg);
+					this.mResponseFile.writeEvent((RecordroidEvent) msg);
+				} else if (msg instanceof RecordroidServiceState) {
+					this.onReceiveServiceState((RecordroidServiceState) msg);
+				}
+			} catch (IOException e) {
+				this.finish(EXIT_FILE_ERROR,
+						"I/O Exception during writing record file: " + e);
+			}
+		}
+
+		// Files are closed after the target's recording or replaying is done
+		if (this.mShouldCloseRecordFile) {
+			try {
+				this.mRecordFile.close();
+			} catch (IOException e) {
+				this.finish(EXIT_FILE_ERROR, "Record file close failed: " + e);
+			}
+			this.mShouldCloseRecordFile = false;
+		}
+		if (this.mShouldCloseResponseFile) {
+			try {
+				this.mResponseFile.close();
+			} catch (IOException e) {
+				this.finish(EXIT_FILE_ERROR, "Response file close failed: "
+						+ e);
+			}
+			this.mShouldCloseResponseFile = false;
+		}
+
+		if (this.mIsDaemon == false && this.mIsTaskRunning == false
+				&& this.mNumTasksDone >= (this.mIsRecordMode ? 1
+						: this.mIterations)) {
+			this.finish(EXIT_OK, "Done");
+			return;
+		}
+		this.startNextTask();
+	}
+
+	@Override
+	public void willDoUSBConnectorRoutine() {
+		if (this.mUSBConnector.getSendBufferLength() == 0)
+			this.mUSBConnector.sendMessage(RecordroidCommand
+					.makeRequestState());
+	}
+
+	@Override
+	public void didUSBConnectorRoutine() {
+		// Ignore
+	}
+
+	@Override
+	public void onUSBMessagesLost() {
+		// A lost chunk is required again, but it counts as sent.
+		this.mServiceStateMirror.resync();
+	}
+
+	// Implements ADBConnectionListener
+	@Override
+	public void onADBConnect() {
+		this.mUSBConnector.setCompressionThreshold(this.mPrefs.getInt(
+				PreferenceConstants.KEY_WIRE_COMPRESSION_THRESHOLD,
+				PreferenceConstants.INIT_WIRE_COMPRESSION_THRESHOLD));
+		this.mUSBConnector.start();
+		this.mUSBConnector.getMetrics().startDump(
+				"USBConnector",
+				this.mPrefs.getInt(
+						PreferenceConstants.KEY_METRICS_DUMP_INTERVAL_MS,
+						PreferenceConstants.INIT_METRICS_DUMP_INTERVAL_MS),
+				System.out);
+		// A chunk in flight may have been lost during disconnection.
+		this.mServiceStateMirror.resync();
+		this.log("Target found. Waiting for Recordroid Service...");
+	}
+
+	@Override
+	public void onADBDisconnect() {
+		this.mUSBConnector.stop();
+		this.mUSBConnector.getMetrics().stopDump();
+		synchronized (this) {
+			this.mControllerState.setType(ControllerState.Type.DISCONNECTED);
+			if (this.mIsTaskRunning && this.mIsDaemon == false) {
+				this.mIsTaskRunning = false;
+				this.finish(EXIT_TARGET_ERROR, "Target lost!");
+			} else if (this.mIsTaskRunning) {
+				this.mIsTaskRunning = false;
+				this.closeFiles();
+				this.log("Target lost! Waiting for target...");
+			} else {
+				this.log("Target not found! Waiting for target...");
+			}
+		}
+	}
+
+	// Implements ControlHandler
+	// A daemon takes any task. A run with a task on command line can only
+	// be watched, skip waiting and be stopped: stopping ends the run.
+	@Override
+	public synchronized int getControllerStateType() {
+		return this.mControllerState.getType();
+	}
+
+	@Override
+	public synchronized int getServiceStateType() {
+		if (this.mServiceStateMirror == null)
+			return -1;
+		return this.mServiceStateMirror.getServiceStateType();
+	}
+
+	@Override
+	public synchronized File getRecordFile() {
+		return this.mTraceFile;
+	}
+
+	@Override
+	public synchronized File getResponseFile() {
+		return this.mResponsePath;
+	}
+
+	@Override
+	public ConnectorMetrics getMetrics() {
+		return this.mUSBConnector.getMetrics();
+	}
+
+	@Override
+	public synchronized void onControlRecordOn(File traceFile) {
+		this.requireDaemon();
+		ControlServer.requireServiceState(this,
+				RecordroidServiceState.ServiceStateType.IDLE);
+		this.turnOnByControl(traceFile, true);
+	}
+
+	@Override
+	public synchronized void onControlRecordOff() {
+		ControlServer.requireServiceState(this,
+				RecordroidServiceState.ServiceStateType.RECORDING);
+		if (this.mIsDaemon)
+			this.turnOffRecord();
+		else
+			this.finish(EXIT_OK, "Stopped by control");
+	}
+
+	@Override
+	public synchronized void onControlReplayOn(File traceFile) {
+		this.requireDaemon();
+		ControlServer.requireServiceState(this,
+				RecordroidServiceState.ServiceStateType.IDLE);
+		this.turnOnByControl(traceFile, false);
+	}
+
+	@Override
+	public synchronized void onControlReplayOff() {
+		ControlServer.requireServiceState(this,
+				RecordroidServiceState.ServiceStateType.PREPARING_TO_REPLAY,
+				RecordroidServiceState.ServiceStateType.REPLAYING);
+		if (this.mIsDaemon)
+			this.turnOffReplay();
+		else
+			this.finish(EXIT_OK, "Stopped by control");
+	}
+
+	@Override
+	public synchronized void onControlSkipWaiting() {
+		ControlServer.requireServiceState(this,
+				RecordroidServiceState.ServiceStateType.REPLAYING);
+		this.mUSBConnector.sendMessage(RecordroidCommand
+				.makeSkipWaitingInReplay());
+		this.log("Skip waiting");
+	}
+
+	@Override
+	public synchronized void onControlResponseFile(File responseFile) {
+		this.requireDaemon();
+		this.mResponsePath = responseFile;
+	}
+
+	// {traceFile} is kept only if the task starts
+	private void turnOnByControl(File traceFile, boolean isRecordMode) {
+		File lastTraceFile = this.mTraceFile;
+		if (traceFile != null)
+			this.mTraceFile = traceFile;
+		if (this.mTraceFile == null)
+			throw new IllegalStateException("no record file");
+		this.mIsRecordMode = isRecordMode;
+		try {
+			if (isRecordMode)
+				this.turnOnRecord();
+			else
+				this.turnOnReplay();
+		} catch (IOException e) {
+			this.mTraceFile = lastTraceFile;
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	private void requireDaemon() {
+		if (this.mIsDaemon == false)
+			throw new IllegalStateException("task is given on command line");
+	}
+
+	// Fleet: every attached device, each with its own session
+	private int runFleet() {
+		FleetController fleet = new FleetController(this.mPrefs,
+				this.mTargetPort);
+		fleet.start();
+		this.log("Waiting for " + this.mNumDevices + " device(s)...");
+		while (this.poll()) {
+			if (getIdleSessions(fleet).size() >= this.mNumDevices)
+				break;
+		}
+
+		int status = EXIT_OK;
+		if (this.mIsRecordMode) {
+			status = this.recordFleet(fleet);
+		} else {
+			for (int i = 0; i < this.mIterations && status == EXIT_OK; i++)
+				status = this.replayFleet(fleet, i);
+		}
+		fleet.stop();
+
+		synchronized (this) {
+			// Timeout or interruption ends the run at any step
+			this.finish(status, (status == EXIT_OK) ? "Done" : "Failed");
+			return this.mStatus;
+		}
+	}
+
+	private int recordFleet(FleetController fleet) {
+		if (this.getStatus() >= 0)
+			return this.getStatus();
+		ArrayList<DeviceSession> sessions = getIdleSessions(fleet);
+		fleet.startRecording(this.mTraceFile);
+		long stopMS = (this.mDurationMS > 0) ? System.currentTimeMillis()
+				+ this.mDurationMS : Long.MAX_VALUE;
+		while (this.poll()) {
+			if (System.currentTimeMillis() >= stopMS)
+				break;
+		}
+
+		// Stop even if the run is over, so that record files are complete
+		fleet.stopRecording();
+		long deadlineMS = System.currentTimeMillis() + STOP_TIMEOUT_MS;
+		int numRecorded;
+		do {
+			numRecorded = 0;
+			for (DeviceSession session : sessions) {
+				if (session.isRecording() == false
+						&& session.getServiceStateType() == RecordroidServiceState.ServiceStateType.IDLE)
+					numRecorded++;
+			}
+			if (numRecorded == sessions.size())
+				break;
+			try {
+				Thread.sleep(POLL_INTERVAL_MS);
+			} catch (InterruptedException e) {
+				break;
+			}
+		} while (System.currentTimeMillis() < deadlineMS);
+		this.log("Recorded on " + numRecorded + "/" + sessions.size()
+				+ " device(s)");
+		return (numRecorded == sessions.size()) ? EXIT_OK : EXIT_TARGET_ERROR;
+	}
+
+	private int replayFleet(FleetController fleet, int iteration) {
+		if (this.getStatus() >= 0)
+			return this.getStatus();
+		File responseFile = (this.mResponsePath == null) ? null : this
+				.getResponseFile(iteration);
+		ArrayList<DeviceSession> sessions = fleet.getSessions();
+		HashMap<DeviceSession, Integer> numReplaysDone = new HashMap<DeviceSession, Integer>();
+		for (DeviceSession session : sessions)
+			numReplaysDone.put(session, session.getNumReplaysDone());
+
+		long startMS = System.currentTimeMillis();
+		try {
+			if (this.mIsSynchronized)
+				fleet.startSynchronizedReplaying(this.mTraceFile, responseFile);
+			else
+				fleet.startReplaying(this.mTraceFile, responseFile);
+		} catch (IOException e) {
+			this.log("Cannot open " + this.mTraceFile.getAbsolutePath() + ": "
+					+ e);
+			return EXIT_FILE_ERROR;
+		}
+		this.log("Replay ON (" + (iteration + 1) + "/" + this.mIterations
+				+ ") on " + sessions.size() + " device(s)");
+
+		// Sessions leave replaying when target is idle again, when replay
+		// is cancelled or when device is gone.
+		boolean isReplaying = true;
+		while (isReplaying && this.poll()) {
+			isReplaying = false;
+			for (DeviceSession session : sessions)
+				isReplaying |= session.isReplaying();
+		}
+		if (isReplaying) {
+			fleet.stopReplaying();
+			return this.getStatus();
+		}
+
+		int numReplayed = 0;
+		boolean isReadFailed = false;
+		for (DeviceSession session : sessions) {
+			if (session.getNumReplaysDone() > numReplaysDone.get(session))
+				numReplayed++;
+			else
+				this.log("[" + session.getSerial() + "] Replay failed");
+			isReadFailed |= session.isReadFailed();
+		}
+		this.log("Replay done (" + (iteration + 1) + "/" + this.mIterations
+				+ ") on " + numReplayed + "/" + sessions.size()
+				+ " device(s) in " + (System.currentTimeMillis() - startMS)
+				+ "ms");
+		if (isReadFailed)
+			return EXIT_FILE_ERROR;
+		return (numReplayed == sessions.size()) ? EXIT_OK : EXIT_TARGET_ERROR;
+	}
+
+	private static ArrayList<DeviceSession> getIdleSessions(
+			FleetController fleet) {
+		ArrayList<DeviceSession> sessions = new ArrayList<DeviceSession>();
+		for (DeviceSession session : fleet.getSessions()) {
+			if (session.getControllerStateType() == ControllerState.Type.CONNECTED
+					&& session.getServiceStateType() == RecordroidServiceState.ServiceStateType.IDLE)
+				sessions.add(session);
+		}
+		return sessions;
+	}
+}
+
+// Preferences of a headless run: values put here override the saved
+// preferences, but are kept in memory and never saved.
+// Child nodes overlay the saved nodes of the same path in the same way.
+class OverlayPreferences extends AbstractPreferences {
+	private Preferences mBase; // null if there is no saved node
+	private HashMap<String, String> mValues = new HashMap<String, String>();
+
+	public OverlayPreferences(Preferences base) {
+		this(null, "", base);
+	}
+
+	private OverlayPreferences(AbstractPreferences parent, String name,
+			Preferences base) {
+		super(parent, name);
+		this.mBase = base;
+	}
+
+	@Override
+	protected String getSpi(String key) {
+		String value = this.mValues.get(key);
+		if (value == null && this.mBase != null)
+			value = this.mBase.get(key, null);
+		return value;
+	}
+
+	@Override
+	protected void putSpi(String key, String value) {
+		this.mValues.put(key, value);
+	}
+
+	@Override
+	protected void removeSpi(String key) {
+		this.mValues.remove(key);
+	}
+
+	@Override
+	protected String[] keysSpi() throws BackingStoreException {
+		HashSet<String> keys = new HashSet<String>(this.mValues.keySet());
+		if (this.mBase != null) {
+			for (String key : this.mBase.keys())
+				keys.add(key);
+		}
+		return keys.toArray(new String[keys.size()]);
+	}
+
+	@Override
+	protected String[] childrenNamesSpi() throws BackingStoreException {
+		// Children made in this run are added by AbstractPreferences
+		if (this.mBase == null)
+			return new String[0];
+		return this.mBase.childrenNames();
+	}
+
+	@Override
+	protected AbstractPreferences childSpi(String name) {
+		// A saved node is not made for a new child, so that nothing is saved
+		Preferences base = null;
+		try {
+			if (this.mBase != null && this.mBase.nodeExists(name))
+				base = this.mBase.node(name);
+		} catch (BackingStoreException e) {
+			System.err.println("Preferences read failed" + e);
+		}
+		return new OverlayPreferences(this, name, base);
+	}
+
+	@Override
+	protected void removeNodeSpi() {
+		// Saved node is left as it is
+		this.mValues.clear();
+	}
+
+	@Override
+	protected void syncSpi() {
+	}
+
+	@Override
+	protected void flushSpi() {
+	}
+}
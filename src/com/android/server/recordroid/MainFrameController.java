@@ -27,9 +27,11 @@ import javax.swing.JScrollPane;
 import javax.swing.JTextPane;
 import javax.swing.ScrollPaneConstants;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 
 public class MainFrameController implements ActionListener, USBMessageListener,
-		ADBConnectionListener, WindowListener {
+		ADBConnectionListener, WindowListener, ControlHandler,
+		ServiceStateMirror.Owner {
 	private static final int INIT_WINDOW_WIDTH = 700;
 	private static final int INIT_WINDOW_HEIGHT = 350;
 
@@ -40,10 +42,13 @@ public class MainFrameController implements ActionListener, USBMessageListener,
 
 		this.initFrame(title);
 		this.initConnectors(targetPort);
+		this.initControlServer();
 		this.updateUI();
 	}
 
 	// ADB & USB connector
+	// USB connector wakes up on every sent message; sleep time is its
+	// heartbeat period.
 	private static final int USB_CONNECTOR_SLEEP_MS = 500;
 	private ADBConnector mADBConnector;
 	private USBConnector mUSBConnector;
@@ -51,6 +56,9 @@ public class MainFrameController implements ActionListener, USBMessageListener,
 	// Preferences
 	private Preferences mPrefs;
 
+	// Control server, or null if disabled
+	private ControlServer mControlServer = null;
+
 	// Record file
 	private TraceFile mRecordFile;
 	private boolean mShouldCloseRecordFile = false;
@@ -62,7 +70,7 @@ public class MainFrameController implements ActionListener, USBMessageListener,
 	// States
 	private ControllerState mControllerState = new ControllerState(
 			ControllerState.Type.INITIAL);
-	private RecordroidServiceState mMirroredServiceState = null;
+	private ServiceStateMirror mServiceStateMirror;
 	private long mPrevRunningSN = -1;
 	private int mPrevReplayBufferIndex = -1;
 
@@ -129,16 +137,51 @@ public class MainFrameController implements ActionListener, USBMessageListener,
 	private static final String INIT_SKIP_WAITING_IN_REPLAY_BUTTON_TEXT = "Skip Waiting";
 
 	private void initConnectors(int targetPort) {
-		this.mADBConnector = ADBConnector.get(targetPort);
+		this.mADBConnector = ADBConnector.get(targetPort, this.mPrefs.get(
+				PreferenceConstants.KEY_ADB_SERVER_HOST,
+				PreferenceConstants.INIT_ADB_SERVER_HOST), this.mPrefs.getInt(
+				PreferenceConstants.KEY_ADB_SERVER_PORT,
+				PreferenceConstants.INIT_ADB_SERVER_PORT));
 		this.mADBConnector.addListener(this);
 
-		this.mUSBConnector = USBConnector.client(targetPort,
-				USB_CONNECTOR_SLEEP_MS);
+		// USB connector is driven by the shared connector engine if possible
+		try {
+			this.mUSBConnector = USBConnector.client(
+					ConnectorEngine.getDefault(), targetPort,
+					USB_CONNECTOR_SLEEP_MS);
+		} catch (IOException e) {
+			e.printStackTrace();
+			this.mUSBConnector = USBConnector.client(targetPort,
+					USB_CONNECTOR_SLEEP_MS);
+		}
 		this.mUSBConnector.addListener(this);
+		this.mServiceStateMirror = new ServiceStateMirror(this,
+				this.mUSBConnector);
 
 		this.mADBConnector.start();
 	}
 
+	private void initControlServer() {
+		int controlPort = this.mPrefs.getInt(
+				PreferenceConstants.KEY_CONTROL_PORT,
+				PreferenceConstants.INIT_CONTROL_PORT);
+		if (controlPort <= 0)
+			return;
+		try {
+			File tokenFile = new File(this.mPrefs.get(
+					PreferenceConstants.KEY_CONTROL_TOKEN_FILE,
+					PreferenceConstants.INIT_CONTROL_TOKEN_FILE));
+			this.mControlServer = ControlServer.start(controlPort, tokenFile,
+					this);
+			this.addHistoryLine("Control port: " + controlPort + " (token: "
+					+ tokenFile.getAbsolutePath() + ")",
+					HISTORY_TEXT_COLOR_INFO, false);
+		} catch (IOException e) {
+			this.addHistoryLine("Cannot open control port " + controlPort
+					+ ": " + e, HISTORY_TEXT_COLOR_WARNING, false);
+		}
+	}
+
 	private void initFrame(String title) {
 		int windowX = this.mPrefs.getInt(
 				PreferenceConstants.KEY_MAIN_FRAME_WINDOW_X,
@@ -393,7 +436,7 @@ public class MainFrameController implements ActionListener, USBMessageListener,
 		}
 			break;
 		case ControllerState.Type.CONNECTED: {
-			int mirroredStateType = this.mMirroredServiceState.serviceStateType;
+			int mirroredStateType = this.mServiceStateMirror.getServiceStateType();
 			switch (mirroredStateType) {
 			case RecordroidServiceState.ServiceStateType.IDLE: {
 				this.mStatusLabel.setText("Connected");
@@ -453,7 +496,7 @@ public class MainFrameController implements ActionListener, USBMessageListener,
 		}
 			break;
 		case ControllerState.Type.CONNECTED: {
-			int mirroredStateType = this.mMirroredServiceState.serviceStateType;
+			int mirroredStateType = this.mServiceStateMirror.getServiceStateType();
 			switch (mirroredStateType) {
 			case RecordroidServiceState.ServiceStateType.IDLE: {
 				this.mRecordButton.setEnabled(true);
@@ -491,7 +534,7 @@ public class MainFrameController implements ActionListener, USBMessageListener,
 		int stateType = this.mControllerState.getType();
 		switch (stateType) {
 		case ControllerState.Type.CONNECTED: {
-			int mirroredStateType = this.mMirroredServiceState.serviceStateType;
+			int mirroredStateType = this.mServiceStateMirror.getServiceStateType();
 			switch (mirroredStateType) {
 			case RecordroidServiceState.ServiceStateType.IDLE: {
 				this.mSelectRecordFileButton.setEnabled(true);
@@ -527,7 +570,7 @@ public class MainFrameController implements ActionListener, USBMessageListener,
 		int stateType = this.mControllerState.getType();
 		switch (stateType) {
 		case ControllerState.Type.CONNECTED: {
-			int mirroredStateType = this.mMirroredServiceState.serviceStateType;
+			int mirroredStateType = this.mServiceStateMirror.getServiceStateType();
 			switch (mirroredStateType) {
 			case RecordroidServiceState.ServiceStateType.IDLE: {
 				this.mSelectResponseFileButton.setEnabled(true);
@@ -586,7 +629,7 @@ public class MainFrameController implements ActionListener, USBMessageListener,
 		int controllerStateType = this.mControllerState.getType();
 		switch (controllerStateType) {
 		case ControllerState.Type.CONNECTED: {
-			int serviceStateType = this.mMirroredServiceState.serviceStateType;
+			int serviceStateType = this.mServiceStateMirror.getServiceStateType();
 			switch (serviceStateType) {
 			case RecordroidServiceState.ServiceStateType.REPLAYING: {
 				this.mSkipWaitingInReplayButton.setEnabled(true);
@@ -663,7 +706,7 @@ public class MainFrameController implements ActionListener, USBMessageListener,
 		switch (stateType) {
 		case ControllerState.Type.CONNECTED: {
 			// when connected
-			int mirroredStateType = this.mMirroredServiceState.serviceStateType;
+			int mirroredStateType = this.mServiceStateMirror.getServiceStateType();
 			switch (mirroredStateType) {
 			case RecordroidServiceState.ServiceStateType.IDLE: {
 				// Idle: turn on recording
@@ -687,7 +730,7 @@ public class MainFrameController implements ActionListener, USBMessageListener,
 		switch (stateType) {
 		case ControllerState.Type.CONNECTED: {
 			// when connected
-			int mirroredStateType = this.mMirroredServiceState.serviceStateType;
+			int mirroredStateType = this.mServiceStateMirror.getServiceStateType();
 			switch (mirroredStateType) {
 			case RecordroidServiceState.ServiceStateType.IDLE: {
 				// Idle: turn on replaying
@@ -835,6 +878,11 @@ public class MainFrameController implements ActionListener, USBMessageListener,
 					+ this.mRecordFile.getFile().getAbsolutePath(),
 					JOptionPane.ERROR_MESSAGE);
 			return;
+		} catch (IOException e) {
+			makeDialog("File open error", "I/O exception in opening "
+					+ this.mRecordFile.getFile().getAbsolutePath(),
+					JOptionPane.ERROR_MESSAGE);
+			return;
 		}
 
 		// Open file for writing response file
@@ -897,7 +945,7 @@ public class MainFrameController implements ActionListener, USBMessageListener,
 		int stateType = this.mControllerState.getType();
 		switch (stateType) {
 		case ControllerState.Type.CONNECTED: {
-			int serviceStateType = this.mMirroredServiceState.serviceStateType;
+			int serviceStateType = this.mServiceStateMirror.getServiceStateType();
 			switch (serviceStateType) {
 			case RecordroidServiceState.ServiceStateType.REPLAYING: {
 				RecordroidCommand command = RecordroidCommand
@@ -913,7 +961,9 @@ public class MainFrameController implements ActionListener, USBMessageListener,
 		}
 	}
 
-	private void onDirtyLaunch(RecordroidServiceState initialState) {
+	// Implements ServiceStateMirror.Owner
+	@Override
+	public void onDirtyLaunch(RecordroidServiceState initialState) {
 		// Dirty Launch:
 		// Shutdown running behavior that is started before this
 		// controller's launch
@@ -940,21 +990,7 @@ public class MainFrameController implements ActionListener, USBMessageListener,
 	private void onReceiveServiceState(RecordroidServiceState newState) {
 		// FIXED: accessing & updating 'state' should be serialized
 		synchronized (newState) {
-			int oldStateType = -1;
-			if (this.mMirroredServiceState == null) {
-				this.mMirroredServiceState = newState;
-
-				this.onDirtyLaunch(newState);
-			} else {
-				oldStateType = this.mMirroredServiceState.serviceStateType;
-				this.mMirroredServiceState.serviceStateType = newState.serviceStateType;
-			}
-
-			// When target state is changed, do more behaviors.
-			if (oldStateType != newState.serviceStateType) {
-				this.onChangedServiceStateType(oldStateType,
-						newState.serviceStateType);
-			}
+			this.mServiceStateMirror.onReceiveServiceState(newState);
 
 			// Change controller's state by service state
 			if (newState.serviceStateType == RecordroidServiceState.ServiceStateType.PREPARING_TO_REPLAY) {
@@ -975,7 +1011,8 @@ public class MainFrameController implements ActionListener, USBMessageListener,
 		}
 	}
 
-	private void onChangedServiceStateType(int oldStateType, int newStateType) {
+	@Override
+	public void onChangedServiceStateType(int oldStateType, int newStateType) {
 		if (oldStateType == RecordroidServiceState.ServiceStateType.RECORDING
 				&& newStateType == RecordroidServiceState.ServiceStateType.IDLE) {
 			// FIXED: Mark that present record file should be closed.
@@ -1039,27 +1076,32 @@ public class MainFrameController implements ActionListener, USBMessageListener,
 			this.mPrevReplayBufferIndex = fields.presentReplayBufferIndex;
 		}
 
-		long requiredSN = fields.requiredSN;
 		// Require replay buffer from record file
-		TraceFile.Reader.TempBuffer tempBuffer = this.mRecordFile
-				.requireReplayBuffer(requiredSN);
-		if (tempBuffer != null) {
-			// Send 'fill replay buffer' command to targetType
-			RecordroidCommand cmd = RecordroidCommand.makeFillReplayBuffer(
-					requiredSN, tempBuffer.events.size(),
-					(tempBuffer.isAllReadDone == false));
-			this.addHistoryLine(tempBuffer.events.size()
-					+ " Sending events... (SN: " + requiredSN + ")",
-					HISTORY_TEXT_COLOR_COMMAND, true);
-			mUSBConnector.sendMessage(cmd);
-
-			// Send all events of TempBuffer to target
-			for (RecordroidEvent e : tempBuffer.events) {
-				mUSBConnector.sendMessage(e);
-			}
+		try {
+			this.mServiceStateMirror.streamReplayChunks(this.mRecordFile,
+					fields);
+		} catch (IOException e) {
+			// Rest of the trace is lost: stop rather than end replay early
+			this.addHistoryLine("Record file read failed: " + e.getMessage(),
+					HISTORY_TEXT_COLOR_WARNING, true);
+			this.turnOffReplay();
 		}
 	}
 
+	@Override
+	public void onSendReplayChunk(RecordroidReplayChunk chunk) {
+		// Chunk is sent to target as one packed message.
+		// It stands for 'fill replay buffer' command and all its events.
+		this.addHistoryLine(chunk.numEvents + " Sending events... (SN: "
+				+ chunk.sn + ")", HISTORY_TEXT_COLOR_COMMAND, true);
+	}
+
+	@Override
+	public void onSendBufferFull(long sn) {
+		this.addHistoryLine("Send buffer full (SN: " + sn + ")",
+				HISTORY_TEXT_COLOR_INFO, true);
+	}
+
 	private void putRequestStateMessage() {
 		if (this.mUSBConnector.getSendBufferLength() == 0) {
 			RecordroidCommand newCmd = RecordroidCommand.makeRequestState();
@@ -1199,11 +1241,28 @@ public class MainFrameController implements ActionListener, USBMessageListener,
 		// Ignore
 	}
 
+	@Override
+	public void onUSBMessagesLost() {
+		// A lost chunk is required again, but it counts as sent.
+		this.mServiceStateMirror.resync();
+	}
+
 	// Implements ADBConnectionListener
 	@Override
 	public void onADBConnect() {
 		// start USB client connector
+		this.mUSBConnector.setCompressionThreshold(this.mPrefs.getInt(
+				PreferenceConstants.KEY_WIRE_COMPRESSION_THRESHOLD,
+				PreferenceConstants.INIT_WIRE_COMPRESSION_THRESHOLD));
 		this.mUSBConnector.start();
+		this.mUSBConnector.getMetrics().startDump(
+				"USBConnector",
+				this.mPrefs.getInt(
+						PreferenceConstants.KEY_METRICS_DUMP_INTERVAL_MS,
+						PreferenceConstants.INIT_METRICS_DUMP_INTERVAL_MS),
+				System.out);
+		// A chunk in flight may have been lost during disconnection.
+		this.mServiceStateMirror.resync();
 		this.addHistoryLine("Target found. Waiting for Recordroid Service...",
 				HISTORY_TEXT_COLOR_INFO, true);
 	}
@@ -1212,12 +1271,115 @@ public class MainFrameController implements ActionListener, USBMessageListener,
 	public void onADBDisconnect() {
 		// stop USB client connector
 		this.mUSBConnector.stop();
+		this.mUSBConnector.getMetrics().stopDump();
 		this.mControllerState.setType(ControllerState.Type.DISCONNECTED);
 		this.addHistoryLine("Target not found! Waiting for target...",
 				HISTORY_TEXT_COLOR_WARNING, false);
 		this.updateUI();
 	}
 
+	// Implements ControlHandler
+	// Commands are checked as buttons are enabled, and run on the event
+	// dispatch thread as clicks are.
+	@Override
+	public int getControllerStateType() {
+		return this.mControllerState.getType();
+	}
+
+	@Override
+	public int getServiceStateType() {
+		return this.mServiceStateMirror.getServiceStateType();
+	}
+
+	@Override
+	public File getRecordFile() {
+		return this.mRecordFile.getFile();
+	}
+
+	@Override
+	public File getResponseFile() {
+		return this.mResponseFile.getFile();
+	}
+
+	@Override
+	public ConnectorMetrics getMetrics() {
+		return this.mUSBConnector.getMetrics();
+	}
+
+	@Override
+	public void onControlRecordOn(final File traceFile) {
+		ControlServer.requireServiceState(this,
+				RecordroidServiceState.ServiceStateType.IDLE);
+		if (traceFile == null && this.mRecordFile.getFile() == null)
+			throw new IllegalStateException("no record file");
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				if (traceFile != null)
+					mRecordFile.setFile(traceFile);
+				turnOnRecord();
+			}
+		});
+	}
+
+	@Override
+	public void onControlRecordOff() {
+		ControlServer.requireServiceState(this,
+				RecordroidServiceState.ServiceStateType.RECORDING);
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				turnOffRecord();
+			}
+		});
+	}
+
+	@Override
+	public void onControlReplayOn(final File traceFile) {
+		ControlServer.requireServiceState(this,
+				RecordroidServiceState.ServiceStateType.IDLE);
+		if (traceFile == null && this.mRecordFile.getFile() == null)
+			throw new IllegalStateException("no record file");
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				if (traceFile != null)
+					mRecordFile.setFile(traceFile);
+				turnOnReplay();
+			}
+		});
+	}
+
+	@Override
+	public void onControlReplayOff() {
+		ControlServer.requireServiceState(this,
+				RecordroidServiceState.ServiceStateType.PREPARING_TO_REPLAY,
+				RecordroidServiceState.ServiceStateType.REPLAYING);
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				turnOffReplay();
+			}
+		});
+	}
+
+	@Override
+	public void onControlSkipWaiting() {
+		ControlServer.requireServiceState(this,
+				RecordroidServiceState.ServiceStateType.REPLAYING);
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				skipWaitingInReplay();
+			}
+		});
+	}
+
+	@Override
+	public void onControlResponseFile(final File responseFile) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				mResponseFile.setFile(responseFile);
+				updateUI();
+			}
+		});
+	}
+
 	// Implements WindowListener
 	@Override
 	public void windowActivated(WindowEvent arg0) {
@@ -1229,6 +1391,8 @@ public class MainFrameController implements ActionListener, USBMessageListener,
 
 	@Override
 	public void windowClosing(WindowEvent arg0) {
+		if (this.mControlServer != null)
+			this.mControlServer.stop();
 		try {
 			this.mPrefs.putInt(PreferenceConstants.KEY_MAIN_FRAME_WINDOW_X,
 					this.mFrame.getLocation().x);
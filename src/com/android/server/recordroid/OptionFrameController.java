@@ -18,7 +18,7 @@ import javax.swing.JTextField;
 
 public class OptionFrameController implements WindowListener, ActionListener {
 	private static final int INIT_WINDOW_WIDTH = 400;
-	private static final int INIT_WINDOW_HEIGHT = 300;
+	private static final int INIT_WINDOW_HEIGHT = 1015;
 	private static final String PREF_KEY_WINDOW_X = "OptionFrame_Window_X";
 	private static final String PREF_KEY_WINDOW_Y = "OptionFrame_Window_Y";
 	private static final int INIT_WINDOW_X = 250;
@@ -86,6 +86,29 @@ public class OptionFrameController implements WindowListener, ActionListener {
 		this.mOptionTuples.add(OptionFieldTuple.make("History buffer size",
 				PreferenceConstants.KEY_HISTORY_TEXT_LIMIT,
 				PreferenceConstants.INIT_HISTORY_TEXT_LIMIT, this.mPrefs));
+		this.mOptionTuples.add(OptionFieldTuple.make(
+				"USB compression threshold(bytes)",
+				PreferenceConstants.KEY_WIRE_COMPRESSION_THRESHOLD,
+				PreferenceConstants.INIT_WIRE_COMPRESSION_THRESHOLD,
+				this.mPrefs));
+		this.mOptionTuples.add(OptionLabelTuple.make("<font color=blue>0 disables compression. Applied from next connection.</font>"));
+		this.mOptionTuples.add(OptionFieldTuple.make(
+				"USB metrics dump interval(ms)",
+				PreferenceConstants.KEY_METRICS_DUMP_INTERVAL_MS,
+				PreferenceConstants.INIT_METRICS_DUMP_INTERVAL_MS,
+				this.mPrefs));
+		this.mOptionTuples.add(OptionLabelTuple.make("<font color=blue>Metrics are printed to standard output. 0 disables it.</font>"));
+		this.mOptionTuples.add(OptionFieldTuple.make("Control port",
+				PreferenceConstants.KEY_CONTROL_PORT,
+				PreferenceConstants.INIT_CONTROL_PORT, this.mPrefs));
+		this.mOptionTuples.add(OptionLabelTuple.make("<font color=blue>Line protocol on loopback for scripts. 0 disables it. Applied from next launch.</font>"));
+		this.mOptionTuples.add(OptionFieldTuple.make("ADB server host",
+				PreferenceConstants.KEY_ADB_SERVER_HOST,
+				PreferenceConstants.INIT_ADB_SERVER_HOST, this.mPrefs));
+		this.mOptionTuples.add(OptionFieldTuple.make("ADB server port",
+				PreferenceConstants.KEY_ADB_SERVER_PORT,
+				PreferenceConstants.INIT_ADB_SERVER_PORT, this.mPrefs));
+		this.mOptionTuples.add(OptionLabelTuple.make("<font color=blue>Devices are tracked through ADB server. Applied from next launch.</font>"));
 		this.mOptionTuples.add(OptionLabelTuple.make(""));
 		this.mOptionTuples.add(OptionLabelTuple
 				.makeBold("Sleeping during Replay"));
@@ -97,6 +120,41 @@ public class OptionFrameController implements WindowListener, ActionListener {
 				.add(OptionLabelTuple
 						.make("<font color=red>Maximum sleep time is applied from next recording.</font>"));
 		this.mOptionTuples.add(OptionLabelTuple.make(""));
+		this.mOptionTuples.add(OptionLabelTuple.makeBold("Record File"));
+		this.mOptionTuples.add(OptionFieldTuple.make("Trace file format",
+				PreferenceConstants.KEY_TRACE_FORMAT,
+				PreferenceConstants.INIT_TRACE_FORMAT, this.mPrefs));
+		this.mOptionTuples.add(OptionLabelTuple.make("<font color=blue>1: text, 2: binary, 3: block-compressed. Replay detects the format automatically.</font>"));
+		this.mOptionTuples.add(OptionFieldTuple.make("Trace read mode",
+				PreferenceConstants.KEY_TRACE_READ_MODE,
+				PreferenceConstants.INIT_TRACE_READ_MODE, this.mPrefs));
+		this.mOptionTuples.add(OptionLabelTuple.make("<font color=blue>1: stream, 2: memory-mapped</font>"));
+		this.mOptionTuples.add(OptionFieldTuple.make("Post-record sort mode",
+				PreferenceConstants.KEY_POST_RECORD_SORT_MODE,
+				PreferenceConstants.INIT_POST_RECORD_SORT_MODE, this.mPrefs));
+		this.mOptionTuples.add(OptionLabelTuple.make("<font color=blue>1: in-memory, 2: external merge sort, 3: streaming</font>"));
+		this.mOptionTuples.add(OptionFieldTuple.make(
+				"Post-record sort budget(events)",
+				PreferenceConstants.KEY_POST_RECORD_SORT_BUDGET,
+				PreferenceConstants.INIT_POST_RECORD_SORT_BUDGET, this.mPrefs));
+		this.mOptionTuples.add(OptionFieldTuple.make(
+				"Streaming reorder window(events)",
+				PreferenceConstants.KEY_REORDER_WINDOW_SIZE,
+				PreferenceConstants.INIT_REORDER_WINDOW_SIZE, this.mPrefs));
+		this.mOptionTuples.add(OptionFieldTuple.make(
+				"Writer flush interval(ms)",
+				PreferenceConstants.KEY_WRITER_FLUSH_INTERVAL_MS,
+				PreferenceConstants.INIT_WRITER_FLUSH_INTERVAL_MS, this.mPrefs));
+		this.mOptionTuples.add(OptionFieldTuple.make(
+				"Writer fsync interval(ms)",
+				PreferenceConstants.KEY_WRITER_SYNC_INTERVAL_MS,
+				PreferenceConstants.INIT_WRITER_SYNC_INTERVAL_MS, this.mPrefs));
+		this.mOptionTuples.add(OptionFieldTuple.make(
+				"Writer fsync size(bytes)",
+				PreferenceConstants.KEY_WRITER_SYNC_BYTES,
+				PreferenceConstants.INIT_WRITER_SYNC_BYTES, this.mPrefs));
+		this.mOptionTuples.add(OptionLabelTuple.make("<font color=blue>0 disables fsync by interval or by size.</font>"));
+		this.mOptionTuples.add(OptionLabelTuple.make(""));
 		this.mOptionTuples.add(OptionLabelTuple.makeBold("Replay Buffer"));
 		this.mOptionTuples.add(OptionFieldTuple.make(
 				"Minimum replay buffer size(events)",
@@ -107,6 +165,34 @@ public class OptionFrameController implements WindowListener, ActionListener {
 				PreferenceConstants.KEY_MINIMUM_PRELOAD_INTERVAL_US,
 				PreferenceConstants.INIT_MINIMUM_PRELOAD_INTERVAL_US,
 				this.mPrefs));
+		this.mOptionTuples.add(OptionFieldTuple.make(
+				"Prefetch depth(chunks)",
+				PreferenceConstants.KEY_PREFETCH_DEPTH,
+				PreferenceConstants.INIT_PREFETCH_DEPTH, this.mPrefs));
+		this.mOptionTuples.add(OptionLabelTuple.make("<font color=blue>Chunks read ahead of replay. Applied from next replay.</font>"));
+		this.mOptionTuples.add(OptionLabelTuple.make(""));
+		this.mOptionTuples.add(OptionLabelTuple.makeBold("Fleet"));
+		this.mOptionTuples.add(OptionFieldTuple.make("Fleet base port",
+				PreferenceConstants.KEY_FLEET_BASE_PORT,
+				PreferenceConstants.INIT_FLEET_BASE_PORT, this.mPrefs));
+		this.mOptionTuples.add(OptionLabelTuple.make("<font color=blue>Each device is forwarded from the lowest free port from it.</font>"));
+		this.mOptionTuples.add(OptionFieldTuple.make(
+				"Shared chunk cache size(chunks)",
+				PreferenceConstants.KEY_FLEET_CHUNK_CACHE_SIZE,
+				PreferenceConstants.INIT_FLEET_CHUNK_CACHE_SIZE, this.mPrefs));
+		this.mOptionTuples.add(OptionFieldTuple.make(
+				"Synchronized start preload(chunks)",
+				PreferenceConstants.KEY_BARRIER_PRELOAD_CHUNKS,
+				PreferenceConstants.INIT_BARRIER_PRELOAD_CHUNKS, this.mPrefs));
+		this.mOptionTuples.add(OptionFieldTuple.make(
+				"Synchronized start timeout(ms)",
+				PreferenceConstants.KEY_BARRIER_TIMEOUT_MS,
+				PreferenceConstants.INIT_BARRIER_TIMEOUT_MS, this.mPrefs));
+		this.mOptionTuples.add(OptionFieldTuple.make(
+				"Synchronized start margin(ms)",
+				PreferenceConstants.KEY_BARRIER_START_MARGIN_MS,
+				PreferenceConstants.INIT_BARRIER_START_MARGIN_MS, this.mPrefs));
+		this.mOptionTuples.add(OptionLabelTuple.make("<font color=blue>Devices not preloaded within the timeout do not replay.</font>"));
 	}
 
 	private void updateUI() {
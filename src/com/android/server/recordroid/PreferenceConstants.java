@@ -15,12 +15,59 @@ public class PreferenceConstants {
 
 	public static final String KEY_HISTORY_TEXT_LIMIT = "HistoryText_Limit";
 	public static final int INIT_HISTORY_TEXT_LIMIT = 10000;
+	public static final String KEY_WIRE_COMPRESSION_THRESHOLD = "Wire_Compression_Threshold";
+	public static final int INIT_WIRE_COMPRESSION_THRESHOLD = 512;
+	public static final String KEY_METRICS_DUMP_INTERVAL_MS = "Metrics_Dump_Interval_MS";
+	public static final int INIT_METRICS_DUMP_INTERVAL_MS = 0;
+
+	public static final String KEY_CONTROL_PORT = "Control_Port";
+	public static final int INIT_CONTROL_PORT = 0;
+	public static final String KEY_CONTROL_TOKEN_FILE = "Control_Token_File";
+	public static final String INIT_CONTROL_TOKEN_FILE = System
+			.getProperty("user.home") + "/.recordroid_control_token";
+
+	public static final String KEY_ADB_SERVER_HOST = "ADB_Server_Host";
+	public static final String INIT_ADB_SERVER_HOST = ADBHostClient.DEFAULT_HOST;
+	public static final String KEY_ADB_SERVER_PORT = "ADB_Server_Port";
+	public static final int INIT_ADB_SERVER_PORT = ADBHostClient.DEFAULT_PORT;
+
+	public static final String KEY_FLEET_BASE_PORT = "Fleet_Base_Port";
+	public static final int INIT_FLEET_BASE_PORT = 34001;
+	public static final String KEY_FLEET_CHUNK_CACHE_SIZE = "Fleet_Chunk_Cache_Size";
+	public static final int INIT_FLEET_CHUNK_CACHE_SIZE = 64;
+	public static final String KEY_BARRIER_PRELOAD_CHUNKS = "Barrier_Preload_Chunks";
+	public static final int INIT_BARRIER_PRELOAD_CHUNKS = 2;
+	public static final String KEY_BARRIER_TIMEOUT_MS = "Barrier_Timeout_MS";
+	public static final int INIT_BARRIER_TIMEOUT_MS = 30000;
+	public static final String KEY_BARRIER_START_MARGIN_MS = "Barrier_Start_Margin_MS";
+	public static final int INIT_BARRIER_START_MARGIN_MS = 20;
 
 	public static final String KEY_MINIMUM_PRELOAD_INTERVAL_US = "Minimum_Preload_Interval_US";
 	public static final String KEY_MINIMUM_PRELOAD_SIZE = "Minimum_Preload_Size";
 	public static final long INIT_MINIMUM_PRELOAD_INTERVAL_US = 5 * 1000 * 1000;
 	public static final int INIT_MINIMUM_PRELOAD_SIZE = 5000;
+	public static final String KEY_PREFETCH_DEPTH = "Prefetch_Depth";
+	public static final int INIT_PREFETCH_DEPTH = 4;
 	
 	public static final String KEY_MAXIMUM_SLEEP_MS = "Maximum_Sleep_MS";
 	public static final int INIT_MAXIMUM_SLEEP_MS = 0;
+
+	public static final String KEY_TRACE_FORMAT = "Trace_Format";
+	public static final int INIT_TRACE_FORMAT = TraceFormat.FORMAT_TEXT;
+	public static final String KEY_TRACE_READ_MODE = "Trace_Read_Mode";
+	public static final int INIT_TRACE_READ_MODE = TraceFormat.READ_MODE_MAPPED;
+
+	public static final String KEY_POST_RECORD_SORT_MODE = "Post_Record_Sort_Mode";
+	public static final int INIT_POST_RECORD_SORT_MODE = TraceFile.SORT_MODE_EXTERNAL;
+	public static final String KEY_POST_RECORD_SORT_BUDGET = "Post_Record_Sort_Budget";
+	public static final int INIT_POST_RECORD_SORT_BUDGET = 500000;
+	public static final String KEY_REORDER_WINDOW_SIZE = "Reorder_Window_Size";
+	public static final int INIT_REORDER_WINDOW_SIZE = 4096;
+
+	public static final String KEY_WRITER_FLUSH_INTERVAL_MS = "Writer_Flush_Interval_MS";
+	public static final long INIT_WRITER_FLUSH_INTERVAL_MS = 200;
+	public static final String KEY_WRITER_SYNC_INTERVAL_MS = "Writer_Sync_Interval_MS";
+	public static final long INIT_WRITER_SYNC_INTERVAL_MS = 0;
+	public static final String KEY_WRITER_SYNC_BYTES = "Writer_Sync_Bytes";
+	public static final long INIT_WRITER_SYNC_BYTES = 0;
 }
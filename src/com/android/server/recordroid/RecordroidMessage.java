@@ -1,6 +1,8 @@
 package com.android.server.recordroid;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 
 public abstract class RecordroidMessage implements Serializable {
 	// Implements Serializable
@@ -44,6 +46,13 @@ class RecordroidKernelInputEvent extends RecordroidEvent {
 		return newEvent;
 	}
 
+	public static RecordroidKernelInputEvent make(long timestampUS,
+			int deviceNum, int typeVal, int codeVal, int value) {
+		RecordroidKernelInputEvent newEvent = new RecordroidKernelInputEvent();
+		newEvent.setFields(timestampUS, deviceNum, typeVal, codeVal, value);
+		return newEvent;
+	}
+
 	public static RecordroidKernelInputEvent makeFromStringForTraceFile(
 			String strLine) {
 		RecordroidKernelInputEvent newEvent = new RecordroidKernelInputEvent();
@@ -61,19 +70,20 @@ class RecordroidKernelInputEvent extends RecordroidEvent {
 	}
 
 	public static boolean transformableFrom(String strLine) {
-		String[] tokens = strLine.split(" ");
-		return (tokens[0].compareTo(RecordroidKernelInputEvent.magicString) == 0);
+		return (TraceTokenizer.kindOf(strLine) == TraceFormat.KIND_KERNEL_INPUT);
 	}
 
 	// Extends RecordroidEvent
 	@Override
 	protected void setFromStringForTraceFile(String strLine) {
-		String[] tokens = strLine.split(" ");
-		this.timestampUS = Long.parseLong(tokens[1]);
-		this.deviceNum = Integer.parseInt(tokens[2]);
-		this.typeVal = Integer.parseInt(tokens[3]);
-		this.codeVal = Integer.parseInt(tokens[4]);
-		this.value = Integer.parseInt(tokens[5]);
+		TraceTokenizer tokenizer = new TraceTokenizer();
+		if (tokenizer.parse(strLine) == false)
+			throw new NumberFormatException("Invalid trace line: " + strLine);
+		this.timestampUS = tokenizer.timestampUS;
+		this.deviceNum = tokenizer.deviceNum;
+		this.typeVal = tokenizer.typeVal;
+		this.codeVal = tokenizer.codeVal;
+		this.value = tokenizer.value;
 	}
 
 	@Override
@@ -161,6 +171,14 @@ class RecordroidPlatformEvent extends RecordroidEvent {
 		return newEvent;
 	}
 
+	public static RecordroidPlatformEvent make(long timestampUS,
+			int platformEventType, int responseTimeUS, int priv, int secondPriv) {
+		RecordroidPlatformEvent newEvent = new RecordroidPlatformEvent();
+		newEvent.setFields(timestampUS, platformEventType, responseTimeUS,
+				priv, secondPriv);
+		return newEvent;
+	}
+
 	public static RecordroidPlatformEvent makeFromStringForTraceFile(
 			String strLine) {
 		RecordroidPlatformEvent newEvent = new RecordroidPlatformEvent();
@@ -179,19 +197,20 @@ class RecordroidPlatformEvent extends RecordroidEvent {
 	}
 
 	public static boolean transformableFrom(String strLine) {
-		String[] tokens = strLine.split(" ");
-		return (tokens[0].compareTo(RecordroidPlatformEvent.magicString) == 0);
+		return (TraceTokenizer.kindOf(strLine) == TraceFormat.KIND_PLATFORM);
 	}
 
 	// Extends RecordroidEvent
 	@Override
 	protected void setFromStringForTraceFile(String strLine) {
-		String[] tokens = strLine.split(" ");
-		this.timestampUS = Long.parseLong(tokens[1]);
-		this.platformEventType = Integer.parseInt(tokens[2]);
-		this.responseTimeUS = Integer.parseInt(tokens[3]);
-		this.priv = Integer.parseInt(tokens[4]);
-		this.secondPriv = Integer.parseInt(tokens[5]);
+		TraceTokenizer tokenizer = new TraceTokenizer();
+		if (tokenizer.parse(strLine) == false)
+			throw new NumberFormatException("Invalid trace line: " + strLine);
+		this.timestampUS = tokenizer.timestampUS;
+		this.platformEventType = tokenizer.deviceNum;
+		this.responseTimeUS = tokenizer.typeVal;
+		this.priv = tokenizer.codeVal;
+		this.secondPriv = tokenizer.value;
 	}
 
 	@Override
@@ -240,6 +259,8 @@ class RecordroidCommand extends RecordroidMessage {
 		public static final int SKIP_WAITING_IN_REPLAY = 7;
 	}
 
+	public static final long START_DEFERRED = -1;
+
 	// Fields
 	public int commandType;
 	public FillReplayBufferFields fillReplayBufferFields = null;
@@ -249,6 +270,12 @@ class RecordroidCommand extends RecordroidMessage {
 	}
 
 	// Static constructors
+	public static RecordroidCommand make(int commandType) {
+		RecordroidCommand newCommand = new RecordroidCommand();
+		newCommand.setFields(commandType);
+		return newCommand;
+	}
+
 	public static RecordroidCommand makeRecordingOn() {
 		RecordroidCommand newCommand = new RecordroidCommand();
 		newCommand.setFields(CommandType.RECORDING_ON);
@@ -269,6 +296,15 @@ class RecordroidCommand extends RecordroidMessage {
 		return newCommand;
 	}
 
+	// Timed replay: see ReplayingOnFields.startDelayUS
+	public static RecordroidCommand makeReplayingOn(int replayBufferSize,
+			int maxSleepTimeMS, long startDelayUS) {
+		RecordroidCommand newCommand = makeReplayingOn(replayBufferSize,
+				maxSleepTimeMS);
+		newCommand.replayingOnFields.startDelayUS = startDelayUS;
+		return newCommand;
+	}
+
 	public static RecordroidCommand makeReplayingOff() {
 		RecordroidCommand newCommand = new RecordroidCommand();
 		newCommand.setFields(CommandType.REPLAYING_OFF);
@@ -339,6 +375,35 @@ class RecordroidCommand extends RecordroidMessage {
 
 		public int replayBufferSize;
 		public int maxSleepTimeMS;
+		// Start of replay, as delay from the arrival of this command.
+		// - 0: start as soon as the first chunk is preloaded (default)
+		// - START_DEFERRED: preload and hold in PREPARING_TO_REPLAY,
+		// advertising required SN and credit, until another REPLAYING_ON
+		// with non-negative delay releases it.
+		// Targets which do not know it start at once.
+		public long startDelayUS;
+
+		// Host only
+		private transient long mStartNS;
+		private transient long mLinkLatencyUS;
+		private transient boolean mIsStartTimed;
+
+		// Replay starts at {startNS} of host's System.nanoTime().
+		// The delay is fixed when the command is written, less the time
+		// {linkLatencyUS} to reach target, so waiting in send buffer does
+		// not put off the start.
+		public void setStartNS(long startNS, long linkLatencyUS) {
+			this.mStartNS = startNS;
+			this.mLinkLatencyUS = linkLatencyUS;
+			this.mIsStartTimed = true;
+		}
+
+		// Called just before the command is written
+		public void fixStartDelay() {
+			if (this.mIsStartTimed)
+				this.startDelayUS = Math.max((this.mStartNS - System
+						.nanoTime()) / 1000 - this.mLinkLatencyUS, 0);
+		}
 
 		// Implements Serializable
 		private static final long serialVersionUID = 8642177897685093013L;
@@ -362,6 +427,12 @@ class RecordroidServiceState extends RecordroidMessage {
 	}
 
 	// Static constructors
+	public static RecordroidServiceState make(int serviceStateType) {
+		RecordroidServiceState newServiceState = new RecordroidServiceState();
+		newServiceState.setFields(serviceStateType);
+		return newServiceState;
+	}
+
 	public static RecordroidServiceState makeRecording() {
 		RecordroidServiceState newServiceState = new RecordroidServiceState();
 		newServiceState.setFields(ServiceStateType.RECORDING);
@@ -377,10 +448,18 @@ class RecordroidServiceState extends RecordroidMessage {
 	public static RecordroidServiceState makeReplaying(long requiredSN,
 			long runningSN, int presentReplayBufferIndex,
 			int presentReplayBufferSize) {
+		return makeReplaying(requiredSN, runningSN, presentReplayBufferIndex,
+				presentReplayBufferSize, 0);
+	}
+
+	public static RecordroidServiceState makeReplaying(long requiredSN,
+			long runningSN, int presentReplayBufferIndex,
+			int presentReplayBufferSize, int freeReplayBufferSlots) {
 		RecordroidServiceState newServiceState = new RecordroidServiceState();
 		newServiceState.setFields(ServiceStateType.REPLAYING);
 		newServiceState.setReplayingFields(requiredSN, runningSN,
 				presentReplayBufferIndex, presentReplayBufferSize);
+		newServiceState.replayingFields.freeReplayBufferSlots = freeReplayBufferSlots;
 		return newServiceState;
 	}
 
@@ -419,8 +498,60 @@ class RecordroidServiceState extends RecordroidMessage {
 		public long runningSN;
 		public int presentReplayBufferIndex;
 		public int presentReplayBufferSize;
+		// Credit: chunks that target can take from requiredSN on.
+		// Targets which do not advertise it leave it 0, that means 1.
+		public int freeReplayBufferSlots;
 
 		// Implements Serializable
 		private static final long serialVersionUID = 3009212456262714675L;
 	}
-}
\ No newline at end of file
+}
+// A whole replay buffer chunk in one message.
+// Events are packed in binary trace record layout(TraceFormat), so the
+// chunk is sent as one contiguous payload. It is sent only with the binary
+// wire codec: for legacy peers it is expanded into a FILL_REPLAY_BUFFER
+// command followed by its events.
+class RecordroidReplayChunk extends RecordroidMessage {
+	public long sn;
+	public int numEvents;
+	public boolean isNextExists;
+	public byte[] records;
+
+	RecordroidReplayChunk() {
+	}
+
+	// Static constructors
+	public static RecordroidReplayChunk make(long sn, int numEvents,
+			boolean isNextExists, byte[] records) {
+		RecordroidReplayChunk newChunk = new RecordroidReplayChunk();
+		newChunk.sn = sn;
+		newChunk.numEvents = numEvents;
+		newChunk.isNextExists = isNextExists;
+		newChunk.records = records;
+		return newChunk;
+	}
+
+	// FILL_REPLAY_BUFFER command and events that this chunk stands for
+	public void expandTo(ArrayList<RecordroidMessage> messages) {
+		messages.add(RecordroidCommand.makeFillReplayBuffer(this.sn,
+				this.numEvents, this.isNextExists));
+		ByteBuffer records = ByteBuffer.wrap(this.records);
+		while (records.remaining() >= TraceFormat.BINARY_RECORD_SIZE) {
+			byte kind = records.get();
+			long timestampUS = records.getLong();
+			int deviceNum = records.getInt();
+			int typeVal = records.getInt();
+			int codeVal = records.getInt();
+			int value = records.getInt();
+			if (kind == TraceFormat.KIND_KERNEL_INPUT)
+				messages.add(RecordroidKernelInputEvent.make(timestampUS,
+						deviceNum, typeVal, codeVal, value));
+			else if (kind == TraceFormat.KIND_PLATFORM)
+				messages.add(RecordroidPlatformEvent.make(timestampUS,
+						deviceNum, typeVal, codeVal, value));
+		}
+	}
+
+	// Implements Serializable
+	private static final long serialVersionUID = 5230712391476012841L;
+}
@@ -0,0 +1,116 @@
+package com.android.server.recordroid;
+
+import java.io.IOException;
+
+// Host side mirror of a target's service state, shared by the controllers.
+// A received state updates the mirror, and the owner is called back:
+// - onDirtyLaunch() with the first state, which may be left by a former
+//   controller;
+// - onChangedServiceStateType() when the type is changed.
+// It also streams replay chunks of a chunk source (credit-based streaming):
+// the chunk that target requires, and the chunks after it up to the free
+// slots that target advertised. A chunk is never sent twice unless target
+// requires it again.
+class ServiceStateMirror {
+	private Owner mOwner;
+	private USBConnector mUSBConnector;
+	private RecordroidServiceState mServiceState = null;
+	private volatile boolean mShouldResync = false;
+
+	public ServiceStateMirror(Owner owner, USBConnector connector) {
+		this.mOwner = owner;
+		this.mUSBConnector = connector;
+	}
+
+	// Type of the last received state, or -1
+	public int getServiceStateType() {
+		RecordroidServiceState serviceState = this.mServiceState;
+		if (serviceState == null)
+			return -1;
+		return serviceState.serviceStateType;
+	}
+
+	public void onReceiveServiceState(RecordroidServiceState newState) {
+		int oldStateType = -1;
+		if (this.mServiceState == null) {
+			this.mServiceState = newState;
+			this.mOwner.onDirtyLaunch(newState);
+		} else {
+			oldStateType = this.mServiceState.serviceStateType;
+			this.mServiceState.serviceStateType = newState.serviceStateType;
+		}
+
+		// When target state is changed, do more behaviors.
+		if (oldStateType != newState.serviceStateType)
+			this.mOwner.onChangedServiceStateType(oldStateType,
+					newState.serviceStateType);
+	}
+
+	// Send the next required chunk even if it has already been sent.
+	// It is used for retransmission after reconnecting to target, or after
+	// the connector lost sent messages.
+	public void resync() {
+		this.mShouldResync = true;
+	}
+
+	// Send the chunks of {source} that target requires by {fields}.
+	// Only the required chunk is waited for, if it is not read yet.
+	// Throws IOException if the source cannot be read any further: the
+	// replay should be aborted rather than ended early.
+	public void streamReplayChunks(ChunkSource source,
+			RecordroidServiceState.ReplayingFields fields) throws IOException {
+		long requiredSN = fields.requiredSN;
+		if (this.mShouldResync) {
+			// A chunk in flight may have been lost
+			this.mShouldResync = false;
+			source.rewindReplayBuffer(requiredSN);
+		}
+		int window = Math.max(fields.freeReplayBufferSlots, 1);
+		long sn = Math.max(requiredSN, source.getLastSentSN() + 1);
+		for (; sn < requiredSN + window; sn++) {
+			RecordroidReplayChunk chunk = source.takeReplayChunk(sn,
+					(sn == requiredSN));
+			if (chunk == null)
+				break;
+			this.mOwner.onSendReplayChunk(chunk);
+			if (this.mUSBConnector.sendMessage(chunk) == false) {
+				// Send buffer is full: the chunk is sent next time target
+				// requires a chunk, and the ones before it are not resent.
+				source.rewindReplayBuffer(sn);
+				this.mOwner.onSendBufferFull(sn);
+				break;
+			}
+			if (chunk.isNextExists == false)
+				break;
+		}
+	}
+
+	// Callbacks come from the USB message handler of the owner
+	interface Owner {
+		public void onDirtyLaunch(RecordroidServiceState initialState);
+
+		// {oldStateType} is -1 for the first state
+		public void onChangedServiceStateType(int oldStateType,
+				int newStateType);
+
+		public void onSendReplayChunk(RecordroidReplayChunk chunk);
+
+		// Chunk {sn} is not taken by the connector
+		public void onSendBufferFull(long sn);
+	}
+
+	// Replay chunks of a trace. A chunk that is taken counts as sent.
+	interface ChunkSource {
+		// SN of the chunk taken last, or 0
+		public long getLastSentSN();
+
+		// Chunk {sn} as a message, or null if there is no such chunk.
+		// If it is not read yet, it is waited for only if {mayWait}.
+		public RecordroidReplayChunk takeReplayChunk(long sn, boolean mayWait)
+				throws IOException;
+
+		// Chunk {sn} was taken but not sent: take it again next.
+		// Chunks before it stay sent.
+		public void rewindReplayBuffer(long sn);
+	}
+}
@@ -0,0 +1,583 @@
+package com.android.server.recordroid;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Reads trace records one by one, regardless of the trace file format.
+// Fields of the present record are kept in primitive fields.
+// Platform events keep (type, responseTime, priv, secondPriv) in
+// (deviceNum, typeVal, codeVal, value).
+abstract class TraceCursor {
+	public byte kind;
+	public long timestampUS;
+	public int deviceNum;
+	public int typeVal;
+	public int codeVal;
+	public int value;
+
+	public static TraceCursor open(File file) throws IOException {
+		return open(file, TraceFormat.READ_MODE_STREAM);
+	}
+
+	public static TraceCursor open(File file, int readMode)
+			throws IOException {
+		int format = TraceFormat.detect(file);
+		if (format == TraceFormat.FORMAT_BLOCK_COMPRESSED) {
+			return new BlockTraceCursor(file);
+		} else if (format == TraceFormat.FORMAT_BINARY) {
+			if (readMode == TraceFormat.READ_MODE_MAPPED)
+				return new MappedBinaryTraceCursor(file);
+			else
+				return new BinaryTraceCursor(file);
+		} else {
+			if (readMode == TraceFormat.READ_MODE_MAPPED)
+				return new MappedTextTraceCursor(file);
+			else
+				return new TextTraceCursor(file);
+		}
+	}
+
+	// Move to the next record. Returns false at the end of trace.
+	abstract public boolean next() throws IOException;
+
+	// Position of the present record. It can be given to seek() later.
+	abstract public long recordPosition();
+
+	// Move to the record at given position. The next call of next() reads
+	// the record.
+	abstract public void seek(long position) throws IOException;
+
+	abstract public void close() throws IOException;
+
+	protected void setFields(TraceTokenizer tokenizer) {
+		this.kind = tokenizer.kind;
+		this.timestampUS = tokenizer.timestampUS;
+		this.deviceNum = tokenizer.deviceNum;
+		this.typeVal = tokenizer.typeVal;
+		this.codeVal = tokenizer.codeVal;
+		this.value = tokenizer.value;
+	}
+
+	public RecordroidEvent toEvent() {
+		switch (this.kind) {
+		case TraceFormat.KIND_KERNEL_INPUT:
+			return RecordroidKernelInputEvent.make(this.timestampUS,
+					this.deviceNum, this.typeVal, this.codeVal, this.value);
+		case TraceFormat.KIND_PLATFORM:
+			return RecordroidPlatformEvent.make(this.timestampUS,
+					this.deviceNum, this.typeVal, this.codeVal, this.value);
+		}
+		return null;
+	}
+}
+
+// Reads text records from a file channel into a reusable byte buffer and
+// parses each line in place.
+class TextTraceCursor extends TraceCursor {
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	private FileInputStream mInStream;
+	private FileChannel mChannel;
+	private ByteBuffer mBuffer;
+	private long mBufferPosition; // file position of the buffer's index 0
+	private long mRecordPosition;
+	private boolean mIsEOF;
+	private TraceTokenizer mTokenizer = new TraceTokenizer();
+
+	public TextTraceCursor(File file) throws IOException {
+		this.mInStream = new FileInputStream(file);
+		this.mChannel = this.mInStream.getChannel();
+		this.mBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		this.seek(0);
+	}
+
+	@Override
+	public boolean next() throws IOException {
+		while (true) {
+			int lineStart = this.mBuffer.position();
+			int lineEnd = findLineEnd(this.mBuffer);
+			if (lineEnd < 0) {
+				if (this.mIsEOF == false) {
+					this.fill();
+					continue;
+				} else if (this.mBuffer.hasRemaining()) {
+					// Last line without line feed
+					lineEnd = this.mBuffer.limit();
+				} else {
+					return false;
+				}
+			}
+			this.mBuffer.position(Math.min(lineEnd + 1, this.mBuffer.limit()));
+
+			// Skip lines that are not events
+			if (this.mTokenizer.parse(this.mBuffer, lineStart, lineEnd)) {
+				this.setFields(this.mTokenizer);
+				this.mRecordPosition = this.mBufferPosition + lineStart;
+				return true;
+			}
+		}
+	}
+
+	@Override
+	public long recordPosition() {
+		return this.mRecordPosition;
+	}
+
+	@Override
+	public void seek(long position) throws IOException {
+		this.mChannel.position(position);
+		this.mBuffer.clear();
+		this.mBuffer.flip();
+		this.mBufferPosition = position;
+		this.mRecordPosition = position;
+		this.mIsEOF = false;
+	}
+
+	private void fill() throws IOException {
+		this.mBufferPosition += this.mBuffer.position();
+		this.mBuffer.compact();
+		if (this.mBuffer.hasRemaining() == false) {
+			// A line is longer than the buffer
+			ByteBuffer newBuffer = ByteBuffer
+					.allocate(this.mBuffer.capacity() * 2);
+			this.mBuffer.flip();
+			newBuffer.put(this.mBuffer);
+			this.mBuffer = newBuffer;
+		}
+		if (this.mChannel.read(this.mBuffer) < 0)
+			this.mIsEOF = true;
+		this.mBuffer.flip();
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.mChannel.close();
+		this.mInStream.close();
+	}
+
+	static int findLineEnd(ByteBuffer buffer) {
+		int limit = buffer.limit();
+		for (int i = buffer.position(); i < limit; i++) {
+			if (buffer.get(i) == '\n')
+				return i;
+		}
+		return -1;
+	}
+}
+
+// Parses text records straight from the memory-mapped trace file.
+// Large files are mapped window by window. A line crossing the end of
+// window is read again from the next window. A line longer than a window,
+// e.g. in a file which is not text, is no event and is skipped.
+class MappedTextTraceCursor extends TraceCursor {
+	private static final long MAP_WINDOW_SIZE = 64 * 1024 * 1024;
+
+	private RandomAccessFile mFile;
+	private FileChannel mChannel;
+	private MappedByteBuffer mBuffer;
+	private long mFileSize;
+	private long mWindowPosition;
+	private long mRecordPosition;
+	private boolean mIsSkippingLine = false;
+	private TraceTokenizer mTokenizer = new TraceTokenizer();
+
+	public MappedTextTraceCursor(File file) throws IOException {
+		this.mFile = new RandomAccessFile(file, "r");
+		this.mChannel = this.mFile.getChannel();
+		this.mFileSize = this.mChannel.size();
+		this.mapWindow(0);
+	}
+
+	private void mapWindow(long position) throws IOException {
+		long size = Math.min(MAP_WINDOW_SIZE, this.mFileSize - position);
+		this.mBuffer = this.mChannel.map(FileChannel.MapMode.READ_ONLY,
+				position, size);
+		this.mWindowPosition = position;
+	}
+
+	@Override
+	public boolean next() throws IOException {
+		while (true) {
+			int lineStart = this.mBuffer.position();
+			int lineEnd = TextTraceCursor.findLineEnd(this.mBuffer);
+			if (lineEnd < 0) {
+				long windowEnd = this.mWindowPosition + this.mBuffer.limit();
+				if (windowEnd < this.mFileSize) {
+					if (lineStart == 0) {
+						// Window cannot advance: skip up to next line feed
+						this.mapWindow(windowEnd);
+						this.mIsSkippingLine = true;
+					} else {
+						this.mapWindow(this.mWindowPosition + lineStart);
+					}
+					continue;
+				} else if (this.mBuffer.hasRemaining()) {
+					// Last line without line feed
+					lineEnd = this.mBuffer.limit();
+				} else {
+					return false;
+				}
+			}
+			this.mBuffer.position(Math.min(lineEnd + 1, this.mBuffer.limit()));
+			if (this.mIsSkippingLine) {
+				// Rest of the long line
+				this.mIsSkippingLine = false;
+				continue;
+			}
+
+			// Skip lines that are not events
+			if (this.mTokenizer.parse(this.mBuffer, lineStart, lineEnd)) {
+				this.setFields(this.mTokenizer);
+				this.mRecordPosition = this.mWindowPosition + lineStart;
+				return true;
+			}
+		}
+	}
+
+	@Override
+	public long recordPosition() {
+		return this.mRecordPosition;
+	}
+
+	@Override
+	public void seek(long position) throws IOException {
+		this.mapWindow(position);
+		this.mIsSkippingLine = false;
+		this.mRecordPosition = position;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.mBuffer = null;
+		this.mChannel.close();
+		this.mFile.close();
+	}
+}
+
+class BinaryTraceCursor extends TraceCursor {
+	private FileInputStream mFileStream;
+	private DataInputStream mInStream;
+	private long mNextPosition;
+
+	public BinaryTraceCursor(File file) throws IOException {
+		this.mFileStream = new FileInputStream(file);
+		this.mInStream = new DataInputStream(new BufferedInputStream(
+				this.mFileStream));
+
+		// Check header
+		int magic = this.mInStream.readInt();
+		int version = this.mInStream.readInt();
+		int storage = this.mInStream.readInt();
+		this.mInStream.readInt();
+		if (TraceFormat.isSupportedHeader(magic, version) == false
+				|| storage != TraceFormat.STORAGE_PLAIN) {
+			this.mInStream.close();
+			throw new IOException("Unsupported binary trace: "
+					+ file.getName());
+		}
+		this.mNextPosition = TraceFormat.BINARY_HEADER_SIZE;
+	}
+
+	@Override
+	public boolean next() throws IOException {
+		int kind = this.mInStream.read();
+		if (kind < 0)
+			return false;
+		try {
+			this.kind = (byte) kind;
+			this.timestampUS = this.mInStream.readLong();
+			this.deviceNum = this.mInStream.readInt();
+			this.typeVal = this.mInStream.readInt();
+			this.codeVal = this.mInStream.readInt();
+			this.value = this.mInStream.readInt();
+		} catch (EOFException e) {
+			// Truncated last record
+			return false;
+		}
+		this.mNextPosition += TraceFormat.BINARY_RECORD_SIZE;
+		return true;
+	}
+
+	@Override
+	public long recordPosition() {
+		return this.mNextPosition - TraceFormat.BINARY_RECORD_SIZE;
+	}
+
+	@Override
+	public void seek(long position) throws IOException {
+		// Drop buffered bytes and read from given position
+		this.mFileStream.getChannel().position(position);
+		this.mInStream = new DataInputStream(new BufferedInputStream(
+				this.mFileStream));
+		this.mNextPosition = position;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.mInStream.close();
+	}
+}
+
+// Decodes binary records straight from the memory-mapped trace file.
+// Large files are mapped window by window.
+class MappedBinaryTraceCursor extends TraceCursor {
+	private static final long MAP_WINDOW_SIZE = (64 * 1024 * 1024 / TraceFormat.BINARY_RECORD_SIZE)
+			* TraceFormat.BINARY_RECORD_SIZE;
+
+	private RandomAccessFile mFile;
+	private FileChannel mChannel;
+	private MappedByteBuffer mBuffer;
+	private long mFileSize;
+	private long mWindowPosition;
+	private long mRecordPosition;
+
+	public MappedBinaryTraceCursor(File file) throws IOException {
+		this.mFile = new RandomAccessFile(file, "r");
+		this.mChannel = this.mFile.getChannel();
+		this.mFileSize = this.mChannel.size();
+
+		// Check header
+		ByteBuffer header = ByteBuffer
+				.allocate(TraceFormat.BINARY_HEADER_SIZE);
+		while (header.hasRemaining()) {
+			if (this.mChannel.read(header) < 0)
+				break;
+		}
+		header.flip();
+		if (header.remaining() < TraceFormat.BINARY_HEADER_SIZE
+				|| TraceFormat.isSupportedHeader(header.getInt(),
+						header.getInt()) == false
+				|| header.getInt() != TraceFormat.STORAGE_PLAIN) {
+			this.mFile.close();
+			throw new IOException("Unsupported binary trace: "
+					+ file.getName());
+		}
+
+		this.mapWindow(TraceFormat.BINARY_HEADER_SIZE);
+	}
+
+	private void mapWindow(long position) throws IOException {
+		long size = Math.min(MAP_WINDOW_SIZE, this.mFileSize - position);
+		this.mBuffer = this.mChannel.map(FileChannel.MapMode.READ_ONLY,
+				position, size);
+		this.mWindowPosition = position;
+	}
+
+	@Override
+	public boolean next() throws IOException {
+		if (this.mBuffer.remaining() < TraceFormat.BINARY_RECORD_SIZE) {
+			// Map the next window
+			long nextPosition = this.mWindowPosition
+					+ this.mBuffer.position();
+			if (this.mFileSize - nextPosition < TraceFormat.BINARY_RECORD_SIZE)
+				return false;
+			this.mapWindow(nextPosition);
+		}
+		this.mRecordPosition = this.mWindowPosition + this.mBuffer.position();
+		this.kind = this.mBuffer.get();
+		this.timestampUS = this.mBuffer.getLong();
+		this.deviceNum = this.mBuffer.getInt();
+		this.typeVal = this.mBuffer.getInt();
+		this.codeVal = this.mBuffer.getInt();
+		this.value = this.mBuffer.getInt();
+		return true;
+	}
+
+	@Override
+	public long recordPosition() {
+		return this.mRecordPosition;
+	}
+
+	@Override
+	public void seek(long position) throws IOException {
+		this.mapWindow(position);
+		this.mRecordPosition = position;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.mBuffer = null;
+		this.mChannel.close();
+		this.mFile.close();
+	}
+}
+
+// Reads block-compressed binary records.
+// Blocks are inflated on the reading thread (preload thread in replay) one
+// block ahead of the present record.
+// Record position is the ordinal number of the record in the trace.
+class BlockTraceCursor extends TraceCursor {
+	private RandomAccessFile mFile;
+	private Inflater mInflater = new Inflater();
+	private byte[] mCompressed = new byte[0];
+
+	// Block index
+	private int mNumBlocks;
+	private long[] mBlockOffsets;
+	private long[] mBlockFirstRecords;
+
+	// Present block
+	private ByteBuffer mBlock;
+	private int mBlockNum;
+	private long mRecordPosition;
+
+	// Next block, inflated ahead
+	private ByteBuffer mNextBlock;
+	private int mNextBlockNum;
+
+	public BlockTraceCursor(File file) throws IOException {
+		this.mFile = new RandomAccessFile(file, "r");
+		try {
+			// Check header
+			int magic = this.mFile.readInt();
+			int version = this.mFile.readInt();
+			int storage = this.mFile.readInt();
+			int blockRecords = this.mFile.readInt();
+			if (TraceFormat.isSupportedHeader(magic, version) == false
+					|| storage != TraceFormat.STORAGE_BLOCK_DEFLATE)
+				throw new IOException("Unsupported binary trace: "
+						+ file.getName());
+
+			// Read trailer and block index
+			this.mFile.seek(this.mFile.length()
+					- TraceFormat.BLOCK_TRAILER_SIZE);
+			long blockIndexOffset = this.mFile.readLong();
+			this.mNumBlocks = this.mFile.readInt();
+			if (this.mFile.readInt() != TraceFormat.BINARY_MAGIC)
+				throw new IOException("Truncated block-compressed trace: "
+						+ file.getName());
+			this.mBlockOffsets = new long[this.mNumBlocks];
+			this.mBlockFirstRecords = new long[this.mNumBlocks];
+			this.mFile.seek(blockIndexOffset);
+			for (int i = 0; i < this.mNumBlocks; i++) {
+				this.mBlockOffsets[i] = this.mFile.readLong();
+				this.mBlockFirstRecords[i] = this.mFile.readLong();
+				this.mFile.readInt();
+			}
+
+			int blockSize = blockRecords * TraceFormat.BINARY_RECORD_SIZE;
+			this.mBlock = ByteBuffer.allocate(blockSize);
+			this.mNextBlock = ByteBuffer.allocate(blockSize);
+		} catch (IOException e) {
+			this.mFile.close();
+			throw e;
+		}
+		this.seek(0);
+	}
+
+	@Override
+	public boolean next() throws IOException {
+		if (this.mBlock.remaining() < TraceFormat.BINARY_RECORD_SIZE) {
+			// Move to the inflated next block, and inflate the one after it
+			if (this.mNextBlockNum >= this.mNumBlocks)
+				return false;
+			ByteBuffer block = this.mBlock;
+			this.mBlock = this.mNextBlock;
+			this.mBlockNum = this.mNextBlockNum;
+			this.mNextBlock = block;
+			this.mNextBlockNum = this.mBlockNum + 1;
+			this.inflateBlock(this.mNextBlockNum, this.mNextBlock);
+			if (this.mBlock.remaining() < TraceFormat.BINARY_RECORD_SIZE)
+				return false;
+		}
+		this.mRecordPosition = this.mBlockFirstRecords[this.mBlockNum]
+				+ this.mBlock.position() / TraceFormat.BINARY_RECORD_SIZE;
+		this.kind = this.mBlock.get();
+		this.timestampUS = this.mBlock.getLong();
+		this.deviceNum = this.mBlock.getInt();
+		this.typeVal = this.mBlock.getInt();
+		this.codeVal = this.mBlock.getInt();
+		this.value = this.mBlock.getInt();
+		return true;
+	}
+
+	@Override
+	public long recordPosition() {
+		return this.mRecordPosition;
+	}
+
+	@Override
+	public void seek(long position) throws IOException {
+		// Find the block that has the record
+		int blockNum = 0;
+		int low = 0;
+		int high = this.mNumBlocks - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (this.mBlockFirstRecords[mid] <= position) {
+				blockNum = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+
+		this.mBlockNum = blockNum;
+		this.inflateBlock(blockNum, this.mBlock);
+		if (this.mNumBlocks > 0) {
+			int offset = (int) (position - this.mBlockFirstRecords[blockNum])
+					* TraceFormat.BINARY_RECORD_SIZE;
+			this.mBlock.position(Math.min(offset, this.mBlock.limit()));
+		}
+		this.mNextBlockNum = blockNum + 1;
+		this.inflateBlock(this.mNextBlockNum, this.mNextBlock);
+		this.mRecordPosition = position;
+	}
+
+	private void inflateBlock(int blockNum, ByteBuffer block)
+			throws IOException {
+		block.clear();
+		if (blockNum >= this.mNumBlocks) {
+			block.flip();
+			return;
+		}
+
+		this.mFile.seek(this.mBlockOffsets[blockNum]);
+		int rawLength = this.mFile.readInt();
+		int compressedLength = this.mFile.readInt();
+		// Lengths of a corrupted or truncated file are checked before use,
+		// so that a bad block fails as IOException.
+		if (rawLength < 0 || rawLength > block.capacity()
+				|| compressedLength < 0
+				|| compressedLength > this.mFile.length()
+						- this.mFile.getFilePointer())
+			throw new IOException("Corrupted block " + blockNum
+					+ ": raw length " + rawLength + ", compressed length "
+					+ compressedLength);
+		if (this.mCompressed.length < compressedLength)
+			this.mCompressed = new byte[compressedLength];
+		this.mFile.readFully(this.mCompressed, 0, compressedLength);
+
+		this.mInflater.reset();
+		this.mInflater.setInput(this.mCompressed, 0, compressedLength);
+		try {
+			int length = 0;
+			while (length < rawLength && this.mInflater.finished() == false) {
+				int inflated = this.mInflater.inflate(block.array(), length,
+						rawLength - length);
+				if (inflated == 0 && this.mInflater.needsInput())
+					break;
+				length += inflated;
+			}
+			block.limit(length);
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupted block " + blockNum + ": " + e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.mInflater.end();
+		this.mFile.close();
+	}
+}
@@ -1,20 +1,28 @@
 package com.android.server.recordroid;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.prefs.Preferences;
 
-public class TraceFile {
+public class TraceFile implements ServiceStateMirror.ChunkSource {
+	// Post-record sort modes
+	// - In-memory: sort whole recording on heap
+	// - External: merge sorted runs spilled to temporary files
+	// - Streaming: reorder events in a bounded window during recording
+	public static final int SORT_MODE_IN_MEMORY = 1;
+	public static final int SORT_MODE_EXTERNAL = 2;
+	public static final int SORT_MODE_STREAMING = 3;
+
 	private File mFile = null;
 	private Writer mWriter = null;
 	private Reader mReader = null;
@@ -36,19 +44,48 @@ public class TraceFile {
 	public void openWriting() throws FileNotFoundException, IOException {
 		if (this.mFile == null)
 			throw new FileNotFoundException();
-		BufferedWriter bufWriter = new BufferedWriter(
-				new FileWriter(this.mFile));
-		this.mWriter = new Writer(bufWriter);
+		int format = this.mPrefs.getInt(PreferenceConstants.KEY_TRACE_FORMAT,
+				PreferenceConstants.INIT_TRACE_FORMAT);
+		TraceRecordWriter recordWriter = TraceRecordWriter.open(this.mFile,
+				format);
+		this.mWriter = new Writer(recordWriter, format);
 	}
 
-	public void openReading() throws FileNotFoundException {
+	public void openReading() throws FileNotFoundException, IOException {
 		if (this.mFile == null)
 			throw new FileNotFoundException();
-		BufferedReader bufReader = new BufferedReader(
-				new FileReader(this.mFile));
-		// CAUTION: initializing reader results in initial-preloading on preload
-		// thread!
-		this.mReader = new Reader(bufReader);
+		// Trace file format is detected automatically.
+		int readMode = this.mPrefs.getInt(
+				PreferenceConstants.KEY_TRACE_READ_MODE,
+				PreferenceConstants.INIT_TRACE_READ_MODE);
+		int minimumPreloadSize = this.mPrefs.getInt(
+				PreferenceConstants.KEY_MINIMUM_PRELOAD_SIZE,
+				PreferenceConstants.INIT_MINIMUM_PRELOAD_SIZE);
+		long minimumPreloadIntervalUS = this.mPrefs.getLong(
+				PreferenceConstants.KEY_MINIMUM_PRELOAD_INTERVAL_US,
+				PreferenceConstants.INIT_MINIMUM_PRELOAD_INTERVAL_US);
+		int prefetchDepth = this.mPrefs.getInt(
+				PreferenceConstants.KEY_PREFETCH_DEPTH,
+				PreferenceConstants.INIT_PREFETCH_DEPTH);
+
+		// Chunk index is loaded from sidecar file, or built on first open.
+		TraceIndex index = TraceIndex.open(this.mFile, readMode,
+				minimumPreloadSize, minimumPreloadIntervalUS);
+
+		// Zero-copy: chunks of a plain binary trace are already packed as
+		// they are sent, so they are served as file regions without parsing.
+		if (TraceFormat.detect(this.mFile) == TraceFormat.FORMAT_BINARY
+				&& index.isPacked()) {
+			SharedFileChannel channel = new SharedFileChannel(
+					new RandomAccessFile(this.mFile, "r").getChannel());
+			this.mReader = new Reader(channel, index);
+			return;
+		}
+
+		TraceCursor cursor = TraceCursor.open(this.mFile, readMode);
+		// CAUTION: initializing reader starts prefetching on prefetch thread!
+		this.mReader = new Reader(cursor, index, new ChunkRule(
+				minimumPreloadSize, minimumPreloadIntervalUS), prefetchDepth);
 	}
 
 	public void close() throws IOException {
@@ -69,78 +106,217 @@ public class TraceFile {
 		}
 	}
 
-	public Reader.TempBuffer requireReplayBuffer(long requiredSN) {
+	// Throws IOException if the trace cannot be read any further: the
+	// replay should be aborted rather than ended early.
+	public Reader.TempBuffer requireReplayBuffer(long requiredSN)
+			throws IOException {
 		if (this.mReader == null)
 			return null;
 		else
-			return this.mReader.requireReplayBuffer(requiredSN);
+			return this.mReader.requireReplayBuffer(requiredSN, true);
 	}
 
-	class Writer {
-		private BufferedWriter mWriter;
-		private Lock mLock = new ReentrantLock();
+	// Same as requireReplayBuffer(), but it returns null instead of waiting
+	// if the chunk is not prefetched yet. It is used for streaming chunks
+	// ahead of the required one.
+	public Reader.TempBuffer pollReplayBuffer(long sn) throws IOException {
+		if (this.mReader == null)
+			return null;
+		else
+			return this.mReader.requireReplayBuffer(sn, false);
+	}
 
-		public Writer(BufferedWriter bufWriter) {
-			this.mWriter = bufWriter;
+	// Implements ServiceStateMirror.ChunkSource
+	// In zero-copy mode, records stay in the trace file until they are
+	// written to the socket.
+	@Override
+	public RecordroidReplayChunk takeReplayChunk(long sn, boolean mayWait)
+			throws IOException {
+		Reader.TempBuffer tempBuffer = mayWait ? this.requireReplayBuffer(sn)
+				: this.pollReplayBuffer(sn);
+		if (tempBuffer == null)
+			return null;
+		boolean isNextExists = (tempBuffer.isAllReadDone == false);
+		if (tempBuffer.records != null)
+			return RecordroidReplayChunk.make(sn, tempBuffer.numEvents,
+					isNextExists, tempBuffer.records);
+		else
+			return FileReplayChunk.make(sn, tempBuffer.numEvents,
+					isNextExists, tempBuffer.channel, tempBuffer.position,
+					tempBuffer.length);
+	}
+
+	// SN of the chunk handed out last, or 0
+	@Override
+	public long getLastSentSN() {
+		if (this.mReader == null)
+			return 0;
+		else
+			return this.mReader.getLastSentSN();
+	}
+
+	// The chunk {sn} was handed out but not sent: serve it again next.
+	// Chunks before it stay sent.
+	@Override
+	public void rewindReplayBuffer(long sn) {
+		if (this.mReader != null)
+			this.mReader.rewind(sn);
+	}
+
+	class Writer implements AsyncEventWriter.EventHandler {
+		private TraceRecordWriter mWriter;
+		private int mFormat;
+		private ReorderWindow mReorderWindow = null;
+		private AsyncEventWriter mAsyncWriter;
+
+		public Writer(TraceRecordWriter recordWriter, int format) {
+			this.mWriter = recordWriter;
+			this.mFormat = format;
+
+			// Streaming mode: events are reordered and written in relative
+			// timestamp form during recording.
+			int sortMode = mPrefs.getInt(
+					PreferenceConstants.KEY_POST_RECORD_SORT_MODE,
+					PreferenceConstants.INIT_POST_RECORD_SORT_MODE);
+			if (sortMode == SORT_MODE_STREAMING) {
+				int windowSize = mPrefs.getInt(
+						PreferenceConstants.KEY_REORDER_WINDOW_SIZE,
+						PreferenceConstants.INIT_REORDER_WINDOW_SIZE);
+				this.mReorderWindow = new ReorderWindow(windowSize);
+			}
+
+			// Events are written on the flusher thread
+			this.mAsyncWriter = AsyncEventWriter.start(this, recordWriter,
+					recordWriter.getFileStream(), mPrefs);
 		}
 
 		public void close() throws IOException {
 			// Flush and Close the file
-			this.mLock.lock();
 			try {
+				this.mAsyncWriter.close();
+				if (this.mReorderWindow != null)
+					this.mReorderWindow.drain();
 				this.mWriter.flush();
-				this.mWriter.close();
 			} finally {
-				this.mLock.unlock();
+				this.mWriter.close();
 			}
 
 			// Post-record Process
-			this.doPostRecordProcess();
+			// In streaming mode, the file is already in its final form.
+			if (this.mReorderWindow == null)
+				this.doPostRecordProcess();
 		}
 
-		// onListenEvent: RecordroidEvent -> String -> File
+		// onListenEvent: RecordroidEvent -> queue
 		public void writeEvent(RecordroidEvent event) throws IOException {
-			this.mLock.lock();
-			try {
-				String traceStr = event.toStringForTraceFile();
-				if(event instanceof RecordroidPlatformEvent == false)
-					this.mWriter.write(traceStr + "\n");
-			} finally {
-				this.mLock.unlock();
+			if (event instanceof RecordroidPlatformEvent == false)
+				this.mAsyncWriter.enqueue(event);
+		}
+
+		// Flusher thread: queue -> File
+		public void handleEvent(RecordroidEvent event) throws IOException {
+			if (this.mReorderWindow != null)
+				this.mReorderWindow.add(event);
+			else
+				this.mWriter.writeEvent(event);
+		}
+
+		// Bounded min-heap of recent events keyed by timestamp.
+		// The oldest event leaves the window in relative timestamp form when
+		// the window is full. Events arriving later than the window allows
+		// are written with relative timestamp 0.
+		class ReorderWindow {
+			private PriorityQueue<ReorderEntry> mHeap;
+			private int mWindowSize;
+			private long mNextSequence = 0;
+			private long mPrevTimestampUS = -1;
+			private long mNumLateEvents = 0;
+
+			public ReorderWindow(int windowSize) {
+				if (windowSize <= 0)
+					windowSize = PreferenceConstants.INIT_REORDER_WINDOW_SIZE;
+				this.mWindowSize = windowSize;
+				this.mHeap = new PriorityQueue<ReorderEntry>(windowSize + 1,
+						new Comparator<ReorderEntry>() {
+							public int compare(ReorderEntry e1, ReorderEntry e2) {
+								long ts1 = e1.event.timestampUS;
+								long ts2 = e2.event.timestampUS;
+								if (ts1 != ts2)
+									return (ts1 > ts2) ? 1 : -1;
+								return (e1.sequence > e2.sequence) ? 1 : -1;
+							}
+						});
+			}
+
+			public void add(RecordroidEvent event) throws IOException {
+				this.mHeap.add(new ReorderEntry(event, this.mNextSequence++));
+				if (this.mHeap.size() > this.mWindowSize)
+					this.emit(this.mHeap.poll().event);
+			}
+
+			public void drain() throws IOException {
+				while (this.mHeap.isEmpty() == false)
+					this.emit(this.mHeap.poll().event);
+				if (this.mNumLateEvents > 0)
+					System.err.println(this.mNumLateEvents
+							+ " events arrived later than reorder window.");
+			}
+
+			private void emit(RecordroidEvent event) throws IOException {
+				// First relative timestamp should always be 0.
+				long thisTimestampUS = event.timestampUS;
+				if (this.mPrevTimestampUS < 0) {
+					this.mPrevTimestampUS = thisTimestampUS;
+				} else if (thisTimestampUS < this.mPrevTimestampUS) {
+					this.mNumLateEvents++;
+					thisTimestampUS = this.mPrevTimestampUS;
+				}
+				long relativeTimestampUS = thisTimestampUS
+						- this.mPrevTimestampUS;
+				this.mPrevTimestampUS = thisTimestampUS;
+
+				event.timestampUS = relativeTimestampUS;
+				mWriter.writeEvent(event);
+			}
+		}
+
+		class ReorderEntry {
+			public RecordroidEvent event;
+			public long sequence;
+
+			public ReorderEntry(RecordroidEvent event, long sequence) {
+				this.event = event;
+				this.sequence = sequence;
 			}
 		}
 
 		private void doPostRecordProcess() throws IOException {
+			int sortMode = mPrefs.getInt(
+					PreferenceConstants.KEY_POST_RECORD_SORT_MODE,
+					PreferenceConstants.INIT_POST_RECORD_SORT_MODE);
+			if (sortMode == SORT_MODE_IN_MEMORY)
+				this.doInMemorySort();
+			else
+				this.doExternalSort();
+		}
+
+		private void doInMemorySort() throws IOException {
 			// Step 1. Read all events from record file
 			ArrayList<RecordroidEvent> events = new ArrayList<RecordroidEvent>();
-			BufferedReader readBuffer = new BufferedReader(
-					new FileReader(mFile));
-			String strLine;
-			while (true) {
-				strLine = readBuffer.readLine();
-				if (strLine == null)
-					break;
-
-				if (RecordroidKernelInputEvent.transformableFrom(strLine)) {
-					RecordroidKernelInputEvent event;
-					event = RecordroidKernelInputEvent
-							.makeFromStringForTraceFile(strLine);
-					events.add(event);
-				} else if (RecordroidPlatformEvent.transformableFrom(strLine)) {
-					RecordroidPlatformEvent event;
-					event = RecordroidPlatformEvent
-							.makeFromStringForTraceFile(strLine);
+			TraceCursor cursor = TraceCursor.open(mFile);
+			while (cursor.next()) {
+				RecordroidEvent event = cursor.toEvent();
+				if (event != null)
 					events.add(event);
-				}
 			}
-			readBuffer.close();
+			cursor.close();
 
 			if (events.isEmpty() == true)
 				return;
 
 			// Step 2. Sort them
-			BufferedWriter writeBuffer = new BufferedWriter(new FileWriter(
-					mFile));
+			TraceRecordWriter writeBuffer = TraceRecordWriter.open(mFile,
+					this.mFormat);
 			TimestampSort sort = new TimestampSort();
 			Collections.sort(events, sort);
 
@@ -156,14 +332,129 @@ public class TraceFile {
 
 			// Step 4. Write them
 			for (RecordroidEvent e : events) {
-				String traceStr = e.toStringForTraceFile();
 				if(e instanceof RecordroidPlatformEvent == false)
-					this.mWriter.write(traceStr + "\n");
+					writeBuffer.writeEvent(e);
 			}
-			writeBuffer.flush();
 			writeBuffer.close();
 		}
 
+		// External merge sort:
+		// sorted runs within memory budget are spilled to temporary files,
+		// then they are merged into the relative timestamp form.
+		private void doExternalSort() throws IOException {
+			int sortBudget = mPrefs.getInt(
+					PreferenceConstants.KEY_POST_RECORD_SORT_BUDGET,
+					PreferenceConstants.INIT_POST_RECORD_SORT_BUDGET);
+			if (sortBudget <= 0)
+				sortBudget = PreferenceConstants.INIT_POST_RECORD_SORT_BUDGET;
+
+			ArrayList<File> runFiles = new ArrayList<File>();
+			try {
+				// Step 1. Split record file into sorted runs
+				ArrayList<RecordroidEvent> events = new ArrayList<RecordroidEvent>();
+				TimestampSort sort = new TimestampSort();
+				TraceCursor cursor = TraceCursor.open(mFile);
+				try {
+					boolean hasNext = cursor.next();
+					while (hasNext) {
+						RecordroidEvent event = cursor.toEvent();
+						if (event != null)
+							events.add(event);
+						hasNext = cursor.next();
+						if (events.size() >= sortBudget
+								|| (hasNext == false && events.isEmpty() == false)) {
+							Collections.sort(events, sort);
+							runFiles.add(this.spillRun(events));
+							events.clear();
+						}
+					}
+				} finally {
+					cursor.close();
+				}
+
+				if (runFiles.isEmpty() == true)
+					return;
+
+				// Step 2. Merge runs and write them in relative timestamp form
+				this.mergeRuns(runFiles);
+			} finally {
+				for (File runFile : runFiles)
+					runFile.delete();
+			}
+		}
+
+		private File spillRun(ArrayList<RecordroidEvent> events)
+				throws IOException {
+			File runFile = File.createTempFile("recordroid", ".run",
+					mFile.getAbsoluteFile().getParentFile());
+			TraceRecordWriter runWriter = TraceRecordWriter.open(runFile,
+					TraceFormat.FORMAT_BINARY);
+			try {
+				for (RecordroidEvent e : events)
+					runWriter.writeEvent(e);
+			} finally {
+				runWriter.close();
+			}
+			return runFile;
+		}
+
+		private void mergeRuns(ArrayList<File> runFiles) throws IOException {
+			// Ties are broken by run index, so that events with the same
+			// timestamp keep their recorded order.
+			PriorityQueue<RunCursor> heap = new PriorityQueue<RunCursor>(
+					runFiles.size(), new Comparator<RunCursor>() {
+						public int compare(RunCursor r1, RunCursor r2) {
+							long ts1 = r1.cursor.timestampUS;
+							long ts2 = r2.cursor.timestampUS;
+							if (ts1 != ts2)
+								return (ts1 > ts2) ? 1 : -1;
+							return r1.runIndex - r2.runIndex;
+						}
+					});
+			ArrayList<RunCursor> runCursors = new ArrayList<RunCursor>();
+			TraceRecordWriter writeBuffer = null;
+			try {
+				for (int i = 0; i < runFiles.size(); i++) {
+					RunCursor runCursor = new RunCursor(
+							TraceCursor.open(runFiles.get(i)), i);
+					runCursors.add(runCursor);
+					if (runCursor.cursor.next())
+						heap.add(runCursor);
+				}
+
+				// First relative timestamp should always be 0.
+				writeBuffer = TraceRecordWriter.open(mFile, this.mFormat);
+				long prevTimestampUS = heap.peek().cursor.timestampUS;
+				while (heap.isEmpty() == false) {
+					RunCursor runCursor = heap.poll();
+					TraceCursor c = runCursor.cursor;
+					if (c.kind != TraceFormat.KIND_PLATFORM) {
+						writeBuffer.write(c.kind, c.timestampUS
+								- prevTimestampUS, c.deviceNum, c.typeVal,
+								c.codeVal, c.value);
+						prevTimestampUS = c.timestampUS;
+					}
+					if (c.next())
+						heap.add(runCursor);
+				}
+			} finally {
+				if (writeBuffer != null)
+					writeBuffer.close();
+				for (RunCursor runCursor : runCursors)
+					runCursor.cursor.close();
+			}
+		}
+
+		class RunCursor {
+			public TraceCursor cursor;
+			public int runIndex;
+
+			public RunCursor(TraceCursor cursor, int runIndex) {
+				this.cursor = cursor;
+				this.runIndex = runIndex;
+			}
+		}
+
 		class TimestampSort implements Comparator<RecordroidEvent> {
 			public int compare(RecordroidEvent e1, RecordroidEvent e2) {
 				return (e1.timestampUS > e2.timestampUS) ? 1
@@ -173,163 +464,320 @@ public class TraceFile {
 	}
 
 	class Reader {
-		private BufferedReader mReader;
-		private PreloadBuffer mPreloadBuffer;
-		private PreloadWorker mPreloadWorker;
+		private TraceCursor mCursor;
+		private SharedFileChannel mChannel; // only in zero-copy mode
+		private TraceIndex mIndex;
+		private ChunkRule mChunkRule;
+		private int mPrefetchDepth;
+		private PrefetchWorker mPrefetchWorker;
 		private long mLastSentSN;
-		private boolean mIsAllReadDone;
 
-		public Reader(BufferedReader bufReader) {
-			this.mReader = bufReader;
-			this.mPreloadBuffer = new PreloadBuffer();
+		// Shared with prefetch thread: guarded by mLock
+		private Lock mLock = new ReentrantLock();
+		private Condition mReadyCondition = mLock.newCondition();
+		private Condition mSpaceCondition = mLock.newCondition();
+		private ArrayDeque<PrefetchedChunk> mReadyChunks = new ArrayDeque<PrefetchedChunk>();
+		private ArrayDeque<EventBatch> mFreeBatches = new ArrayDeque<EventBatch>();
+		private long mSeekSN; // 0 if no seek is requested
+		private long mGeneration; // increased on every seek request
+		private boolean mIsAllReadDone;
+		private boolean mIsClosed;
+		private IOException mReadError; // stops prefetching for good
+
+		// The batch handed out last is still used by the caller.
+		private EventBatch mSentBatch;
+
+		public Reader(TraceCursor cursor, TraceIndex index,
+				ChunkRule chunkRule, int prefetchDepth) {
+			this.mCursor = cursor;
+			this.mChannel = null;
+			this.mIndex = index;
+			this.mChunkRule = chunkRule;
+			this.mPrefetchDepth = Math.max(prefetchDepth, 1);
 			this.mLastSentSN = 0;
+			this.mSeekSN = 0;
+			this.mGeneration = 0;
 			this.mIsAllReadDone = false;
+			this.mIsClosed = false;
+			this.mReadError = null;
+			this.mSentBatch = null;
 
-			// Do preload first events chunk
-			this.doPreload();
+			// Start prefetching from the first chunk
+			this.mPrefetchWorker = new PrefetchWorker();
+			this.mPrefetchWorker.start();
 		}
 
+		// Zero-copy mode: chunks are file regions found by the index, and
+		// nothing is read or prefetched here.
+		public Reader(SharedFileChannel channel, TraceIndex index) {
+			this.mCursor = null;
+			this.mChannel = channel;
+			this.mIndex = index;
+			this.mLastSentSN = 0;
+			this.mPrefetchWorker = null;
+		}
+
+		// In zero-copy mode, the file stays open until the chunks made from
+		// it are sent.
 		public void close() throws IOException {
-			this.mReader.close();
+			if (this.mChannel != null) {
+				this.mChannel.release();
+				return;
+			}
+			this.mLock.lock();
+			try {
+				this.mIsClosed = true;
+				this.mSpaceCondition.signalAll();
+				this.mReadyCondition.signalAll();
+			} finally {
+				this.mLock.unlock();
+			}
+			try {
+				this.mPrefetchWorker.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			this.mCursor.close();
 		}
 
-		public TempBuffer requireReplayBuffer(long requiredSN) {
-			// Called when request of replay buffer is came from target device
-			if (this.mLastSentSN < requiredSN) {
-				TempBuffer tempBuffer = new TempBuffer();
-				try {
-					while (true) {
-						// Check if preloading was successful
-						this.mPreloadBuffer.mLock.lock();
-						if (this.mPreloadBuffer.events != null)
-							break;
-						this.mPreloadBuffer.mLock.unlock();
-						// EMERGENCY LOADING:
-						// If preloading was failed, do load record file
-						// manually,
-						// until success
-						try {
-							System.err
-									.println("Preload failed! retry to preload...");
-							this.doPreload();
-
-							// Emergency loading should be done synchronously.
-							this.mPreloadWorker.join();
-						} catch (InterruptedException e) {
-							e.printStackTrace();
-						}
-					}
+		public void rewind(long sn) {
+			if (sn <= this.mLastSentSN && this.mIndex.hasChunk(sn))
+				this.seekChunk(sn);
+		}
 
-					// Move events of PreloadBuffer to TempBuffer
-					tempBuffer.events = this.mPreloadBuffer.events;
-					tempBuffer.isAllReadDone = this.mIsAllReadDone;
+		public long getLastSentSN() {
+			return this.mLastSentSN;
+		}
 
-					// Clear PreloadBuffer
-					this.mPreloadBuffer.events = null;
+		public TempBuffer requireReplayBuffer(long requiredSN, boolean mayWait)
+				throws IOException {
+			// Random access: if the required chunk is not the next one,
+			// seek to it directly by chunk index.
+			// Already sent chunks are served again only after rewind().
+			boolean isNextChunk = (requiredSN == this.mLastSentSN + 1);
+			if (isNextChunk == false && requiredSN > this.mLastSentSN
+					&& this.mIndex.hasChunk(requiredSN)) {
+				this.seekChunk(requiredSN);
+			}
 
-					// Increase 'LastSentSN'
-					this.mLastSentSN++;
+			// Called when request of replay buffer is came from target device
+			if (this.mLastSentSN >= requiredSN) {
+				// Ignore if required chunk have already been sent to target
+				return null;
+			}
+			if (this.mChannel != null)
+				return this.takeRegion();
 
-				} finally {
-					this.mPreloadBuffer.mLock.unlock();
+			PrefetchedChunk chunk = null;
+			this.mLock.lock();
+			try {
+				// Ready chunk is dequeued at once in common case.
+				// Wait only if the prefetch thread is behind.
+				// Chunks read before an error are still served.
+				while (this.mReadyChunks.isEmpty()) {
+					if (this.mReadError != null)
+						throw new IOException(
+								this.mReadError.getMessage(), this.mReadError);
+					if (this.mIsAllReadDone || this.mIsClosed
+							|| mayWait == false)
+						return null;
+					try {
+						this.mReadyCondition.await();
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+						return null;
+					}
 				}
+				chunk = this.mReadyChunks.poll();
+				this.mSpaceCondition.signal();
 
-				// Do next preloading
-				this.doPreload();
+				// Previously sent batch is no longer used by the caller
+				if (this.mSentBatch != null)
+					this.mFreeBatches.add(this.mSentBatch);
+				this.mSentBatch = chunk.events;
+			} finally {
+				this.mLock.unlock();
+			}
 
-				return tempBuffer;
-			} else {
-				// Ignore if required chunk have already been sent to target
+			this.mLastSentSN = chunk.sn;
+			TempBuffer tempBuffer = new TempBuffer();
+			tempBuffer.numEvents = chunk.events.size();
+			tempBuffer.events = chunk.events;
+			tempBuffer.records = chunk.records;
+			tempBuffer.isAllReadDone = chunk.isLast;
+			return tempBuffer;
+		}
+
+		private TempBuffer takeRegion() {
+			long sn = this.mLastSentSN + 1;
+			if (this.mIndex.hasChunk(sn) == false)
 				return null;
-			}
+			this.mLastSentSN = sn;
+			TempBuffer tempBuffer = new TempBuffer();
+			tempBuffer.numEvents = this.mIndex.getNumEvents(sn);
+			tempBuffer.channel = this.mChannel;
+			tempBuffer.position = this.mIndex.getPosition(sn);
+			tempBuffer.length = (int) (this.mIndex.getEndPosition(sn)
+					- tempBuffer.position);
+			tempBuffer.isAllReadDone = (sn == this.mIndex.getNumChunks());
+			return tempBuffer;
 		}
 
-		private void doPreload() {
-			this.mPreloadWorker = new PreloadWorker();
-			this.mPreloadWorker.start();
+		private void seekChunk(long sn) {
+			if (this.mChannel != null) {
+				this.mLastSentSN = sn - 1;
+				return;
+			}
+			// Discard prefetched chunks and let the prefetch thread move the
+			// cursor to the required chunk.
+			this.mLock.lock();
+			try {
+				while (this.mReadyChunks.isEmpty() == false)
+					this.mFreeBatches.add(this.mReadyChunks.poll().events);
+				this.mSeekSN = sn;
+				this.mGeneration++;
+				this.mIsAllReadDone = false;
+				this.mSpaceCondition.signal();
+			} finally {
+				this.mLock.unlock();
+			}
+			this.mLastSentSN = sn - 1;
 		}
 
+		// Events are valid until the next requireReplayBuffer() call.
+		// Records are the same events packed for sending, and they are
+		// not reused.
+		// In zero-copy mode, events and records are null, and the records
+		// are {length} bytes at {position} of {channel}.
 		class TempBuffer {
-			public ArrayList<RecordroidEvent> events;
+			public int numEvents;
+			public EventBatch events;
+			public byte[] records;
+			public SharedFileChannel channel;
+			public long position;
+			public int length;
 			public boolean isAllReadDone;
 		}
 
-		class PreloadWorker extends Thread {
+		class PrefetchedChunk {
+			public long sn;
+			public EventBatch events;
+			public byte[] records;
+			public boolean isLast;
+		}
+
+		// Long-lived producer: it keeps up to {prefetchDepth} chunks ready.
+		// Only this thread touches the cursor after the reader is made.
+		class PrefetchWorker extends Thread {
+			private long mNextSN = 1;
+			private boolean mIsCursorPrimed = false;
+			private boolean mHasNext = false;
+
 			@Override
 			public void run() {
-				try {
-					mPreloadBuffer.mLock.lock();
+				while (true) {
+					EventBatch batch;
+					long generation;
+					long seekSN;
+
+					// Wait for space in queue
+					mLock.lock();
+					try {
+						while (mIsClosed == false
+								&& mReadError == null
+								&& mSeekSN == 0
+								&& (mIsAllReadDone || mReadyChunks.size() >= mPrefetchDepth)) {
+							mSpaceCondition.awaitUninterruptibly();
+						}
+						if (mIsClosed || mReadError != null)
+							return;
+						batch = mFreeBatches.poll();
+						generation = mGeneration;
+						seekSN = mSeekSN;
+						mSeekSN = 0;
+					} finally {
+						mLock.unlock();
+					}
+					if (batch == null)
+						batch = new EventBatch(mChunkRule.getMinimumPreloadSize());
+
+					// Read a chunk without holding the lock
+					long sn;
+					boolean isLast;
 					try {
-						// If PreloadBuffer is empty and file read is not done,
-						// read events from file.
-						if (mPreloadBuffer.events == null
-								&& mIsAllReadDone == false) {
-							mPreloadBuffer.events = new ArrayList<RecordroidEvent>();
-							long startTS = 0;
-							long lastTS = 0;
-
-							long minimumPreloadIntervalUS = mPrefs
-									.getLong(
-											PreferenceConstants.KEY_MINIMUM_PRELOAD_INTERVAL_US,
-											PreferenceConstants.INIT_MINIMUM_PRELOAD_INTERVAL_US);
-							int minimumPreloadSize = mPrefs
-									.getInt(PreferenceConstants.KEY_MINIMUM_PRELOAD_SIZE,
-											PreferenceConstants.INIT_MINIMUM_PRELOAD_SIZE);
-
-							// 1) read file to the EOF
-							// 2) events less than {minimumPreloadSize}
-							// 3) (lastTS-startTS) less than
-							// {TIMESTAMP_THRESHOLD}
-							// 1 && (2 || 3)
-							String strLine = mReader.readLine();
-							while ((strLine != null)
-									&& ((mPreloadBuffer.events.size() < minimumPreloadSize) || ((lastTS - startTS) < minimumPreloadIntervalUS))) {
-								// Transform to RecordroidEvent
-								RecordroidEvent event = null;
-								if (RecordroidKernelInputEvent
-										.transformableFrom(strLine)) {
-									event = RecordroidKernelInputEvent
-											.makeFromStringForTraceFile(strLine);
-								} else if (RecordroidPlatformEvent
-										.transformableFrom(strLine)) {
-									event = RecordroidPlatformEvent
-											.makeFromStringForTraceFile(strLine);
-								}
-
-								// Handle only 'RecordroidEvent'
-								if (event != null) {
-									// Add the event to PreloadBuffer
-									mPreloadBuffer.events.add(event);
-
-									// Update timestamps
-									if (startTS == 0)
-										startTS = event.timestampUS;
-									lastTS = event.timestampUS;
-								}
-
-								// Read a line from file
-								strLine = mReader.readLine();
+						if (seekSN != 0) {
+							mCursor.seek(mIndex.getPosition(seekSN));
+							this.mNextSN = seekSN;
+							this.mIsCursorPrimed = false;
+						}
+						sn = this.mNextSN;
+						isLast = this.readChunk(batch);
+					} catch (IOException e) {
+						// Not the end of trace: the reader fails from now on
+						mLock.lock();
+						try {
+							if (generation == mGeneration) {
+								mReadError = e;
+								mReadyCondition.signalAll();
 							}
+							mFreeBatches.add(batch);
+						} finally {
+							mLock.unlock();
+						}
+						continue;
+					}
+					// Pack it for sending here, off the send path
+					byte[] records = batch.toRecords();
 
-							// If all reads are done, mark it
-							if (strLine == null)
-								mIsAllReadDone = true;
+					// Enqueue it unless a seek was requested meanwhile
+					mLock.lock();
+					try {
+						if (generation != mGeneration) {
+							mFreeBatches.add(batch);
+							continue;
 						}
+						PrefetchedChunk chunk = new PrefetchedChunk();
+						chunk.sn = sn;
+						chunk.events = batch;
+						chunk.records = records;
+						chunk.isLast = isLast;
+						mReadyChunks.add(chunk);
+						this.mNextSN++;
+						if (isLast)
+							mIsAllReadDone = true;
+						mReadyCondition.signalAll();
 					} finally {
-						mPreloadBuffer.mLock.unlock();
+						mLock.unlock();
 					}
-				} catch (IOException e) {
-					e.printStackTrace();
 				}
 			}
-		}
 
-		class PreloadBuffer {
-			public ArrayList<RecordroidEvent> events;
-			private Lock mLock = new ReentrantLock();
+			// Returns true if all records are read.
+			private boolean readChunk(EventBatch batch) throws IOException {
+				batch.clear();
+
+				// 1) read file to the EOF
+				// 2) chunk rule is not satisfied
+				// 1 && 2
+				// The record read ahead at the end of previous chunk
+				// starts this chunk.
+				if (this.mIsCursorPrimed == false) {
+					this.mHasNext = mCursor.next();
+					this.mIsCursorPrimed = true;
+				}
+				mChunkRule.reset();
+				while (this.mHasNext && mChunkRule.isFull() == false) {
+					// Handle only event records
+					if (mCursor.kind == TraceFormat.KIND_KERNEL_INPUT
+							|| mCursor.kind == TraceFormat.KIND_PLATFORM) {
+						batch.add(mCursor);
+						mChunkRule.add(mCursor.timestampUS);
+					}
 
-			public PreloadBuffer() {
-				this.events = null;
+					// Read a record from file
+					this.mHasNext = mCursor.next();
+				}
+				return (this.mHasNext == false);
 			}
 		}
 	}
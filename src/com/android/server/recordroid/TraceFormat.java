@@ -0,0 +1,359 @@
+package com.android.server.recordroid;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+// Encodings of trace files.
+// - Text: one event per line ("K <ts> <dev> <type> <code> <value>")
+// - Binary: header followed by fixed-width records
+// - Block-compressed: binary records in independently deflated blocks,
+// followed by block index
+public class TraceFormat {
+	public static final int FORMAT_TEXT = 1;
+	public static final int FORMAT_BINARY = 2;
+	public static final int FORMAT_BLOCK_COMPRESSED = 3;
+
+	// Binary header: magic(4) + version(4) + storage(4) + storage option(4)
+	public static final int BINARY_MAGIC = 0x52445452; // "RDTR"
+	public static final int BINARY_VERSION = 1;
+	public static final int BINARY_HEADER_SIZE = 16;
+	public static final int STORAGE_PLAIN = 0;
+	public static final int STORAGE_BLOCK_DEFLATE = 1;
+
+	// Block-compressed storage
+	// - storage option: records per block
+	// - block: raw length(4) + compressed length(4) + deflated records
+	// - block index: (file offset(8) + first record(8) + records(4)) per
+	// block
+	// - trailer: block index offset(8) + number of blocks(4) + magic(4)
+	public static final int BLOCK_RECORDS = 4096;
+	public static final int BLOCK_INDEX_ENTRY_SIZE = 20;
+	public static final int BLOCK_TRAILER_SIZE = 16;
+
+	// Binary record: kind(1) + timestampUS(8) + 4 fields(4 * 4)
+	// Platform events store (type, responseTime, priv, secondPriv) in the
+	// four fields.
+	public static final int BINARY_RECORD_SIZE = 25;
+	public static final byte KIND_KERNEL_INPUT = 'K';
+	public static final byte KIND_PLATFORM = 'P';
+
+	// Writers are flushed in large writes
+	public static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	// Read modes of trace files
+	// - Stream: buffered stream reading
+	// - Mapped: decoding records straight from memory-mapped file
+	public static final int READ_MODE_STREAM = 1;
+	public static final int READ_MODE_MAPPED = 2;
+
+	// Detect the format of given trace file. Empty or short files are
+	// treated as text.
+	public static int detect(File file) throws IOException {
+		if (file.length() < BINARY_HEADER_SIZE)
+			return FORMAT_TEXT;
+		DataInputStream inStream = new DataInputStream(new FileInputStream(
+				file));
+		try {
+			int magic = inStream.readInt();
+			inStream.readInt();
+			int storage = inStream.readInt();
+			if (magic != BINARY_MAGIC)
+				return FORMAT_TEXT;
+			else if (storage == STORAGE_BLOCK_DEFLATE)
+				return FORMAT_BLOCK_COMPRESSED;
+			else
+				return FORMAT_BINARY;
+		} finally {
+			inStream.close();
+		}
+	}
+
+	public static boolean isSupportedHeader(int magic, int version) {
+		return (magic == BINARY_MAGIC && version <= BINARY_VERSION);
+	}
+
+	// Convert a trace file to the other format in bulk.
+	// Returns the number of converted records.
+	public static long convert(File srcFile, File dstFile, int dstFormat)
+			throws IOException {
+		// Opening the destination would truncate the source
+		if (srcFile.getCanonicalFile().equals(dstFile.getCanonicalFile()))
+			throw new IOException("Source and destination are the same file: "
+					+ srcFile);
+		long numRecords = 0;
+		TraceCursor cursor = TraceCursor.open(srcFile);
+		TraceRecordWriter writer = TraceRecordWriter.open(dstFile, dstFormat);
+		try {
+			while (cursor.next()) {
+				writer.write(cursor.kind, cursor.timestampUS, cursor.deviceNum,
+						cursor.typeVal, cursor.codeVal, cursor.value);
+				numRecords++;
+			}
+		} finally {
+			writer.close();
+			cursor.close();
+		}
+		return numRecords;
+	}
+
+	// Bulk converter
+	// usage: TraceFormat <text|binary|compressed> <source trace> <destination
+	// trace>
+	public static void main(String[] args) {
+		if (args.length != 3) {
+			System.err
+					.println("usage: TraceFormat <text|binary|compressed> <source trace> <destination trace>");
+			System.exit(1);
+		}
+
+		int dstFormat;
+		if (args[0].compareTo("text") == 0) {
+			dstFormat = FORMAT_TEXT;
+		} else if (args[0].compareTo("binary") == 0) {
+			dstFormat = FORMAT_BINARY;
+		} else if (args[0].compareTo("compressed") == 0) {
+			dstFormat = FORMAT_BLOCK_COMPRESSED;
+		} else {
+			System.err.println("Unknown format: " + args[0]);
+			System.exit(1);
+			return;
+		}
+
+		try {
+			long numRecords = convert(new File(args[1]), new File(args[2]),
+					dstFormat);
+			System.out.println(numRecords + " records are converted.");
+		} catch (IOException e) {
+			System.err.println("Conversion failed: " + e);
+			System.exit(1);
+		}
+	}
+}
+
+// Writes trace records in the given format.
+abstract class TraceRecordWriter implements Flushable {
+	protected FileOutputStream mFileStream;
+
+	public static TraceRecordWriter open(File file, int format)
+			throws IOException {
+		if (format == TraceFormat.FORMAT_BINARY)
+			return new BinaryTraceRecordWriter(file);
+		else if (format == TraceFormat.FORMAT_BLOCK_COMPRESSED)
+			return new BlockTraceRecordWriter(file);
+		else
+			return new TextTraceRecordWriter(file);
+	}
+
+	// Underlying file, e.g. for fsync
+	public FileOutputStream getFileStream() {
+		return this.mFileStream;
+	}
+
+	abstract public void write(byte kind, long timestampUS, int deviceNum,
+			int typeVal, int codeVal, int value) throws IOException;
+
+	abstract public void flush() throws IOException;
+
+	abstract public void close() throws IOException;
+
+	public void writeEvent(RecordroidEvent event) throws IOException {
+		if (event instanceof RecordroidKernelInputEvent) {
+			RecordroidKernelInputEvent e = (RecordroidKernelInputEvent) event;
+			this.write(TraceFormat.KIND_KERNEL_INPUT, e.timestampUS,
+					e.deviceNum, e.typeVal, e.codeVal, e.value);
+		} else if (event instanceof RecordroidPlatformEvent) {
+			RecordroidPlatformEvent e = (RecordroidPlatformEvent) event;
+			this.write(TraceFormat.KIND_PLATFORM, e.timestampUS,
+					e.platformEventType, e.responseTimeUS, e.priv,
+					e.secondPriv);
+		}
+	}
+}
+
+class TextTraceRecordWriter extends TraceRecordWriter {
+	private BufferedWriter mWriter;
+
+	public TextTraceRecordWriter(File file) throws IOException {
+		this.mFileStream = new FileOutputStream(file);
+		this.mWriter = new BufferedWriter(new OutputStreamWriter(
+				this.mFileStream), TraceFormat.WRITE_BUFFER_SIZE);
+	}
+
+	@Override
+	public void write(byte kind, long timestampUS, int deviceNum,
+			int typeVal, int codeVal, int value) throws IOException {
+		this.mWriter.write((char) kind + " " + timestampUS + " " + deviceNum
+				+ " " + typeVal + " " + codeVal + " " + value + "\n");
+	}
+
+	@Override
+	public void flush() throws IOException {
+		this.mWriter.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.mWriter.flush();
+		this.mWriter.close();
+	}
+}
+
+class BinaryTraceRecordWriter extends TraceRecordWriter {
+	private DataOutputStream mOutStream;
+
+	public BinaryTraceRecordWriter(File file) throws IOException {
+		this.mFileStream = new FileOutputStream(file);
+		this.mOutStream = new DataOutputStream(new BufferedOutputStream(
+				this.mFileStream, TraceFormat.WRITE_BUFFER_SIZE));
+		this.mOutStream.writeInt(TraceFormat.BINARY_MAGIC);
+		this.mOutStream.writeInt(TraceFormat.BINARY_VERSION);
+		this.mOutStream.writeInt(TraceFormat.STORAGE_PLAIN);
+		this.mOutStream.writeInt(0);
+	}
+
+	@Override
+	public void write(byte kind, long timestampUS, int deviceNum,
+			int typeVal, int codeVal, int value) throws IOException {
+		this.mOutStream.writeByte(kind);
+		this.mOutStream.writeLong(timestampUS);
+		this.mOutStream.writeInt(deviceNum);
+		this.mOutStream.writeInt(typeVal);
+		this.mOutStream.writeInt(codeVal);
+		this.mOutStream.writeInt(value);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		this.mOutStream.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.mOutStream.flush();
+		this.mOutStream.close();
+	}
+}
+
+// Writes binary records into independently deflated blocks.
+// Block index and trailer are written on close.
+class BlockTraceRecordWriter extends TraceRecordWriter {
+	private DataOutputStream mOutStream;
+	private long mFilePosition;
+	private ByteBuffer mBlock;
+	private byte[] mCompressed;
+	private Deflater mDeflater;
+	private long mNumRecords;
+
+	// Block index
+	private ByteBuffer mBlockIndex;
+	private int mNumBlocks;
+
+	public BlockTraceRecordWriter(File file) throws IOException {
+		this.mFileStream = new FileOutputStream(file);
+		this.mOutStream = new DataOutputStream(new BufferedOutputStream(
+				this.mFileStream, TraceFormat.WRITE_BUFFER_SIZE));
+		this.mOutStream.writeInt(TraceFormat.BINARY_MAGIC);
+		this.mOutStream.writeInt(TraceFormat.BINARY_VERSION);
+		this.mOutStream.writeInt(TraceFormat.STORAGE_BLOCK_DEFLATE);
+		this.mOutStream.writeInt(TraceFormat.BLOCK_RECORDS);
+		this.mFilePosition = TraceFormat.BINARY_HEADER_SIZE;
+
+		int blockSize = TraceFormat.BLOCK_RECORDS
+				* TraceFormat.BINARY_RECORD_SIZE;
+		this.mBlock = ByteBuffer.allocate(blockSize);
+		this.mCompressed = new byte[blockSize + blockSize / 100 + 64];
+		this.mDeflater = new Deflater();
+		this.mBlockIndex = ByteBuffer
+				.allocate(64 * TraceFormat.BLOCK_INDEX_ENTRY_SIZE);
+		this.mNumRecords = 0;
+		this.mNumBlocks = 0;
+	}
+
+	@Override
+	public void write(byte kind, long timestampUS, int deviceNum,
+			int typeVal, int codeVal, int value) throws IOException {
+		this.mBlock.put(kind);
+		this.mBlock.putLong(timestampUS);
+		this.mBlock.putInt(deviceNum);
+		this.mBlock.putInt(typeVal);
+		this.mBlock.putInt(codeVal);
+		this.mBlock.putInt(value);
+		this.mNumRecords++;
+		if (this.mBlock.hasRemaining() == false)
+			this.writeBlock();
+	}
+
+	private void writeBlock() throws IOException {
+		int rawLength = this.mBlock.position();
+		if (rawLength == 0)
+			return;
+		int numBlockRecords = rawLength / TraceFormat.BINARY_RECORD_SIZE;
+
+		// Deflate the block
+		this.mDeflater.reset();
+		this.mDeflater.setInput(this.mBlock.array(), 0, rawLength);
+		this.mDeflater.finish();
+		int compressedLength = 0;
+		while (this.mDeflater.finished() == false) {
+			if (compressedLength == this.mCompressed.length)
+				this.mCompressed = Arrays.copyOf(this.mCompressed,
+						this.mCompressed.length * 2);
+			compressedLength += this.mDeflater.deflate(this.mCompressed,
+					compressedLength, this.mCompressed.length
+							- compressedLength);
+		}
+
+		// Add block index entry
+		if (this.mBlockIndex.remaining() < TraceFormat.BLOCK_INDEX_ENTRY_SIZE) {
+			ByteBuffer newBlockIndex = ByteBuffer.allocate(this.mBlockIndex
+					.capacity() * 2);
+			this.mBlockIndex.flip();
+			newBlockIndex.put(this.mBlockIndex);
+			this.mBlockIndex = newBlockIndex;
+		}
+		this.mBlockIndex.putLong(this.mFilePosition);
+		this.mBlockIndex.putLong(this.mNumRecords - numBlockRecords);
+		this.mBlockIndex.putInt(numBlockRecords);
+		this.mNumBlocks++;
+
+		// Write the block
+		this.mOutStream.writeInt(rawLength);
+		this.mOutStream.writeInt(compressedLength);
+		this.mOutStream.write(this.mCompressed, 0, compressedLength);
+		this.mFilePosition += 8 + compressedLength;
+		this.mBlock.clear();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		// Partial block is written on close.
+		this.mOutStream.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.writeBlock();
+
+		// Block index & trailer
+		long blockIndexOffset = this.mFilePosition;
+		this.mOutStream.write(this.mBlockIndex.array(), 0,
+				this.mBlockIndex.position());
+		this.mOutStream.writeLong(blockIndexOffset);
+		this.mOutStream.writeInt(this.mNumBlocks);
+		this.mOutStream.writeInt(TraceFormat.BINARY_MAGIC);
+		this.mOutStream.flush();
+		this.mOutStream.close();
+		this.mDeflater.end();
+	}
+}
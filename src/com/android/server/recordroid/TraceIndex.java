@@ -0,0 +1,263 @@
+package com.android.server.recordroid;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+// Chunk index of a trace file, stored as a sidecar file(<trace>.idx).
+// It maps each chunk SN to the cursor position of the chunk's first record,
+// the cumulative timestamp at the chunk start and the number of events.
+// Any chunk can be served by a direct seek with it.
+class TraceIndex {
+	private static final String FILE_SUFFIX = ".idx";
+	private static final int INDEX_MAGIC = 0x52445449; // "RDTI"
+	private static final int INDEX_VERSION = 1;
+
+	// Trace file & chunk rule that this index is built for
+	private long mTraceLength;
+	private long mTraceLastModified;
+	private int mMinimumPreloadSize;
+	private long mMinimumPreloadIntervalUS;
+
+	// Entries: chunk SN starts from 1.
+	private int mNumChunks;
+	private long[] mPositions;
+	private long[] mTimestampsUS;
+	private int[] mNumEvents;
+
+	private TraceIndex(File traceFile, int minimumPreloadSize,
+			long minimumPreloadIntervalUS) {
+		this.mTraceLength = traceFile.length();
+		this.mTraceLastModified = traceFile.lastModified();
+		this.mMinimumPreloadSize = minimumPreloadSize;
+		this.mMinimumPreloadIntervalUS = minimumPreloadIntervalUS;
+		this.mNumChunks = 0;
+		this.mPositions = new long[16];
+		this.mTimestampsUS = new long[16];
+		this.mNumEvents = new int[16];
+	}
+
+	public static File getIndexFile(File traceFile) {
+		return new File(traceFile.getPath() + FILE_SUFFIX);
+	}
+
+	// Load the sidecar index of given trace file. If it does not exist or
+	// it is stale, build it and store it.
+	public static TraceIndex open(File traceFile, int readMode,
+			int minimumPreloadSize, long minimumPreloadIntervalUS)
+			throws IOException {
+		File indexFile = getIndexFile(traceFile);
+		TraceIndex index = null;
+		if (indexFile.exists()) {
+			try {
+				index = load(indexFile);
+			} catch (IOException e) {
+				index = null;
+			}
+		}
+		if (index != null
+				&& index.isValidFor(traceFile, minimumPreloadSize,
+						minimumPreloadIntervalUS))
+			return index;
+
+		index = build(traceFile, readMode, minimumPreloadSize,
+				minimumPreloadIntervalUS);
+		try {
+			index.save(indexFile);
+		} catch (IOException e) {
+			// Keep the index in memory only
+			System.err.println("Cannot store trace index: " + e);
+		}
+		return index;
+	}
+
+	public static TraceIndex build(File traceFile, int readMode,
+			int minimumPreloadSize, long minimumPreloadIntervalUS)
+			throws IOException {
+		TraceIndex index = new TraceIndex(traceFile, minimumPreloadSize,
+				minimumPreloadIntervalUS);
+		ChunkRule rule = new ChunkRule(minimumPreloadSize,
+				minimumPreloadIntervalUS);
+		TraceCursor cursor = TraceCursor.open(traceFile, readMode);
+		try {
+			long cumulativeTimestampUS = 0;
+			boolean hasNext = cursor.next();
+			while (hasNext) {
+				// A chunk starts with the present record
+				long position = cursor.recordPosition();
+				long startTimestampUS = cumulativeTimestampUS;
+				rule.reset();
+				while (hasNext && rule.isFull() == false) {
+					if (cursor.kind == TraceFormat.KIND_KERNEL_INPUT
+							|| cursor.kind == TraceFormat.KIND_PLATFORM) {
+						rule.add(cursor.timestampUS);
+						cumulativeTimestampUS += cursor.timestampUS;
+					}
+					hasNext = cursor.next();
+				}
+				index.addChunk(position, startTimestampUS, rule.getSize());
+			}
+		} finally {
+			cursor.close();
+		}
+		return index;
+	}
+
+	private static TraceIndex load(File indexFile) throws IOException {
+		DataInputStream inStream = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(indexFile)));
+		try {
+			if (inStream.readInt() != INDEX_MAGIC
+					|| inStream.readInt() != INDEX_VERSION)
+				return null;
+			TraceIndex index = new TraceIndex(indexFile, 0, 0);
+			index.mTraceLength = inStream.readLong();
+			index.mTraceLastModified = inStream.readLong();
+			index.mMinimumPreloadSize = inStream.readInt();
+			index.mMinimumPreloadIntervalUS = inStream.readLong();
+			int numChunks = inStream.readInt();
+			for (int i = 0; i < numChunks; i++) {
+				long position = inStream.readLong();
+				long timestampUS = inStream.readLong();
+				int numEvents = inStream.readInt();
+				index.addChunk(position, timestampUS, numEvents);
+			}
+			return index;
+		} finally {
+			inStream.close();
+		}
+	}
+
+	private void save(File indexFile) throws IOException {
+		DataOutputStream outStream = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(indexFile)));
+		try {
+			outStream.writeInt(INDEX_MAGIC);
+			outStream.writeInt(INDEX_VERSION);
+			outStream.writeLong(this.mTraceLength);
+			outStream.writeLong(this.mTraceLastModified);
+			outStream.writeInt(this.mMinimumPreloadSize);
+			outStream.writeLong(this.mMinimumPreloadIntervalUS);
+			outStream.writeInt(this.mNumChunks);
+			for (int i = 0; i < this.mNumChunks; i++) {
+				outStream.writeLong(this.mPositions[i]);
+				outStream.writeLong(this.mTimestampsUS[i]);
+				outStream.writeInt(this.mNumEvents[i]);
+			}
+		} finally {
+			outStream.close();
+		}
+	}
+
+	private boolean isValidFor(File traceFile, int minimumPreloadSize,
+			long minimumPreloadIntervalUS) {
+		return (this.mTraceLength == traceFile.length()
+				&& this.mTraceLastModified == traceFile.lastModified()
+				&& this.mMinimumPreloadSize == minimumPreloadSize && this.mMinimumPreloadIntervalUS == minimumPreloadIntervalUS);
+	}
+
+	private void addChunk(long position, long timestampUS, int numEvents) {
+		if (this.mNumChunks == this.mPositions.length) {
+			int newLength = this.mPositions.length * 2;
+			this.mPositions = Arrays.copyOf(this.mPositions,
+					newLength);
+			this.mTimestampsUS = Arrays.copyOf(this.mTimestampsUS,
+					newLength);
+			this.mNumEvents = Arrays.copyOf(this.mNumEvents,
+					newLength);
+		}
+		this.mPositions[this.mNumChunks] = position;
+		this.mTimestampsUS[this.mNumChunks] = timestampUS;
+		this.mNumEvents[this.mNumChunks] = numEvents;
+		this.mNumChunks++;
+	}
+
+	public int getNumChunks() {
+		return this.mNumChunks;
+	}
+
+	public boolean hasChunk(long sn) {
+		return (sn >= 1 && sn <= this.mNumChunks);
+	}
+
+	public long getPosition(long sn) {
+		return this.mPositions[(int) (sn - 1)];
+	}
+
+	public long getTimestampUS(long sn) {
+		return this.mTimestampsUS[(int) (sn - 1)];
+	}
+
+	public int getNumEvents(long sn) {
+		return this.mNumEvents[(int) (sn - 1)];
+	}
+
+	// Only for plain binary trace: position next to the chunk's last record.
+	// A truncated last record is not a part of the chunk.
+	public long getEndPosition(long sn) {
+		if (sn < this.mNumChunks)
+			return this.mPositions[(int) sn];
+		return this.mTraceLength
+				- (this.mTraceLength - TraceFormat.BINARY_HEADER_SIZE)
+				% TraceFormat.BINARY_RECORD_SIZE;
+	}
+
+	// Only for plain binary trace: true if each chunk is a run of event
+	// records, that is, the chunk is sent as it is stored in the file.
+	public boolean isPacked() {
+		if (this.mNumChunks == 0)
+			return false;
+		for (long sn = 1; sn <= this.mNumChunks; sn++) {
+			if (this.getEndPosition(sn) - this.getPosition(sn) != (long) this
+					.getNumEvents(sn) * TraceFormat.BINARY_RECORD_SIZE)
+				return false;
+		}
+		return true;
+	}
+}
+
+// Chunking rule of replay buffers:
+// a chunk is full when it has {minimumPreloadSize} events and its relative
+// timestamps span {minimumPreloadIntervalUS}.
+class ChunkRule {
+	private int mMinimumPreloadSize;
+	private long mMinimumPreloadIntervalUS;
+	private int mSize;
+	private long mIntervalUS;
+
+	public ChunkRule(int minimumPreloadSize, long minimumPreloadIntervalUS) {
+		this.mMinimumPreloadSize = minimumPreloadSize;
+		this.mMinimumPreloadIntervalUS = minimumPreloadIntervalUS;
+		this.reset();
+	}
+
+	public void reset() {
+		this.mSize = 0;
+		this.mIntervalUS = 0;
+	}
+
+	public void add(long relativeTimestampUS) {
+		// The first event's timestamp is relative to the previous chunk.
+		if (this.mSize > 0)
+			this.mIntervalUS += relativeTimestampUS;
+		this.mSize++;
+	}
+
+	public boolean isFull() {
+		return (this.mSize >= this.mMinimumPreloadSize && this.mIntervalUS >= this.mMinimumPreloadIntervalUS);
+	}
+
+	public int getSize() {
+		return this.mSize;
+	}
+
+	public int getMinimumPreloadSize() {
+		return this.mMinimumPreloadSize;
+	}
+}
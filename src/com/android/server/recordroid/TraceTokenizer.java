@@ -0,0 +1,135 @@
+package com.android.server.recordroid;
+
+import java.nio.ByteBuffer;
+
+// Single-pass parser of text trace lines
+// ("K <ts> <dev> <type> <code> <value>").
+// Numbers are parsed in place from a CharSequence or a byte range, so no
+// substrings or token arrays are allocated.
+// Platform events keep (type, responseTime, priv, secondPriv) in
+// (deviceNum, typeVal, codeVal, value).
+class TraceTokenizer {
+	public byte kind;
+	public long timestampUS;
+	public int deviceNum;
+	public int typeVal;
+	public int codeVal;
+	public int value;
+
+	private CharSequence mChars;
+	private ByteBuffer mBytes;
+	private int mPos;
+	private int mEnd;
+	private boolean mIsValid;
+
+	// Returns the magic letter of given line, or 0 if it is not an event.
+	public static byte kindOf(CharSequence line) {
+		if (line.length() == 0)
+			return 0;
+		char magic = line.charAt(0);
+		if (magic != TraceFormat.KIND_KERNEL_INPUT
+				&& magic != TraceFormat.KIND_PLATFORM)
+			return 0;
+		if (line.length() > 1 && line.charAt(1) != ' ')
+			return 0;
+		return (byte) magic;
+	}
+
+	// Parse a line. Returns false if the line is not a valid event.
+	public boolean parse(CharSequence line) {
+		this.mChars = line;
+		this.mBytes = null;
+		this.mPos = 0;
+		this.mEnd = line.length();
+		return this.parseFields();
+	}
+
+	// Parse bytes in [start, end) of given buffer. Returns false if the range
+	// is not a valid event.
+	public boolean parse(ByteBuffer bytes, int start, int end) {
+		this.mChars = null;
+		this.mBytes = bytes;
+		this.mPos = start;
+		this.mEnd = end;
+		return this.parseFields();
+	}
+
+	private int charAt(int index) {
+		if (this.mChars != null)
+			return this.mChars.charAt(index);
+		else
+			return this.mBytes.get(index) & 0xFF;
+	}
+
+	private boolean parseFields() {
+		// Magic letter dispatch
+		if (this.mPos >= this.mEnd)
+			return false;
+		int magic = this.charAt(this.mPos);
+		if (magic != TraceFormat.KIND_KERNEL_INPUT
+				&& magic != TraceFormat.KIND_PLATFORM)
+			return false;
+		this.mPos++;
+		if (this.mPos >= this.mEnd || this.charAt(this.mPos) != ' ')
+			return false;
+
+		this.mIsValid = true;
+		this.kind = (byte) magic;
+		this.timestampUS = this.nextLong();
+		this.deviceNum = this.nextInt();
+		this.typeVal = this.nextInt();
+		this.codeVal = this.nextInt();
+		this.value = this.nextInt();
+		return this.mIsValid;
+	}
+
+	private long nextLong() {
+		// Skip separators
+		while (this.mPos < this.mEnd && this.charAt(this.mPos) == ' ')
+			this.mPos++;
+		if (this.mPos >= this.mEnd) {
+			this.mIsValid = false;
+			return 0;
+		}
+
+		boolean isNegative = false;
+		int c = this.charAt(this.mPos);
+		if (c == '-' || c == '+') {
+			isNegative = (c == '-');
+			this.mPos++;
+		}
+
+		long result = 0;
+		int numDigits = 0;
+		while (this.mPos < this.mEnd) {
+			c = this.charAt(this.mPos);
+			if (c < '0' || c > '9')
+				break;
+			if (result > (Long.MAX_VALUE - (c - '0')) / 10) {
+				// Overflow
+				this.mIsValid = false;
+				return 0;
+			}
+			result = result * 10 + (c - '0');
+			numDigits++;
+			this.mPos++;
+		}
+
+		// A token should end with separator, CR or end of line
+		if (numDigits == 0
+				|| (this.mPos < this.mEnd && c != ' ' && c != '\r')) {
+			this.mIsValid = false;
+			return 0;
+		}
+		return isNegative ? -result : result;
+	}
+
+	private int nextInt() {
+		long result = this.nextLong();
+		if (result < Integer.MIN_VALUE || result > Integer.MAX_VALUE) {
+			this.mIsValid = false;
+			return 0;
+		}
+		return (int) result;
+	}
+}
@@ -1,27 +1,81 @@
 package com.android.server.recordroid;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 // It abstracts USB communication behaviors between Host PC and Android target device.
 public class USBConnector {
 	private static final String TAG = "USBConnector";
 	private static final int DEFAULT_SLEEP_MS = 2000;
 
+	// Wire modes: framed session, binary codec per connection, or legacy
+	// Java serialization for platform builds without binary codec.
+	// It is negotiated on first exchange in this order, together with the
+	// codec version: the newest one first, then the oldest one.
+	private static final int WIRE_MODE_UNKNOWN = 0;
+	private static final int WIRE_MODE_BINARY = 1;
+	private static final int WIRE_MODE_LEGACY = 2;
+	private static final int WIRE_MODE_SESSION = 3;
+	private static final int[] WIRE_MODE_NEGOTIATION_ORDER = {
+			WIRE_MODE_SESSION, WIRE_MODE_SESSION, WIRE_MODE_BINARY,
+			WIRE_MODE_BINARY, WIRE_MODE_LEGACY };
+	private static final int[] WIRE_VERSION_NEGOTIATION_ORDER = {
+			WireCodec.WIRE_VERSION, WireCodec.WIRE_MIN_VERSION,
+			WireCodec.WIRE_VERSION, WireCodec.WIRE_MIN_VERSION,
+			WireCodec.WIRE_MIN_VERSION };
+
+	// Framed session is kept alive by an empty frame if idle for
+	// KEEPALIVE_MS, and it is closed if no frame came for SESSION_TIMEOUT_MS.
+	private static final int KEEPALIVE_MS = 2000;
+	private static final int SESSION_TIMEOUT_MS = 3 * KEEPALIVE_MS;
+
+	// Send buffer bounds: messages of data lane (a replay chunk is one
+	// message), and control commands of priority lane
+	private static final int DEFAULT_SEND_BUFFER_CAPACITY = 256;
+	private static final int PRIORITY_LANE_CAPACITY = 64;
+
+	// Session frames of at least this size are compressed if both peers
+	// agree on it. 0 disables compression.
+	private static final int DEFAULT_COMPRESSION_THRESHOLD = 512;
+
 	private Worker mWorker;
+	private ConnectorEngine mEngine = null;
+	private EngineLink mLink = null;
 	private boolean mIsServer;
 	private int mPort;
 	private int mSleepMS;
+	private volatile int mWireMode = WIRE_MODE_UNKNOWN;
+	private volatile int mWireVersion = WireCodec.WIRE_VERSION;
+	private volatile boolean mIsWakeOnSend = true;
+	private volatile int mCompressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
 
 	private MessageBuffer mSendBuffer;
 	private ArrayList<USBMessageListener> mListeners;
+	private ConnectorMetrics mMetrics = new ConnectorMetrics();
 
 	private USBConnector(boolean isServer, int port, int sleepMS) {
 		this.mIsServer = isServer;
@@ -29,7 +83,7 @@ public class USBConnector {
 		this.mSleepMS = sleepMS;
 
 		this.mListeners = new ArrayList<USBMessageListener>();
-		this.mSendBuffer = new MessageBuffer();
+		this.mSendBuffer = new MessageBuffer(DEFAULT_SEND_BUFFER_CAPACITY);
 	}
 
 	public static USBConnector server(int selfPort, int sleepMS) {
@@ -40,6 +94,14 @@ public class USBConnector {
 		return new USBConnector(false, targetPort, sleepMS);
 	}
 
+	// Client driven by given engine instead of its own thread
+	public static USBConnector client(ConnectorEngine engine,
+			int targetPort, int sleepMS) {
+		USBConnector connector = new USBConnector(false, targetPort, sleepMS);
+		connector.mEngine = engine;
+		return connector;
+	}
+
 	public static USBConnector server(int selfPort) {
 		return new USBConnector(true, selfPort, DEFAULT_SLEEP_MS);
 	}
@@ -50,11 +112,24 @@ public class USBConnector {
 
 	public void start() {
 		this.stop();
+		// Target may be replaced while stopped
+		this.mWireMode = WIRE_MODE_UNKNOWN;
+		this.mWireVersion = WireCodec.WIRE_VERSION;
+		if (this.mEngine != null) {
+			this.mLink = new EngineLink();
+			this.mEngine.register(this.mLink);
+			return;
+		}
 		this.mWorker = new Worker(this.mIsServer, this.mPort, this.mSleepMS);
 		this.mWorker.start();
 	}
 
 	public void stop() {
+		if (this.mLink != null) {
+			this.mLink.kill();
+			this.mEngine.unregister(this.mLink);
+			this.mLink = null;
+		}
 		if (this.mWorker != null) {
 			this.mWorker.kill();
 			try {
@@ -65,16 +140,49 @@ public class USBConnector {
 		}
 	}
 
-	public void sendMessage(RecordroidMessage message) {
-		if (this.mWorker != null && this.mWorker.isRunning() == true) {
-			this.mSendBuffer.add(message);
+	// Returns false if the message is not buffered: connector is not
+	// running, or send buffer is full (backpressure). It never blocks.
+	// A file chunk is released once it is sent or dropped, and at once if
+	// it is not buffered.
+	public boolean sendMessage(RecordroidMessage message) {
+		EngineLink link = this.mLink;
+		if (link != null && link.isRunning() == true) {
+			if (this.mSendBuffer.add(message) == false) {
+				FileReplayChunk.release(message);
+				return false;
+			}
+			if (this.mIsWakeOnSend)
+				link.wakeup();
+			return true;
+		} else if (this.mWorker != null && this.mWorker.isRunning() == true) {
+			if (this.mSendBuffer.add(message))
+				return true;
 		}
+		FileReplayChunk.release(message);
+		return false;
+	}
+
+	// Wake-on-send mode: client worker wakes up as soon as a message is put,
+	// and {sleepMS} is only the heartbeat period when nothing is sent.
+	// Otherwise, messages wait for the next polling cycle.
+	public void setWakeOnSend(boolean isWakeOnSend) {
+		this.mIsWakeOnSend = isWakeOnSend;
+	}
+
+	// Applied from the next session
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.mCompressionThreshold = compressionThreshold;
 	}
 
 	public int getSendBufferLength() {
 		return this.mSendBuffer.getLength();
 	}
 
+	// Traffic metrics since this connector is made
+	public ConnectorMetrics getMetrics() {
+		return this.mMetrics;
+	}
+
 	public void addListener(USBMessageListener listener) {
 		this.mListeners.add(listener);
 	}
@@ -91,6 +199,11 @@ public class USBConnector {
 		private int mSleepMS;
 		private boolean mIsRunning;
 		private boolean mIsServer;
+		private WireSession mSession = null;
+		private long mLastFrameMS = 0;
+		// Target may have handled the present batch, so it must not be
+		// sent again by retry or negotiation.
+		private boolean mIsDelivered = false;
 
 		public Worker(boolean isServer, int port, int sleepMS) {
 			super(THREAD_NAME);
@@ -112,13 +225,10 @@ public class USBConnector {
 			}
 		}
 
-		@SuppressWarnings("unchecked")
 		private void runServer() {
 			this.mIsRunning = true;
 			DebugLog.i(TAG, "USBServerThread is started");
 
-			ObjectInputStream inStream = null;
-			ObjectOutputStream outStream = null;
 			ServerSocket self = null;
 			Socket target = null;
 
@@ -140,41 +250,34 @@ public class USBConnector {
 							DebugLog.e(TAG, "Void input stream!");
 							break;
 						}
-						inStream = new ObjectInputStream(
-								target.getInputStream());
+						if (target.getOutputStream() == null) {
+							DebugLog.e(TAG, "Void output stream!");
+							break;
+						}
 
-						// listen a message from target and broadcast it to
-						// listeners
-						Object inObject = inStream.readObject();
-						ArrayList<RecordroidMessage> inMsg = null;
-						if (inObject instanceof ArrayList) {
-							inMsg = (ArrayList<RecordroidMessage>) inObject;
-							DebugLog.d(TAG, "LISTEN: " + inMsg);
-							for (USBMessageListener listener : mListeners) {
-								listener.onUSBMessage(inMsg);
-							}
-
-							// pop all messages from
-							// sen(ArrayList<RecordroidMessage>) inObjectd
-							// buffer and send them
-							// if
-							// possible
-							if (target.getOutputStream() == null) {
-								DebugLog.e(TAG, "Void output stream!");
-								break;
-							}
-							outStream = new ObjectOutputStream(
-									target.getOutputStream());
-							final ArrayList<RecordroidMessage> sendMsg = mSendBuffer
-									.popAll();
-							DebugLog.d(TAG, "RESPOND: " + sendMsg);
-							if (sendMsg != null) {
-								outStream.writeObject(sendMsg);
-								outStream.flush();
-							}
+						// Respond in the wire format that target used.
+						// Bytes are counted above the buffer, so that its
+						// read-ahead is not counted as received.
+						BufferedInputStream inStream = new BufferedInputStream(
+								target.getInputStream());
+						CountingInputStream countingIn = new CountingInputStream(
+								inStream);
+						CountingOutputStream countingOut = new CountingOutputStream(
+								target.getOutputStream());
+						if (WireCodec.isBinaryStream(inStream)) {
+							DataInputStream dataInStream = new DataInputStream(
+									countingIn);
+							WireCodec.Preamble preamble = WireCodec
+									.readPreamble(dataInStream);
+							if (preamble.magic == WireCodec.WIRE_SESSION_MAGIC
+									|| preamble.magic == WireCodec.WIRE_NEGOTIATED_SESSION_MAGIC)
+								this.serveSession(target, inStream, preamble);
+							else
+								this.respondBinary(dataInStream,
+										preamble.version, countingIn,
+										countingOut);
 						} else {
-							// Exception
-							DebugLog.e(TAG, "Invalid USB message came!");
+							this.respondLegacy(countingIn, countingOut);
 						}
 					} catch (IOException e) {
 						// Ignore
@@ -186,10 +289,6 @@ public class USBConnector {
 					} finally {
 						// Close connection with target
 						try {
-							if (outStream != null)
-								outStream.close();
-							if (inStream != null)
-								inStream.close();
 							if (target != null)
 								target.close();
 						} catch (IOException e) {
@@ -212,90 +311,135 @@ public class USBConnector {
 			DebugLog.i(TAG, "USBServerThread is finished");
 		}
 
+		// Serve frames of a session until it is broken or idle too long.
+		private void serveSession(Socket target, InputStream in,
+				WireCodec.Preamble preamble) throws IOException {
+			WireSession session = WireSession.accept(target, in, preamble,
+					mCompressionThreshold, mMetrics);
+			target.setSoTimeout(this.mSleepMS);
+			long lastFrameMS = System.currentTimeMillis();
+			while (this.mIsRunning == true) {
+				try {
+					// listen a frame from target and broadcast it
+					ArrayList<RecordroidMessage> inMsg = session.readFrame();
+					lastFrameMS = System.currentTimeMillis();
+					if (inMsg.isEmpty() == false) {
+						DebugLog.d(TAG, "LISTEN: " + inMsg);
+						for (USBMessageListener listener : mListeners) {
+							listener.onUSBMessage(inMsg);
+						}
+					}
+
+					// respond with all messages of send buffer, or with a
+					// keepalive
+					mMetrics.onCycle(mSendBuffer.getLength());
+					final ArrayList<RecordroidMessage> sendMsg = mSendBuffer
+							.popAll();
+					DebugLog.d(TAG, "RESPOND: " + sendMsg);
+					session.writeFrame(sendMsg);
+				} catch (SocketTimeoutException e) {
+					if (System.currentTimeMillis() - lastFrameMS >= SESSION_TIMEOUT_MS)
+						throw new IOException("Session timeout");
+				}
+
+				for (USBMessageListener listener : mListeners) {
+					listener.didUSBConnectorRoutine();
+				}
+				for (USBMessageListener listener : mListeners) {
+					listener.willDoUSBConnectorRoutine();
+				}
+			}
+		}
+
+		// Response is in the {version} of the request
+		private void respondBinary(DataInputStream inStream, int version,
+				CountingInputStream countingIn, CountingOutputStream out)
+				throws IOException {
+			// listen a message from target and broadcast it to listeners
+			long startNS = System.nanoTime();
+			ArrayList<RecordroidMessage> inMsg = WireCodec.readBatch(inStream);
+			mMetrics.onReceived(inMsg.size(), countingIn.getCount(),
+					(System.nanoTime() - startNS) / 1000);
+			DebugLog.d(TAG, "LISTEN: " + inMsg);
+			for (USBMessageListener listener : mListeners) {
+				listener.onUSBMessage(inMsg);
+			}
+
+			// pop all messages from send buffer and send them.
+			// Empty batch is also sent, so that target knows this side
+			// speaks the binary codec.
+			DataOutputStream outStream = new DataOutputStream(
+					new BufferedOutputStream(out));
+			mMetrics.onCycle(mSendBuffer.getLength());
+			final ArrayList<RecordroidMessage> sendMsg = mSendBuffer.popAll();
+			DebugLog.d(TAG, "RESPOND: " + sendMsg);
+			startNS = System.nanoTime();
+			WireCodec.writePreamble(outStream, WireCodec.WIRE_MAGIC, version);
+			WireCodec.writeBatch(outStream, sendMsg, version);
+			outStream.flush();
+			mMetrics.onSent((sendMsg != null) ? sendMsg.size() : 0,
+					out.getCount(), (System.nanoTime() - startNS) / 1000);
+		}
+
+		@SuppressWarnings("unchecked")
+		private void respondLegacy(CountingInputStream countingIn,
+				CountingOutputStream out) throws IOException,
+				ClassNotFoundException {
+			// listen a message from target and broadcast it to listeners
+			long startNS = System.nanoTime();
+			ObjectInputStream inStream = new ObjectInputStream(countingIn);
+			Object inObject = inStream.readObject();
+			if (inObject instanceof ArrayList) {
+				ArrayList<RecordroidMessage> inMsg = (ArrayList<RecordroidMessage>) inObject;
+				mMetrics.onReceived(inMsg.size(), countingIn.getCount(),
+						(System.nanoTime() - startNS) / 1000);
+				DebugLog.d(TAG, "LISTEN: " + inMsg);
+				for (USBMessageListener listener : mListeners) {
+					listener.onUSBMessage(inMsg);
+				}
+
+				// pop all messages from send buffer and send them if possible
+				ObjectOutputStream outStream = new ObjectOutputStream(out);
+				mMetrics.onCycle(mSendBuffer.getLength());
+				final ArrayList<RecordroidMessage> sendMsg = mSendBuffer
+						.popAll();
+				DebugLog.d(TAG, "RESPOND: " + sendMsg);
+				startNS = System.nanoTime();
+				if (sendMsg != null) {
+					outStream.writeObject(WireCodec.toLegacyMessages(sendMsg));
+				}
+				outStream.flush();
+				mMetrics.onSent((sendMsg != null) ? sendMsg.size() : 0,
+						out.getCount(), (System.nanoTime() - startNS) / 1000);
+			} else {
+				// Exception
+				DebugLog.e(TAG, "Invalid USB message came!");
+			}
+		}
+
 		private void runClient() {
 			this.mIsRunning = true;
 			DebugLog.i(TAG, "USBClientThread is started");
 
-			ObjectInputStream inStream = null;
-			ObjectOutputStream outStream = null;
-			Socket target = null;
-
 			while (this.mIsRunning == true) {
 				for (USBMessageListener listener : mListeners) {
 					listener.willDoUSBConnectorRoutine();
 				}
 
 				// Check if there is any message to be sent in the buffer
+				mMetrics.onCycle(mSendBuffer.getLength());
 				final ArrayList<RecordroidMessage> sendMsg = mSendBuffer
 						.popAll();
 
 				// If there is any message, send it and receive messages from
 				// target
 				if (sendMsg != null) {
-					try {
-						// Establish connection with target
-						int targetPort = this.mPort;
-						target = new Socket("localhost", targetPort);
-						if (target.getOutputStream() == null) {
-							DebugLog.e(TAG, "Void output stream!");
-							break;
-						}
-						outStream = new ObjectOutputStream(
-								target.getOutputStream());
-
-						// Send the messages
-						outStream.writeObject(sendMsg);
-						outStream.flush();
-						DebugLog.d(TAG, "SEND: " + sendMsg + " / Num:"
-								+ sendMsg.size());
-
-						// Listen messages from target
-						if (target.getInputStream() == null) {
-							DebugLog.e(TAG, "Void input stream!");
-							break;
-						}
-						inStream = new ObjectInputStream(
-								target.getInputStream());
-						Object inObject = inStream.readObject();
-						if (inObject instanceof ArrayList) {
-							@SuppressWarnings("unchecked")
-							ArrayList<RecordroidMessage> inMsg = (ArrayList<RecordroidMessage>) inObject;
-							DebugLog.d(TAG, "RECEIVE: " + inMsg);
-							for (USBMessageListener listener : mListeners) {
-								listener.onUSBMessage(inMsg);
-							}
-						} else {
-							DebugLog.e(TAG, "Invalid USB message came!");
-						}
-						// Close connection with target
-						if (outStream != null)
-							outStream.close();
-						if (inStream != null)
-							inStream.close();
-						if (target != null)
-							target.close();
-					} catch (EOFException e) {
-						// Ignore
-					} catch (ClassNotFoundException e) {
-						// Class not found
-						DebugLog.e(TAG,
-								"Read message error: ClassNotFoundException "
-										+ e);
-					} catch (IOException e) {
-						DebugLog.e(TAG, "" + e);
-					} finally {
-						// Close connection with target
-						try {
-							if (outStream != null)
-								outStream.close();
-							if (inStream != null)
-								inStream.close();
-							if (target != null)
-								target.close();
-						} catch (IOException e) {
-							DebugLog.e(TAG, "Close failure: " + e);
-						}
-					}
+					this.deliver(sendMsg);
+					FileReplayChunk.release(sendMsg);
+				} else if (this.mSession != null
+						&& System.currentTimeMillis() - this.mLastFrameMS >= KEEPALIVE_MS) {
+					// Keep idle session alive
+					this.deliver(new ArrayList<RecordroidMessage>());
 				}
 
 				for (USBMessageListener listener : mListeners) {
@@ -303,47 +447,949 @@ public class USBConnector {
 				}
 
 				try {
-					Thread.sleep(this.mSleepMS);
+					if (mIsWakeOnSend)
+						mSendBuffer.await(this.mSleepMS);
+					else
+						Thread.sleep(this.mSleepMS);
 				} catch (InterruptedException e) {
 					// Ignore
 				}
 			}
 
+			this.closeSession();
 			DebugLog.i(TAG, "USBClientThread is finished");
 		}
 
+		// Send messages in the negotiated wire mode.
+		// While it is not negotiated, try the modes in order: platform builds
+		// without a mode drop the connection on its preamble, so the same
+		// messages are sent again in the next mode.
+		// Once target may have taken them, a failure is not retried: the
+		// messages are reported lost, so that listeners send again what
+		// target still requires.
+		private void deliver(ArrayList<RecordroidMessage> sendMsg) {
+			int wireMode = mWireMode;
+			int[] candidates = WIRE_MODE_NEGOTIATION_ORDER;
+			int[] versions = WIRE_VERSION_NEGOTIATION_ORDER;
+			if (wireMode != WIRE_MODE_UNKNOWN) {
+				candidates = new int[] { wireMode };
+				versions = new int[] { mWireVersion };
+			}
+			for (int i = 0; i < candidates.length; i++) {
+				this.mIsDelivered = false;
+				try {
+					this.exchange(sendMsg, candidates[i], versions[i]);
+					return;
+				} catch (ClassNotFoundException e) {
+					// Class not found
+					DebugLog.e(TAG,
+							"Read message error: ClassNotFoundException " + e);
+					return;
+				} catch (IOException e) {
+					DebugLog.e(TAG, "" + e);
+					mMetrics.onFailure();
+					if (this.mIsDelivered)
+						break;
+				}
+			}
+
+			if (sendMsg.isEmpty() == false) {
+				for (USBMessageListener listener : mListeners) {
+					listener.onUSBMessagesLost();
+				}
+			}
+		}
+
+		private void exchange(ArrayList<RecordroidMessage> sendMsg,
+				int wireMode, int version) throws IOException,
+				ClassNotFoundException {
+			if (wireMode == WIRE_MODE_SESSION)
+				this.exchangeInSession(sendMsg, version);
+			else
+				this.exchangeInConnection(sendMsg,
+						(wireMode == WIRE_MODE_BINARY), version);
+		}
+
+		// Write a frame and read the response frame on the long-lived
+		// session. It reconnects in {version} if the session is not open.
+		private void exchangeInSession(ArrayList<RecordroidMessage> sendMsg,
+				int version) throws IOException {
+			boolean isReused = (this.mSession != null);
+			try {
+				if (this.mSession == null) {
+					this.mSession = WireSession.connect("localhost",
+							this.mPort, SESSION_TIMEOUT_MS, version,
+							mCompressionThreshold, mMetrics);
+					mWireMode = WIRE_MODE_SESSION;
+					mWireVersion = this.mSession.getVersion();
+				}
+				long requestNS = System.nanoTime();
+				this.mSession.writeFrame(sendMsg);
+				this.mIsDelivered = true;
+				DebugLog.d(TAG, "SEND: " + sendMsg + " / Num:"
+						+ sendMsg.size());
+				ArrayList<RecordroidMessage> inMsg = this.mSession.readFrame();
+				mMetrics.onFrame((System.nanoTime() - requestNS) / 1000);
+				this.mLastFrameMS = System.currentTimeMillis();
+				if (inMsg.isEmpty() == false) {
+					DebugLog.d(TAG, "RECEIVE: " + inMsg);
+					for (USBMessageListener listener : mListeners) {
+						listener.onUSBMessage(inMsg);
+					}
+				}
+			} catch (IOException e) {
+				this.closeSession();
+				// Session may have been closed by target while idle: retry
+				// once on a new session, unless the frame has been written.
+				if (isReused && this.mIsDelivered == false)
+					this.exchangeInSession(sendMsg, version);
+				else
+					throw e;
+			}
+		}
+
+		private void closeSession() {
+			if (this.mSession != null) {
+				this.mSession.close();
+				this.mSession = null;
+			}
+		}
+
+		// Send messages and receive messages from target in one connection.
+		// The wire mode is fixed once target responds in it.
+		@SuppressWarnings("unchecked")
+		private void exchangeInConnection(ArrayList<RecordroidMessage> sendMsg,
+				boolean isBinary, int version) throws IOException,
+				ClassNotFoundException {
+			Socket target = null;
+			try {
+				// Establish connection with target
+				int targetPort = this.mPort;
+				long startNS = System.nanoTime();
+				target = new Socket("localhost", targetPort);
+				mMetrics.onConnect((System.nanoTime() - startNS) / 1000);
+				if (target.getOutputStream() == null
+						|| target.getInputStream() == null)
+					throw new IOException("Void stream!");
+				// Counted above the buffer, as in runServer
+				CountingInputStream countingIn = new CountingInputStream(
+						new BufferedInputStream(target.getInputStream()));
+				CountingOutputStream countingOut = new CountingOutputStream(
+						target.getOutputStream());
+
+				ArrayList<RecordroidMessage> inMsg = null;
+				long requestNS = System.nanoTime();
+				long responseNS;
+				if (isBinary) {
+					// Send the messages
+					DataOutputStream outStream = new DataOutputStream(
+							new BufferedOutputStream(countingOut));
+					WireCodec.writePreamble(outStream, WireCodec.WIRE_MAGIC,
+							version);
+					WireCodec.writeBatch(outStream, sendMsg, version);
+					outStream.flush();
+					mMetrics.onSent(sendMsg.size(), countingOut.getCount(),
+							(System.nanoTime() - requestNS) / 1000);
+					DebugLog.d(TAG, "SEND: " + sendMsg + " / Num:"
+							+ sendMsg.size());
+
+					// Listen messages from target
+					DataInputStream inStream = new DataInputStream(countingIn);
+					WireCodec.Preamble preamble = WireCodec
+							.readPreamble(inStream);
+					mWireMode = WIRE_MODE_BINARY;
+					mWireVersion = Math.min(version, preamble.version);
+					this.mIsDelivered = true;
+					responseNS = System.nanoTime();
+					inMsg = WireCodec.readBatch(inStream);
+				} else {
+					// Send the messages
+					ObjectOutputStream outStream = new ObjectOutputStream(
+							countingOut);
+					outStream.writeObject(WireCodec.toLegacyMessages(sendMsg));
+					outStream.flush();
+					mMetrics.onSent(sendMsg.size(), countingOut.getCount(),
+							(System.nanoTime() - requestNS) / 1000);
+					DebugLog.d(TAG, "SEND: " + sendMsg + " / Num:"
+							+ sendMsg.size());
+
+					// Listen messages from target
+					ObjectInputStream inStream;
+					try {
+						inStream = new ObjectInputStream(countingIn);
+					} catch (EOFException e) {
+						// Target does not listen
+						mWireMode = WIRE_MODE_UNKNOWN;
+						throw e;
+					}
+					mWireMode = WIRE_MODE_LEGACY;
+					this.mIsDelivered = true;
+					responseNS = System.nanoTime();
+					try {
+						Object inObject = inStream.readObject();
+						if (inObject instanceof ArrayList)
+							inMsg = (ArrayList<RecordroidMessage>) inObject;
+						else
+							DebugLog.e(TAG, "Invalid USB message came!");
+					} catch (EOFException e) {
+						// Target has nothing to send
+					}
+				}
+				long endNS = System.nanoTime();
+				mMetrics.onReceived((inMsg != null) ? inMsg.size() : 0,
+						countingIn.getCount(), (endNS - responseNS) / 1000);
+				mMetrics.onFrame((endNS - requestNS) / 1000);
+
+				if (inMsg != null && inMsg.isEmpty() == false) {
+					DebugLog.d(TAG, "RECEIVE: " + inMsg);
+					for (USBMessageListener listener : mListeners) {
+						listener.onUSBMessage(inMsg);
+					}
+				}
+			} finally {
+				// Close connection with target
+				try {
+					if (target != null)
+						target.close();
+				} catch (IOException e) {
+					DebugLog.e(TAG, "Close failure: " + e);
+				}
+			}
+		}
+
 		public void kill() {
 			this.mIsRunning = false;
 		}
 	}
 
-	class MessageBuffer {
-		private Lock mLock = new ReentrantLock();
-		private ArrayList<RecordroidMessage> mMessages;
+	// Client connection driven by ConnectorEngine.
+	// It runs the same cycle and wire negotiation as Worker.runClient, on
+	// non-blocking channels: connect, write request, read response.
+	// Listeners are called in the same order as by Worker, but on the
+	// callback threads of the engine through the listener queue of this
+	// link, so that a listener waiting for disk stalls neither the engine
+	// nor the links behind it.
+	class EngineLink implements ConnectorEngine.Handler {
+		private static final int PHASE_IDLE = 0;
+		private static final int PHASE_CONNECTING = 1;
+		private static final int PHASE_WRITING = 2;
+		private static final int PHASE_READING = 3;
+		private static final int PHASE_ROUTINE = 4; // willDo...() is running
+		private static final int BUFFER_SIZE = 64 * 1024;
+
+		private volatile boolean mIsRunning = true;
+		private AtomicBoolean mIsWakeupPending = new AtomicBoolean(false);
+		private ListenerQueue mListenerQueue = new ListenerQueue(this);
+		private volatile boolean mIsRoutineDone = false;
+		private int mPhase = PHASE_IDLE;
+		private long mNextCycleMS = 0;
+		private long mDeadlineMS = 0;
 
-		public MessageBuffer() {
-			this.mMessages = new ArrayList<RecordroidMessage>();
+		// Framed session kept across cycles
+		private SocketChannel mSessionChannel = null;
+		private SelectionKey mSessionKey = null;
+		private WireCompression mSessionCompression = null;
+		private int mSessionVersion = WireCodec.WIRE_VERSION;
+		private long mLastFrameMS = 0;
+
+		// Present delivery & attempt
+		private ArrayList<RecordroidMessage> mSendMsg = null;
+		private int[] mCandidates;
+		private int[] mCandidateVersions;
+		private int mCandidateIndex;
+		private boolean mIsSessionReused;
+		private boolean mIsHandshaking;
+		private boolean mIsDelivered; // same as Worker.mIsDelivered
+		private SocketChannel mChannel = null;
+		private SelectionKey mKey = null;
+		private ByteBufferOutputStream mOutBuffer = new ByteBufferOutputStream(
+				BUFFER_SIZE);
+		private DataOutputStream mOutStream = new DataOutputStream(
+				new BufferedOutputStream(mOutBuffer));
+		private ByteArrayOutputStream mFrameBuffer = new ByteArrayOutputStream();
+		private DataOutputStream mFrameOut = new DataOutputStream(mFrameBuffer);
+		// File-backed chunks written between bytes of mOutBuffer: a region
+		// is sent after the bytes before its offset.
+		private ArrayList<FileReplayChunk> mRegions = new ArrayList<FileReplayChunk>();
+		private ArrayList<Integer> mRegionOffsets = new ArrayList<Integer>();
+		private int mRegionIndex;
+		private long mRegionSent;
+		private int mOutLimit;
+		// Metrics of present attempt
+		private long mConnectNS;
+		private long mRequestNS;
+		private long mEncodeUS;
+		private long mRequestBytes;
+		private ByteBuffer mInBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		public boolean isRunning() {
+			return this.mIsRunning;
 		}
 
-		public void add(RecordroidMessage message) {
-			this.mLock.lock();
+		public void kill() {
+			this.mIsRunning = false;
+		}
+
+		// Engine is woken up once for messages put until next tick
+		public void wakeup() {
+			if (this.mIsWakeupPending.compareAndSet(false, true))
+				mEngine.wakeup(this);
+		}
+
+		// Implements ConnectorEngine.Handler
+		@Override
+		public long onTick(long nowMS) {
+			this.mIsWakeupPending.set(false);
+			if (this.mIsRunning == false)
+				return Long.MAX_VALUE;
+			if (this.mPhase == PHASE_ROUTINE) {
+				if (this.mIsRoutineDone)
+					this.sendCycle();
+			} else if (this.mPhase != PHASE_IDLE) {
+				if (nowMS >= this.mDeadlineMS)
+					this.failAttempt(new SocketTimeoutException());
+			} else if (nowMS >= this.mNextCycleMS
+					|| (mIsWakeOnSend && mSendBuffer.getLength() > 0)) {
+				this.runCycle(nowMS);
+			}
+
+			if (this.mPhase == PHASE_ROUTINE)
+				return Long.MAX_VALUE; // woken up by listener queue
+			else if (this.mPhase != PHASE_IDLE)
+				return this.mDeadlineMS;
+			else if (mIsWakeOnSend && mSendBuffer.getLength() > 0)
+				return nowMS;
+			else
+				return this.mNextCycleMS;
+		}
+
+		@Override
+		public void onReady(SelectionKey key) {
+			if (key != this.mKey)
+				return;
 			try {
-				this.mMessages.add(message);
-			} finally {
-				this.mLock.unlock();
+				if (this.mPhase == PHASE_CONNECTING && key.isConnectable()) {
+					this.mChannel.finishConnect();
+					this.onConnected();
+				} else if (this.mPhase == PHASE_WRITING && key.isWritable()) {
+					this.onWritable();
+				} else if (this.mPhase == PHASE_READING && key.isReadable()) {
+					this.onReadable();
+				}
+			} catch (ClassNotFoundException e) {
+				// Class not found
+				DebugLog.e(TAG, "Read message error: ClassNotFoundException "
+						+ e);
+				this.finishDelivery();
+			} catch (IOException e) {
+				this.failAttempt(e);
 			}
 		}
 
-		public ArrayList<RecordroidMessage> popAll() {
-			ArrayList<RecordroidMessage> result;
+		@Override
+		public void onClose() {
+			this.mIsRunning = false;
+			this.mListenerQueue.kill();
+			this.closeChannel();
+			this.closeSession();
+			FileReplayChunk.release(this.mSendMsg);
+			this.mSendMsg = null;
+		}
+
+		// Same as one iteration of Worker.runClient.
+		// Messages are popped after listeners have put theirs.
+		private void runCycle(long nowMS) {
+			this.mNextCycleMS = nowMS + mSleepMS;
+			this.mPhase = PHASE_ROUTINE;
+			this.mIsRoutineDone = false;
+			this.mListenerQueue.post(new Runnable() {
+				public void run() {
+					for (USBMessageListener listener : mListeners) {
+						listener.willDoUSBConnectorRoutine();
+					}
+					mIsRoutineDone = true;
+					mEngine.wakeup(EngineLink.this);
+				}
+			});
+		}
+
+		private void sendCycle() {
+			long nowMS = System.currentTimeMillis();
+			this.mPhase = PHASE_IDLE;
+			mMetrics.onCycle(mSendBuffer.getLength());
+			final ArrayList<RecordroidMessage> sendMsg = mSendBuffer.popAll();
+			if (sendMsg != null) {
+				this.startDelivery(sendMsg);
+			} else if (this.mSessionChannel != null
+					&& nowMS - this.mLastFrameMS >= KEEPALIVE_MS) {
+				// Keep idle session alive
+				this.startDelivery(new ArrayList<RecordroidMessage>());
+			} else {
+				this.endCycle();
+			}
+		}
+
+		private void endCycle() {
+			this.mListenerQueue.post(new Runnable() {
+				public void run() {
+					for (USBMessageListener listener : mListeners) {
+						listener.didUSBConnectorRoutine();
+					}
+				}
+			});
+		}
+
+		private void startDelivery(ArrayList<RecordroidMessage> sendMsg) {
+			this.mSendMsg = sendMsg;
+			this.mCandidates = WIRE_MODE_NEGOTIATION_ORDER;
+			this.mCandidateVersions = WIRE_VERSION_NEGOTIATION_ORDER;
+			if (mWireMode != WIRE_MODE_UNKNOWN) {
+				this.mCandidates = new int[] { mWireMode };
+				this.mCandidateVersions = new int[] { mWireVersion };
+			}
+			this.mCandidateIndex = 0;
+			this.mIsSessionReused = (this.mSessionChannel != null);
+			this.startAttempt();
+		}
+
+		private void finishDelivery() {
+			this.closeChannel();
+			this.mPhase = PHASE_IDLE;
+			FileReplayChunk.release(this.mSendMsg);
+			this.mSendMsg = null;
+			this.endCycle();
+
+			// Let engine reschedule: next cycle, or messages put meanwhile
+			mEngine.wakeup(this);
+		}
+
+		private int getAttemptMode() {
+			return this.mCandidates[this.mCandidateIndex];
+		}
+
+		private int getAttemptVersion() {
+			return this.mCandidateVersions[this.mCandidateIndex];
+		}
+
+		private void startAttempt() {
+			this.mDeadlineMS = System.currentTimeMillis() + SESSION_TIMEOUT_MS;
+			this.mIsDelivered = false;
+			try {
+				if (this.getAttemptMode() == WIRE_MODE_SESSION
+						&& this.mSessionChannel != null) {
+					this.mChannel = this.mSessionChannel;
+					this.mKey = this.mSessionKey;
+					this.writeRequest();
+					return;
+				}
+
+				// Establish connection with target
+				this.mConnectNS = System.nanoTime();
+				this.mChannel = SocketChannel.open();
+				this.mChannel.configureBlocking(false);
+				this.mChannel.socket().setTcpNoDelay(true);
+				boolean isConnected = this.mChannel
+						.connect(new InetSocketAddress("localhost", mPort));
+				this.mKey = mEngine.registerChannel(this.mChannel, 0, this);
+				if (isConnected) {
+					this.onConnected();
+				} else {
+					this.mPhase = PHASE_CONNECTING;
+					this.mKey.interestOps(SelectionKey.OP_CONNECT);
+				}
+			} catch (IOException e) {
+				this.failAttempt(e);
+			}
+		}
+
+		private void failAttempt(IOException e) {
+			DebugLog.e(TAG, "" + e);
+			mMetrics.onFailure();
+			if (this.mChannel == this.mSessionChannel)
+				this.closeSession();
+			this.closeChannel();
+
+			if (this.mIsDelivered) {
+				// Target may have taken the messages: never send them again
+				this.reportLost();
+				this.finishDelivery();
+			} else if (this.getAttemptMode() == WIRE_MODE_SESSION
+					&& this.mIsSessionReused) {
+				// Session may have been closed by target while idle: retry
+				// once on a new session.
+				this.mIsSessionReused = false;
+				this.startAttempt();
+			} else if (mWireMode == WIRE_MODE_UNKNOWN
+					&& this.mCandidateIndex + 1 < this.mCandidates.length) {
+				// Negotiation: the same messages are sent again in next mode
+				this.mCandidateIndex++;
+				this.startAttempt();
+			} else {
+				this.reportLost();
+				this.finishDelivery();
+			}
+		}
+
+		// Same as the end of Worker.deliver()
+		private void reportLost() {
+			if (this.mSendMsg.isEmpty())
+				return;
+			this.mListenerQueue.post(new Runnable() {
+				public void run() {
+					for (USBMessageListener listener : mListeners) {
+						listener.onUSBMessagesLost();
+					}
+				}
+			});
+		}
+
+		private void onConnected() throws IOException {
+			if (this.getAttemptMode() == WIRE_MODE_SESSION) {
+				// Handshake first
+				this.mIsHandshaking = true;
+				this.mOutBuffer.reset();
+				WireCodec.writePreamble(this.mOutStream,
+						WireCodec.WIRE_NEGOTIATED_SESSION_MAGIC,
+						this.getAttemptVersion());
+				this.mOutStream.writeInt(WireCompression
+						.getCapabilities(mCompressionThreshold));
+				this.mOutStream.flush();
+				this.startWrite();
+			} else {
+				mMetrics.onConnect((System.nanoTime() - this.mConnectNS) / 1000);
+				this.writeRequest();
+			}
+		}
+
+		private void writeRequest() throws IOException {
+			this.mIsHandshaking = false;
+			this.mRequestNS = System.nanoTime();
+			this.mOutBuffer.reset();
+			this.mRegions.clear();
+			this.mRegionOffsets.clear();
+			long regionLength = 0;
+			switch (this.getAttemptMode()) {
+			case WIRE_MODE_SESSION:
+				// Compression is per frame: a frame with file-backed chunks
+				// is sent as it is, so that they go by transferTo().
+				boolean isCompressed = (this.mSessionCompression != null && this
+						.hasFileChunk(this.mSendMsg) == false);
+				if (isCompressed || this.mSessionVersion < 2) {
+					// Version 1 has no chunk message to leave regions in
+					this.mFrameBuffer.reset();
+					WireCodec.writeBatch(this.mFrameOut, this.mSendMsg,
+							this.mSessionVersion);
+					if (isCompressed == false) {
+						this.mOutStream.writeInt(this.mFrameBuffer.size());
+						this.mFrameBuffer.writeTo(this.mOutStream);
+						this.mOutStream.flush();
+						break;
+					}
+					this.mSessionCompression.writeFrame(this.mOutStream,
+							this.mFrameBuffer);
+					this.mOutStream.flush();
+					break;
+				}
+				// Frame length is filled after encoding
+				this.mOutStream.writeInt(0);
+				regionLength = this.writeBatchWithRegions();
+				ByteBuffer frame = this.mOutBuffer.getBuffer();
+				frame.putInt(0, (int) (frame.position() - 4 + regionLength));
+				break;
+			case WIRE_MODE_BINARY:
+				WireCodec.writePreamble(this.mOutStream, WireCodec.WIRE_MAGIC,
+						this.getAttemptVersion());
+				WireCodec.writeBatch(this.mOutStream, this.mSendMsg,
+						this.getAttemptVersion());
+				this.mOutStream.flush();
+				break;
+			default:
+				ObjectOutputStream outStream = new ObjectOutputStream(
+						this.mOutBuffer);
+				outStream.writeObject(WireCodec
+						.toLegacyMessages(this.mSendMsg));
+				outStream.flush();
+				break;
+			}
+			DebugLog.d(TAG, "SEND: " + this.mSendMsg + " / Num:"
+					+ this.mSendMsg.size());
+			this.mEncodeUS = (System.nanoTime() - this.mRequestNS) / 1000;
+			this.mRequestBytes = this.mOutBuffer.getBuffer().position()
+					+ regionLength;
+			this.startWrite();
+		}
+
+		private boolean hasFileChunk(ArrayList<RecordroidMessage> messages) {
+			for (RecordroidMessage message : messages) {
+				if (message instanceof FileReplayChunk)
+					return true;
+			}
+			return false;
+		}
+
+		// Same as WireCodec.writeBatch(), but records of file-backed chunks
+		// are left to transferTo(). Returns the total length of them.
+		private long writeBatchWithRegions() throws IOException {
+			long regionLength = 0;
+			this.mOutStream.writeInt(this.mSendMsg.size());
+			for (RecordroidMessage message : this.mSendMsg) {
+				if (message instanceof FileReplayChunk) {
+					FileReplayChunk chunk = (FileReplayChunk) message;
+					WireCodec.writeReplayChunkHeader(this.mOutStream, chunk,
+							chunk.getLength());
+					this.mOutStream.flush();
+					this.mRegions.add(chunk);
+					this.mRegionOffsets.add(this.mOutBuffer.getBuffer()
+							.position());
+					regionLength += chunk.getLength();
+				} else {
+					WireCodec.writeMessage(this.mOutStream, message,
+							this.mSessionVersion);
+				}
+			}
+			this.mOutStream.flush();
+			return regionLength;
+		}
+
+		private void startWrite() throws IOException {
+			this.mOutBuffer.getBuffer().flip();
+			this.mOutLimit = this.mOutBuffer.getBuffer().limit();
+			this.mRegionIndex = 0;
+			this.mRegionSent = 0;
+			this.mPhase = PHASE_WRITING;
+			this.mKey.interestOps(SelectionKey.OP_WRITE);
+			this.onWritable();
+		}
+
+		private void onWritable() throws IOException {
+			ByteBuffer buffer = this.mOutBuffer.getBuffer();
+			while (true) {
+				// Bytes up to the next region
+				boolean hasRegion = (this.mRegionIndex < this.mRegions.size());
+				buffer.limit(hasRegion ? this.mRegionOffsets
+						.get(this.mRegionIndex) : this.mOutLimit);
+				this.mChannel.write(buffer);
+				if (buffer.hasRemaining())
+					return;
+				if (hasRegion == false)
+					break;
+
+				// Region straight from trace file
+				FileReplayChunk chunk = this.mRegions.get(this.mRegionIndex);
+				this.mRegionSent += chunk.transferTo(this.mRegionSent,
+						this.mChannel);
+				if (this.mRegionSent < chunk.getLength())
+					return;
+				this.mRegionIndex++;
+				this.mRegionSent = 0;
+			}
+			if (this.mIsHandshaking == false) {
+				mMetrics.onSent(this.mSendMsg.size(), this.mRequestBytes,
+						this.mEncodeUS);
+				// Whole frame is out. Connection modes are not committed
+				// until target answers the preamble.
+				if (this.getAttemptMode() == WIRE_MODE_SESSION)
+					this.mIsDelivered = true;
+			}
+
+			// Wait for response
+			this.mInBuffer.clear();
+			this.mPhase = PHASE_READING;
+			this.mKey.interestOps(SelectionKey.OP_READ);
+		}
+
+		@SuppressWarnings("unchecked")
+		private void onReadable() throws IOException, ClassNotFoundException {
+			if (this.mInBuffer.hasRemaining() == false) {
+				ByteBuffer newBuffer = ByteBuffer.allocateDirect(this.mInBuffer
+						.capacity() * 2);
+				this.mInBuffer.flip();
+				newBuffer.put(this.mInBuffer);
+				this.mInBuffer = newBuffer;
+			}
+			int numRead = this.mChannel.read(this.mInBuffer);
+			ByteBuffer received = this.mInBuffer.duplicate();
+			received.flip();
+			int mode = this.getAttemptMode();
+
+			if (mode == WIRE_MODE_SESSION) {
+				if (numRead < 0)
+					throw new EOFException();
+				if (this.mIsHandshaking) {
+					if (received.remaining() < 12)
+						return;
+					DataInputStream handshake = new DataInputStream(
+							new ByteBufferInputStream(received));
+					WireCodec.Preamble preamble = WireCodec
+							.readPreamble(handshake);
+					if (preamble.magic != WireCodec.WIRE_NEGOTIATED_SESSION_MAGIC)
+						throw new IOException("Session is refused");
+					this.mSessionVersion = Math.min(this.getAttemptVersion(),
+							preamble.version);
+					mWireVersion = this.mSessionVersion;
+					int capabilities = handshake.readInt();
+					if ((capabilities & WireCompression.CAPABILITY_DEFLATE) != 0)
+						this.mSessionCompression = new WireCompression(
+								mCompressionThreshold);
+					mWireMode = WIRE_MODE_SESSION;
+					mMetrics.onConnect((System.nanoTime() - this.mConnectNS) / 1000);
+					this.mSessionChannel = this.mChannel;
+					this.mSessionKey = this.mKey;
+					this.writeRequest();
+					return;
+				}
+
+				// Wait for whole frame
+				if (received.remaining() < 4)
+					return;
+				int length = received.getInt(0);
+				boolean isCompressed = ((length & WireCompression.FLAG_COMPRESSED) != 0);
+				length &= ~WireCompression.FLAG_COMPRESSED;
+				if (received.remaining() < 4 + length)
+					return;
+				long decodeNS = System.nanoTime();
+				received.position(4);
+				received.limit(4 + length);
+				InputStream frameStream = new ByteBufferInputStream(received);
+				if (isCompressed) {
+					if (this.mSessionCompression == null)
+						throw new IOException("Compression is not negotiated");
+					frameStream = new ByteArrayInputStream(
+							this.mSessionCompression.inflate(received));
+				}
+				ArrayList<RecordroidMessage> inMsg = WireCodec
+						.readBatch(new DataInputStream(frameStream));
+				this.recordResponse(inMsg, 4 + length, decodeNS);
+				this.mLastFrameMS = System.currentTimeMillis();
+				this.mKey.interestOps(0);
+				this.broadcast(inMsg);
+				this.finishDelivery();
+				return;
+			}
+
+			// One connection per exchange: response ends with EOF
+			if (numRead >= 0)
+				return;
+			if (received.hasRemaining() == false) {
+				// Target does not listen
+				if (mode == WIRE_MODE_LEGACY)
+					mWireMode = WIRE_MODE_UNKNOWN;
+				throw new EOFException();
+			}
+			long decodeNS = System.nanoTime();
+			int numBytes = received.remaining();
+			InputStream inStream = new ByteBufferInputStream(received);
+			ArrayList<RecordroidMessage> inMsg = null;
+			if (mode == WIRE_MODE_BINARY) {
+				DataInputStream dataInStream = new DataInputStream(inStream);
+				WireCodec.Preamble preamble = WireCodec
+						.readPreamble(dataInStream);
+				mWireMode = WIRE_MODE_BINARY;
+				mWireVersion = Math.min(this.getAttemptVersion(),
+						preamble.version);
+				this.mIsDelivered = true;
+				inMsg = WireCodec.readBatch(dataInStream);
+			} else {
+				ObjectInputStream objectInStream = new ObjectInputStream(
+						inStream);
+				mWireMode = WIRE_MODE_LEGACY;
+				this.mIsDelivered = true;
+				try {
+					Object inObject = objectInStream.readObject();
+					if (inObject instanceof ArrayList)
+						inMsg = (ArrayList<RecordroidMessage>) inObject;
+					else
+						DebugLog.e(TAG, "Invalid USB message came!");
+				} catch (EOFException e) {
+					// Target has nothing to send
+				}
+			}
+			this.recordResponse(inMsg, numBytes, decodeNS);
+			this.broadcast(inMsg);
+			this.finishDelivery();
+		}
+
+		private void recordResponse(ArrayList<RecordroidMessage> inMsg,
+				int numBytes, long decodeNS) {
+			long endNS = System.nanoTime();
+			mMetrics.onReceived((inMsg != null) ? inMsg.size() : 0, numBytes,
+					(endNS - decodeNS) / 1000);
+			mMetrics.onFrame((endNS - this.mRequestNS) / 1000);
+		}
+
+		private void broadcast(final ArrayList<RecordroidMessage> inMsg) {
+			if (inMsg != null && inMsg.isEmpty() == false) {
+				DebugLog.d(TAG, "RECEIVE: " + inMsg);
+				this.mListenerQueue.post(new Runnable() {
+					public void run() {
+						for (USBMessageListener listener : mListeners) {
+							listener.onUSBMessage(inMsg);
+						}
+					}
+				});
+			}
+		}
+
+		// Close channel of present attempt unless it is the session
+		private void closeChannel() {
+			if (this.mChannel != null && this.mChannel != this.mSessionChannel) {
+				try {
+					this.mChannel.close();
+				} catch (IOException e) {
+					DebugLog.e(TAG, "Close failure: " + e);
+				}
+			}
+			this.mChannel = null;
+			this.mKey = null;
+		}
+
+		private void closeSession() {
+			if (this.mSessionChannel != null) {
+				try {
+					this.mSessionChannel.close();
+				} catch (IOException e) {
+					DebugLog.e(TAG, "Close failure: " + e);
+				}
+				this.mSessionChannel = null;
+				this.mSessionKey = null;
+				if (this.mSessionCompression != null) {
+					this.mSessionCompression.end();
+					this.mSessionCompression = null;
+				}
+			}
+		}
+	}
+
+	// Runs listener callbacks of an engine link in order, on the callback
+	// threads of the engine. A few callbacks are run at a time, and the rest
+	// wait behind the other links, so that a busy link does not hold a
+	// callback thread for long.
+	// A listener which throws fails the link alone, as the engine does for
+	// handlers.
+	class ListenerQueue implements Runnable {
+		private static final int MAX_TASKS_PER_RUN = 16;
+
+		private EngineLink mOwner;
+		private ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+		private AtomicBoolean mIsScheduled = new AtomicBoolean(false);
+		private volatile boolean mIsRunning = true;
+
+		public ListenerQueue(EngineLink owner) {
+			this.mOwner = owner;
+		}
 
-			this.mLock.lock();
+		public void post(Runnable task) {
+			this.mTasks.add(task);
+			this.schedule();
+		}
+
+		// Callbacks not run yet are dropped. Running one is not interrupted,
+		// as it may be reading a file channel shared with other links.
+		public void kill() {
+			this.mIsRunning = false;
+			this.mTasks.clear();
+		}
+
+		// At most one run of this queue is scheduled at a time
+		private void schedule() {
+			if (this.mIsRunning == false || this.mTasks.isEmpty())
+				return;
+			if (this.mIsScheduled.compareAndSet(false, true) == false)
+				return;
 			try {
-				result = this.mMessages;
-				this.mMessages = new ArrayList<RecordroidMessage>();
+				mEngine.execute(this);
+			} catch (RejectedExecutionException e) {
+				// Engine is stopped
+				this.kill();
+			}
+		}
+
+		@Override
+		public void run() {
+			for (int i = 0; i < MAX_TASKS_PER_RUN && this.mIsRunning; i++) {
+				Runnable task = this.mTasks.poll();
+				if (task == null)
+					break;
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					this.kill();
+					this.mOwner.kill();
+					mEngine.unregister(this.mOwner);
+					return;
+				}
+			}
+			this.mIsScheduled.set(false);
+			// Tasks left, or posted while running
+			this.schedule();
+		}
+	}
+
+	// Bounded multi-producer, single-consumer buffer.
+	// Control commands go to the priority lane which is drained first, so
+	// they do not wait behind replay data. Data lane holds at most
+	// {capacity} messages and add() reports it full instead of blocking,
+	// because it is called by listener callbacks on the connector thread.
+	class MessageBuffer {
+		private ConcurrentLinkedQueue<RecordroidMessage> mPriorityLane;
+		private ConcurrentLinkedQueue<RecordroidMessage> mDataLane;
+		private AtomicInteger mPriorityLength;
+		private AtomicInteger mDataLength;
+		private int mCapacity;
+		private volatile Thread mWaiter;
+
+		public MessageBuffer(int capacity) {
+			this.mPriorityLane = new ConcurrentLinkedQueue<RecordroidMessage>();
+			this.mDataLane = new ConcurrentLinkedQueue<RecordroidMessage>();
+			this.mPriorityLength = new AtomicInteger(0);
+			this.mDataLength = new AtomicInteger(0);
+			this.mCapacity = capacity;
+			this.mWaiter = null;
+		}
+
+		// Returns false if the lane of the message is full
+		public boolean add(RecordroidMessage message) {
+			boolean isPriority = isPriorityMessage(message);
+			if (isPriority) {
+				if (reserve(this.mPriorityLength, PRIORITY_LANE_CAPACITY) == false)
+					return false;
+				this.mPriorityLane.offer(message);
+			} else {
+				if (reserve(this.mDataLength, this.mCapacity) == false)
+					return false;
+				this.mDataLane.offer(message);
+			}
+
+			Thread waiter = this.mWaiter;
+			if (waiter != null)
+				LockSupport.unpark(waiter);
+			return true;
+		}
+
+		// Wait until any message is put, or for {timeoutMS}
+		public void await(long timeoutMS) throws InterruptedException {
+			this.mWaiter = Thread.currentThread();
+			try {
+				long deadlineNS = System.nanoTime()
+						+ TimeUnit.MILLISECONDS.toNanos(timeoutMS);
+				long remainingNS = deadlineNS - System.nanoTime();
+				while (this.getLength() == 0 && remainingNS > 0) {
+					LockSupport.parkNanos(this, remainingNS);
+					if (Thread.interrupted())
+						throw new InterruptedException();
+					remainingNS = deadlineNS - System.nanoTime();
+				}
 			} finally {
-				this.mLock.unlock();
+				this.mWaiter = null;
 			}
+		}
+
+		// Priority messages come first in the result
+		public ArrayList<RecordroidMessage> popAll() {
+			ArrayList<RecordroidMessage> result = new ArrayList<RecordroidMessage>();
+			drain(this.mPriorityLane, this.mPriorityLength, result);
+			drain(this.mDataLane, this.mDataLength, result);
 
 			if (result.size() == 0) {
 				result = null;
@@ -352,19 +1398,39 @@ public class USBConnector {
 		}
 
 		public int getLength() {
-			int length;
+			return this.mPriorityLength.get() + this.mDataLength.get();
+		}
 
-			this.mLock.lock();
-			try {
-				length = this.mMessages.size();
-			} finally {
-				this.mLock.unlock();
+		private boolean isPriorityMessage(RecordroidMessage message) {
+			// 'Fill replay buffer' command belongs to the events after it
+			return (message instanceof RecordroidCommand)
+					&& ((RecordroidCommand) message).commandType != RecordroidCommand.CommandType.FILL_REPLAY_BUFFER;
+		}
+
+		private boolean reserve(AtomicInteger length, int limit) {
+			while (true) {
+				int present = length.get();
+				if (present >= limit)
+					return false;
+				if (length.compareAndSet(present, present + 1))
+					return true;
+			}
+		}
+
+		private void drain(ConcurrentLinkedQueue<RecordroidMessage> lane,
+				AtomicInteger length, ArrayList<RecordroidMessage> result) {
+			RecordroidMessage message;
+			while ((message = lane.poll()) != null) {
+				result.add(message);
+				length.decrementAndGet();
 			}
-			return length;
 		}
 	}
 }
 
+// Callbacks come from the connector thread, or from a callback thread of
+// the ConnectorEngine which drives the connector, one at a time in either
+// case.
 interface USBMessageListener {
 	// 'messages' string includes multiple messages divided by '\n'
 	public void onUSBMessage(ArrayList<RecordroidMessage> messages);
@@ -372,6 +1438,9 @@ interface USBMessageListener {
 	public void willDoUSBConnectorRoutine();
 
 	public void didUSBConnectorRoutine();
+
+	// Messages sent in the last routine may not have reached target
+	public void onUSBMessagesLost();
 }
 
 // Host
@@ -0,0 +1,312 @@
+package com.android.server.recordroid;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+
+// Binary codec of message batches between host and target.
+// - preamble: magic(4) + version(4)
+// magic is WIRE_MAGIC for one batch per connection, or WIRE_SESSION_MAGIC
+// for a framed session(WireSession). WIRE_NEGOTIATED_SESSION_MAGIC is a
+// framed session whose preamble is followed by a capability word.
+// - batch: number of messages(4) + messages
+// - message: type tag(1) + packed fields
+// A peer which does not know this codec sees a broken Java serialization
+// stream and drops the connection, so the sender can fall back to the
+// legacy object stream.
+// Version is negotiated: the responder answers in the version of the
+// request, and a requester rejected by an older peer asks again in an older
+// version. Version 2 adds replay chunk messages, credit of replaying state
+// and start delay of REPLAYING_ON. They are left out of version 1 batches,
+// since an older peer cannot tell where such a message ends.
+class WireCodec {
+	public static final int WIRE_MAGIC = 0x52445752; // "RDWR"
+	public static final int WIRE_SESSION_MAGIC = 0x52445753; // "RDWS"
+	public static final int WIRE_NEGOTIATED_SESSION_MAGIC = 0x5244574E; // "RDWN"
+	public static final int WIRE_VERSION = 2;
+	public static final int WIRE_MIN_VERSION = 1;
+
+	// Java serialization stream starts with 0xACED.
+	private static final int LEGACY_STREAM_MAGIC = 0xACED;
+
+	// Type tags
+	public static final byte TAG_KERNEL_INPUT_EVENT = 1;
+	public static final byte TAG_PLATFORM_EVENT = 2;
+	public static final byte TAG_COMMAND = 3;
+	public static final byte TAG_SERVICE_STATE = 4;
+	public static final byte TAG_REPLAY_CHUNK = 5;
+
+	// Flags of optional fields
+	private static final byte FLAG_FILL_REPLAY_BUFFER = 0x1;
+	private static final byte FLAG_REPLAYING_ON = 0x2;
+	private static final byte FLAG_REPLAYING_ON_START = 0x4;
+	private static final byte FLAG_REPLAYING = 0x1;
+	private static final byte FLAG_REPLAYING_CREDIT = 0x2;
+
+	// Check if the incoming stream uses this codec, without consuming it.
+	public static boolean isBinaryStream(BufferedInputStream inStream)
+			throws IOException {
+		inStream.mark(2);
+		int first = inStream.read();
+		int second = inStream.read();
+		inStream.reset();
+		if (first < 0 || second < 0)
+			throw new EOFException();
+		return (((first << 8) | second) != LEGACY_STREAM_MAGIC);
+	}
+
+	public static void writePreamble(DataOutputStream outStream, int magic,
+			int version) throws IOException {
+		outStream.writeInt(magic);
+		outStream.writeInt(version);
+	}
+
+	// Any version from WIRE_MIN_VERSION is taken
+	public static Preamble readPreamble(DataInputStream inStream)
+			throws IOException {
+		Preamble preamble = new Preamble();
+		preamble.magic = inStream.readInt();
+		preamble.version = inStream.readInt();
+		if ((preamble.magic != WIRE_MAGIC
+				&& preamble.magic != WIRE_SESSION_MAGIC
+				&& preamble.magic != WIRE_NEGOTIATED_SESSION_MAGIC)
+				|| preamble.version < WIRE_MIN_VERSION
+				|| preamble.version > WIRE_VERSION)
+			throw new IOException("Unsupported wire protocol: "
+					+ preamble.magic + "/" + preamble.version);
+		return preamble;
+	}
+
+	static class Preamble {
+		public int magic;
+		public int version;
+	}
+
+	// Messages are written in {version}, and readBatch() reads any version.
+	public static void writeBatch(DataOutputStream outStream,
+			ArrayList<RecordroidMessage> messages, int version)
+			throws IOException {
+		if (messages == null) {
+			outStream.writeInt(0);
+			return;
+		}
+		// Version 1 has no chunk message: chunks go as command and events,
+		// as in the legacy stream.
+		if (version < 2)
+			messages = toLegacyMessages(messages);
+		outStream.writeInt(messages.size());
+		for (RecordroidMessage message : messages)
+			writeMessage(outStream, message, version);
+	}
+
+	public static ArrayList<RecordroidMessage> readBatch(
+			DataInputStream inStream) throws IOException {
+		int numMessages = inStream.readInt();
+		if (numMessages < 0)
+			throw new IOException("Invalid batch size: " + numMessages);
+		ArrayList<RecordroidMessage> messages = new ArrayList<RecordroidMessage>(
+				Math.min(numMessages, 1 << 16));
+		for (int i = 0; i < numMessages; i++) {
+			RecordroidMessage message = readMessage(inStream);
+			// Listeners receive a chunk as command and events as ever
+			if (message instanceof RecordroidReplayChunk)
+				((RecordroidReplayChunk) message).expandTo(messages);
+			else
+				messages.add(message);
+		}
+		return messages;
+	}
+
+	// Messages for Java serialization: chunks are expanded, and timed
+	// commands get their start delay.
+	public static ArrayList<RecordroidMessage> toLegacyMessages(
+			ArrayList<RecordroidMessage> messages) throws IOException {
+		ArrayList<RecordroidMessage> legacyMessages = null;
+		for (int i = 0; i < messages.size(); i++) {
+			RecordroidMessage message = messages.get(i);
+			if (message instanceof RecordroidReplayChunk) {
+				if (message instanceof FileReplayChunk)
+					((FileReplayChunk) message).loadRecords();
+				if (legacyMessages == null)
+					legacyMessages = new ArrayList<RecordroidMessage>(
+							messages.subList(0, i));
+				((RecordroidReplayChunk) message).expandTo(legacyMessages);
+			} else if (message instanceof RecordroidCommand
+					&& ((RecordroidCommand) message).replayingOnFields != null) {
+				((RecordroidCommand) message).replayingOnFields
+						.fixStartDelay();
+				if (legacyMessages != null)
+					legacyMessages.add(message);
+			} else if (legacyMessages != null) {
+				legacyMessages.add(message);
+			}
+		}
+		return (legacyMessages != null) ? legacyMessages : messages;
+	}
+
+	// Replay chunks are written only in version 2 or later
+	public static void writeMessage(DataOutputStream outStream,
+			RecordroidMessage message, int version) throws IOException {
+		if (message instanceof RecordroidKernelInputEvent) {
+			RecordroidKernelInputEvent e = (RecordroidKernelInputEvent) message;
+			outStream.writeByte(TAG_KERNEL_INPUT_EVENT);
+			outStream.writeLong(e.timestampUS);
+			outStream.writeInt(e.deviceNum);
+			outStream.writeInt(e.typeVal);
+			outStream.writeInt(e.codeVal);
+			outStream.writeInt(e.value);
+		} else if (message instanceof RecordroidPlatformEvent) {
+			RecordroidPlatformEvent e = (RecordroidPlatformEvent) message;
+			outStream.writeByte(TAG_PLATFORM_EVENT);
+			outStream.writeLong(e.timestampUS);
+			outStream.writeInt(e.platformEventType);
+			outStream.writeInt(e.responseTimeUS);
+			outStream.writeInt(e.priv);
+			outStream.writeInt(e.secondPriv);
+		} else if (message instanceof RecordroidCommand) {
+			RecordroidCommand cmd = (RecordroidCommand) message;
+			if (cmd.replayingOnFields != null)
+				cmd.replayingOnFields.fixStartDelay();
+			byte flags = 0;
+			if (cmd.fillReplayBufferFields != null)
+				flags |= FLAG_FILL_REPLAY_BUFFER;
+			if (cmd.replayingOnFields != null)
+				flags |= FLAG_REPLAYING_ON;
+			if (cmd.replayingOnFields != null
+					&& cmd.replayingOnFields.startDelayUS != 0 && version >= 2)
+				flags |= FLAG_REPLAYING_ON_START;
+			outStream.writeByte(TAG_COMMAND);
+			outStream.writeInt(cmd.commandType);
+			outStream.writeByte(flags);
+			if (cmd.fillReplayBufferFields != null) {
+				outStream.writeLong(cmd.fillReplayBufferFields.sn);
+				outStream.writeInt(cmd.fillReplayBufferFields.numEvents);
+				outStream
+						.writeBoolean(cmd.fillReplayBufferFields.isNextExists);
+			}
+			if (cmd.replayingOnFields != null) {
+				outStream.writeInt(cmd.replayingOnFields.replayBufferSize);
+				outStream.writeInt(cmd.replayingOnFields.maxSleepTimeMS);
+				if ((flags & FLAG_REPLAYING_ON_START) != 0)
+					outStream.writeLong(cmd.replayingOnFields.startDelayUS);
+			}
+		} else if (message instanceof RecordroidServiceState) {
+			RecordroidServiceState state = (RecordroidServiceState) message;
+			outStream.writeByte(TAG_SERVICE_STATE);
+			outStream.writeInt(state.serviceStateType);
+			byte flags = 0;
+			if (state.replayingFields != null)
+				flags |= FLAG_REPLAYING;
+			if (state.replayingFields != null && version >= 2)
+				flags |= FLAG_REPLAYING_CREDIT;
+			outStream.writeByte(flags);
+			if (state.replayingFields != null) {
+				outStream.writeLong(state.replayingFields.requiredSN);
+				outStream.writeLong(state.replayingFields.runningSN);
+				outStream
+						.writeInt(state.replayingFields.presentReplayBufferIndex);
+				outStream
+						.writeInt(state.replayingFields.presentReplayBufferSize);
+				if ((flags & FLAG_REPLAYING_CREDIT) != 0)
+					outStream
+							.writeInt(state.replayingFields.freeReplayBufferSlots);
+			}
+		} else if (message instanceof RecordroidReplayChunk && version >= 2) {
+			// Payload is copied as it is
+			RecordroidReplayChunk chunk = (RecordroidReplayChunk) message;
+			if (chunk instanceof FileReplayChunk)
+				((FileReplayChunk) chunk).loadRecords();
+			writeReplayChunkHeader(outStream, chunk, chunk.records.length);
+			outStream.write(chunk.records);
+		} else {
+			throw new IOException("Unknown message: " + message);
+		}
+	}
+
+	// Replay chunk without its records: {length} bytes of records must
+	// follow it.
+	public static void writeReplayChunkHeader(DataOutputStream outStream,
+			RecordroidReplayChunk chunk, int length) throws IOException {
+		outStream.writeByte(TAG_REPLAY_CHUNK);
+		outStream.writeLong(chunk.sn);
+		outStream.writeInt(chunk.numEvents);
+		outStream.writeBoolean(chunk.isNextExists);
+		outStream.writeInt(length);
+	}
+
+	public static RecordroidMessage readMessage(DataInputStream inStream)
+			throws IOException {
+		byte tag = inStream.readByte();
+		switch (tag) {
+		case TAG_KERNEL_INPUT_EVENT: {
+			long timestampUS = inStream.readLong();
+			int deviceNum = inStream.readInt();
+			int typeVal = inStream.readInt();
+			int codeVal = inStream.readInt();
+			int value = inStream.readInt();
+			return RecordroidKernelInputEvent.make(timestampUS, deviceNum,
+					typeVal, codeVal, value);
+		}
+		case TAG_PLATFORM_EVENT: {
+			long timestampUS = inStream.readLong();
+			int platformEventType = inStream.readInt();
+			int responseTimeUS = inStream.readInt();
+			int priv = inStream.readInt();
+			int secondPriv = inStream.readInt();
+			return RecordroidPlatformEvent.make(timestampUS,
+					platformEventType, responseTimeUS, priv, secondPriv);
+		}
+		case TAG_COMMAND: {
+			RecordroidCommand cmd = RecordroidCommand.make(inStream.readInt());
+			byte flags = inStream.readByte();
+			if ((flags & FLAG_FILL_REPLAY_BUFFER) != 0) {
+				long sn = inStream.readLong();
+				int numEvents = inStream.readInt();
+				boolean isNextExists = inStream.readBoolean();
+				cmd.setFillReplayBufferFields(sn, numEvents, isNextExists);
+			}
+			if ((flags & FLAG_REPLAYING_ON) != 0) {
+				int replayBufferSize = inStream.readInt();
+				int maxSleepTimeMS = inStream.readInt();
+				cmd.setReplayingOnFields(replayBufferSize, maxSleepTimeMS);
+				if ((flags & FLAG_REPLAYING_ON_START) != 0)
+					cmd.replayingOnFields.startDelayUS = inStream.readLong();
+			}
+			return cmd;
+		}
+		case TAG_SERVICE_STATE: {
+			RecordroidServiceState state = RecordroidServiceState
+					.make(inStream.readInt());
+			byte flags = inStream.readByte();
+			if ((flags & FLAG_REPLAYING) != 0) {
+				long requiredSN = inStream.readLong();
+				long runningSN = inStream.readLong();
+				int presentReplayBufferIndex = inStream.readInt();
+				int presentReplayBufferSize = inStream.readInt();
+				state.setReplayingFields(requiredSN, runningSN,
+						presentReplayBufferIndex, presentReplayBufferSize);
+				if ((flags & FLAG_REPLAYING_CREDIT) != 0)
+					state.replayingFields.freeReplayBufferSlots = inStream
+							.readInt();
+			}
+			return state;
+		}
+		case TAG_REPLAY_CHUNK: {
+			long sn = inStream.readLong();
+			int numEvents = inStream.readInt();
+			boolean isNextExists = inStream.readBoolean();
+			int length = inStream.readInt();
+			if (length < 0 || length % TraceFormat.BINARY_RECORD_SIZE != 0)
+				throw new IOException("Invalid chunk size: " + length);
+			byte[] records = new byte[length];
+			inStream.readFully(records);
+			return RecordroidReplayChunk.make(sn, numEvents, isNextExists,
+					records);
+		}
+		}
+		throw new IOException("Unknown message tag: " + tag);
+	}
+}
@@ -0,0 +1,140 @@
+package com.android.server.recordroid;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Per-frame compression of a framed session(WireSession).
+// - negotiated by capability word in session handshake
+// - compressed frame: (length | FLAG_COMPRESSED)(4) + raw length(4) +
+// deflated batch
+// Every frame is deflated independently with a preset dictionary of
+// typical input events, so small frames compress well too. Frames below
+// the threshold are sent as they are, so state polls and keepalives cost
+// no CPU.
+class WireCompression {
+	public static final int CAPABILITY_DEFLATE = 0x1;
+	public static final int FLAG_COMPRESSED = 0x80000000;
+
+	private static final byte[] DICTIONARY = makeDictionary();
+
+	private int mThreshold;
+	private Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+	private Inflater mInflater = new Inflater();
+	private byte[] mDeflateBuffer = new byte[16 * 1024];
+
+	public WireCompression(int threshold) {
+		this.mThreshold = threshold;
+	}
+
+	// Capabilities offered by a peer with given threshold
+	public static int getCapabilities(int threshold) {
+		return (threshold > 0) ? CAPABILITY_DEFLATE : 0;
+	}
+
+	// Write a frame of the encoded batch, deflated if it is worth it.
+	// Returns the frame size.
+	public int writeFrame(DataOutputStream outStream,
+			ByteArrayOutputStream batch) throws IOException {
+		int rawLength = batch.size();
+		if (rawLength >= this.mThreshold) {
+			ByteArrayOutputStream deflated = this.deflate(batch);
+			if (deflated.size() + 4 < rawLength) {
+				outStream.writeInt((deflated.size() + 4) | FLAG_COMPRESSED);
+				outStream.writeInt(rawLength);
+				deflated.writeTo(outStream);
+				return 8 + deflated.size();
+			}
+		}
+		outStream.writeInt(rawLength);
+		batch.writeTo(outStream);
+		return 4 + rawLength;
+	}
+
+	// {payload} is the frame after its length word: raw length + deflated
+	// batch. Returns the encoded batch.
+	public byte[] inflate(ByteBuffer payload) throws IOException {
+		int rawLength = payload.getInt();
+		if (rawLength < 0 || rawLength > WireSession.MAX_FRAME_SIZE)
+			throw new IOException("Invalid raw frame size: " + rawLength);
+		byte[] input = new byte[payload.remaining()];
+		payload.get(input);
+
+		byte[] output = new byte[rawLength];
+		this.mInflater.reset();
+		this.mInflater.setInput(input);
+		try {
+			int offset = 0;
+			while (offset < rawLength) {
+				int numInflated = this.mInflater.inflate(output, offset,
+						rawLength - offset);
+				offset += numInflated;
+				if (numInflated == 0) {
+					if (this.mInflater.needsDictionary())
+						this.mInflater.setDictionary(DICTIONARY);
+					else if (this.mInflater.finished()
+							|| this.mInflater.needsInput())
+						break;
+				}
+			}
+			if (offset != rawLength)
+				throw new IOException("Compressed frame is cut");
+		} catch (DataFormatException e) {
+			throw new IOException("Invalid compressed frame: " + e);
+		}
+		return output;
+	}
+
+	public void end() {
+		this.mDeflater.end();
+		this.mInflater.end();
+	}
+
+	private ByteArrayOutputStream deflate(ByteArrayOutputStream batch) {
+		ByteArrayOutputStream deflated = new ByteArrayOutputStream(
+				batch.size() / 4 + 64);
+		this.mDeflater.reset();
+		this.mDeflater.setDictionary(DICTIONARY);
+		this.mDeflater.setInput(batch.toByteArray());
+		this.mDeflater.finish();
+		while (this.mDeflater.finished() == false) {
+			int numDeflated = this.mDeflater.deflate(this.mDeflateBuffer);
+			deflated.write(this.mDeflateBuffer, 0, numDeflated);
+		}
+		return deflated;
+	}
+
+	// Dictionary: a multi-touch report and a key press, both as encoded
+	// messages and as packed records of a replay chunk. Deflate refers to
+	// the end of dictionary most cheaply, so records come last.
+	private static byte[] makeDictionary() {
+		// {type, code, value} of EV_ABS, EV_KEY and EV_SYN events
+		int[][] report = { { 3, 0x39, 1 }, { 3, 0x35, 540 },
+				{ 3, 0x36, 960 }, { 3, 0x30, 6 }, { 3, 0x3a, 40 },
+				{ 1, 0x14a, 1 }, { 0, 0, 0 }, { 3, 0x35, 541 },
+				{ 3, 0x36, 958 }, { 0, 0, 0 }, { 3, 0x39, -1 },
+				{ 1, 0x14a, 0 }, { 0, 0, 0 }, { 1, 0x74, 1 }, { 0, 0, 0 },
+				{ 1, 0x74, 0 }, { 0, 0, 0 } };
+		ByteBuffer dictionary = ByteBuffer.allocate(report.length * 2
+				* (TraceFormat.BINARY_RECORD_SIZE));
+		byte[] leads = { WireCodec.TAG_KERNEL_INPUT_EVENT,
+				TraceFormat.KIND_KERNEL_INPUT };
+		for (byte lead : leads) {
+			long timestampUS = 1000000;
+			for (int[] event : report) {
+				dictionary.put(lead);
+				dictionary.putLong(timestampUS);
+				dictionary.putInt(2);
+				dictionary.putInt(event[0]);
+				dictionary.putInt(event[1]);
+				dictionary.putInt(event[2]);
+				timestampUS += 8000;
+			}
+		}
+		return dictionary.array();
+	}
+}
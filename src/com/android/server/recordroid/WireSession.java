@@ -0,0 +1,176 @@
+package com.android.server.recordroid;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+// Long-lived connection carrying length-prefixed frames in both directions.
+// - handshake: session preamble from client, echoed by server in the same
+// or older version, which both sides speak from then on
+// With negotiated session preamble, client sends its capabilities and
+// server replies with the accepted ones.
+// - frame: payload length(4) + batch of WireCodec, or a compressed frame
+// of WireCompression if negotiated
+// A frame with an empty batch is a keepalive.
+class WireSession {
+	// Limit of a frame, and of a batch inflated from a compressed frame
+	static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+	private Socket mSocket;
+	private InputStream mRawIn;
+	private DataInputStream mIn;
+	private DataOutputStream mOut;
+	private ByteArrayOutputStream mFrameBuffer = new ByteArrayOutputStream();
+	private DataOutputStream mFrameOut = new DataOutputStream(mFrameBuffer);
+	private WireCompression mCompression = null;
+	private ConnectorMetrics mMetrics;
+	private int mVersion = WireCodec.WIRE_VERSION;
+
+	private WireSession(Socket socket, InputStream in,
+			ConnectorMetrics metrics) throws IOException {
+		this.mSocket = socket;
+		this.mMetrics = metrics;
+		this.mRawIn = in;
+		this.mIn = new DataInputStream(in);
+		this.mOut = new DataOutputStream(new BufferedOutputStream(
+				socket.getOutputStream()));
+		this.mSocket.setTcpNoDelay(true);
+		this.mSocket.setKeepAlive(true);
+	}
+
+	// Client side: connect and do handshake in {version}.
+	// Replies are awaited for {timeoutMS}. Frames of at least
+	// {compressionThreshold} bytes are compressed if server accepts it, and
+	// 0 disables compression.
+	public static WireSession connect(String host, int port, int timeoutMS,
+			int version, int compressionThreshold, ConnectorMetrics metrics)
+			throws IOException {
+		long startNS = System.nanoTime();
+		Socket socket = new Socket(host, port);
+		try {
+			socket.setSoTimeout(timeoutMS);
+			WireSession session = new WireSession(socket,
+					new BufferedInputStream(socket.getInputStream()), metrics);
+			WireCodec.writePreamble(session.mOut,
+					WireCodec.WIRE_NEGOTIATED_SESSION_MAGIC, version);
+			session.mOut.writeInt(WireCompression
+					.getCapabilities(compressionThreshold));
+			session.mOut.flush();
+			WireCodec.Preamble preamble = WireCodec.readPreamble(session.mIn);
+			if (preamble.magic != WireCodec.WIRE_NEGOTIATED_SESSION_MAGIC)
+				throw new IOException("Session is refused");
+			session.mVersion = Math.min(version, preamble.version);
+			session.setCapabilities(session.mIn.readInt(),
+					compressionThreshold);
+			metrics.onConnect((System.nanoTime() - startNS) / 1000);
+			return session;
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	// Server side: session {preamble} has already been read from {in}.
+	public static WireSession accept(Socket socket, InputStream in,
+			WireCodec.Preamble preamble, int compressionThreshold,
+			ConnectorMetrics metrics) throws IOException {
+		int magic = preamble.magic;
+		WireSession session = new WireSession(socket, in, metrics);
+		session.mVersion = preamble.version;
+		WireCodec.writePreamble(session.mOut, magic, session.mVersion);
+		if (magic == WireCodec.WIRE_NEGOTIATED_SESSION_MAGIC) {
+			int capabilities = session.mIn.readInt()
+					& WireCompression.getCapabilities(compressionThreshold);
+			session.mOut.writeInt(capabilities);
+			session.setCapabilities(capabilities, compressionThreshold);
+		}
+		session.mOut.flush();
+		return session;
+	}
+
+	// Negotiated version of the codec
+	public int getVersion() {
+		return this.mVersion;
+	}
+
+	private void setCapabilities(int capabilities, int compressionThreshold) {
+		if ((capabilities & WireCompression.CAPABILITY_DEFLATE) != 0)
+			this.mCompression = new WireCompression(compressionThreshold);
+	}
+
+	public void writeFrame(ArrayList<RecordroidMessage> messages)
+			throws IOException {
+		long startNS = System.nanoTime();
+		this.mFrameBuffer.reset();
+		WireCodec.writeBatch(this.mFrameOut, messages, this.mVersion);
+		int frameSize;
+		if (this.mCompression != null) {
+			frameSize = this.mCompression.writeFrame(this.mOut,
+					this.mFrameBuffer);
+		} else {
+			this.mOut.writeInt(this.mFrameBuffer.size());
+			this.mFrameBuffer.writeTo(this.mOut);
+			frameSize = 4 + this.mFrameBuffer.size();
+		}
+		long encodeUS = (System.nanoTime() - startNS) / 1000;
+		this.mOut.flush();
+		this.mMetrics.onSent((messages != null) ? messages.size() : 0,
+				frameSize, encodeUS);
+	}
+
+	// SocketTimeoutException is thrown only if no byte of the frame has been
+	// consumed, so the session is still usable after it.
+	public ArrayList<RecordroidMessage> readFrame() throws IOException {
+		int first = this.mRawIn.read();
+		if (first < 0)
+			throw new EOFException();
+		try {
+			int length = (first << 24) | (this.mIn.readUnsignedByte() << 16)
+					| (this.mIn.readUnsignedByte() << 8)
+					| this.mIn.readUnsignedByte();
+			boolean isCompressed = ((length & WireCompression.FLAG_COMPRESSED) != 0);
+			length &= ~WireCompression.FLAG_COMPRESSED;
+			if (length < 4 || length > MAX_FRAME_SIZE)
+				throw new IOException("Invalid frame size: " + length);
+			if (isCompressed && this.mCompression == null)
+				throw new IOException("Compression is not negotiated");
+
+			// Whole frame is read first, so that decoding time is measured
+			// apart from the link.
+			byte[] payload = new byte[length];
+			this.mIn.readFully(payload);
+			long startNS = System.nanoTime();
+			byte[] batch = payload;
+			if (isCompressed)
+				batch = this.mCompression.inflate(ByteBuffer.wrap(payload));
+			ArrayList<RecordroidMessage> messages = WireCodec
+					.readBatch(new DataInputStream(new ByteArrayInputStream(
+							batch)));
+			this.mMetrics.onReceived(messages.size(), 4 + length,
+					(System.nanoTime() - startNS) / 1000);
+			return messages;
+		} catch (SocketTimeoutException e) {
+			throw new IOException("Frame is cut: " + e);
+		}
+	}
+
+	public void close() {
+		if (this.mCompression != null)
+			this.mCompression.end();
+		try {
+			this.mSocket.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+	}
+}